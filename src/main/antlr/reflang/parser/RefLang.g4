@@ -25,10 +25,20 @@ exp returns [Exp ast]:
     	| ref=refexp       { $ast = $ref.ast; }       // new for RefLang
     	| deref=derefexp   { $ast = $deref.ast; }     // new for RefLang
     	| assign=assignexp { $ast = $assign.ast; }    // new for RefLang
+    	| cas=casexp       { $ast = $cas.ast; }       // compare-and-set
     	| free=freeexp     { $ast = $free.ast; }      // new for RefLang
     	| refeq=refeqexp   { $ast = $refeq.ast; }      // new for RefLang
+    	| region=regionexp { $ast = $region.ast; }    // region allocation
     	;
 
+ // Integer literals are exact longs, overriding the rule imported from ArithLang
+numexp returns [NumExp ast]:
+ 		      n0=Number { $ast = new NumExp(Long.parseLong($n0.text)); }
+  		| '-' n0=Number { $ast = new NumExp(Long.parseLong("-" + $n0.text)); }
+  		|     n0=Number Dot n1=Number { $ast = new NumExp(Double.parseDouble(      $n0.text+"."+$n1.text)); }
+  		| '-' n0=Number Dot n1=Number { $ast = new NumExp(Double.parseDouble("-" + $n0.text+"."+$n1.text)); }
+  		;
+
  // New Expressions for RefLang
 refexp returns [RefExp ast] :
     '(' Ref e=exp ')' { $ast = new RefExp($e.ast); }
@@ -42,6 +52,10 @@ assignexp returns [AssignExp ast] :
     '(' Assign e1=exp e2=exp ')' { $ast = new AssignExp($e1.ast, $e2.ast); }
     ;
 
+casexp returns [CasExp ast] :
+    '(' Cas e1=exp e2=exp e3=exp ')' { $ast = new CasExp($e1.ast, $e2.ast, $e3.ast); }
+    ;
+
 freeexp returns [FreeExp ast] :
     '(' Free e=exp ')' { $ast = new FreeExp($e.ast); }
     ;
@@ -49,11 +63,17 @@ freeexp returns [FreeExp ast] :
 refeqexp returns [RefEqExp ast] :
 	'(' RefEq e1=exp e2=exp ')' { $ast = new RefEqExp($e1.ast, $e2.ast); }
 	;
+
+regionexp returns [RegionExp ast] :
+    '(' Region e=exp ')' { $ast = new RegionExp($e.ast); }
+    ;
          
  // Lexical Specification of this Programming Language
  //  - lexical specification rules start with uppercase
  Ref    : 'ref' ;
  Deref  : 'deref' ;
  Assign : 'set!' ;
+ Cas    : 'cas!' ;
  Free   : 'free' ;
- RefEq	: '==' ;
\ No newline at end of file
+ RefEq	: '==' ;
+ Region : 'region' ;
\ No newline at end of file
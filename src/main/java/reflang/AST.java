@@ -65,6 +65,24 @@ public interface AST {
         T visit(AST.FreeExp e, Env env);   // new for reflang
 
         T visit(AST.RefEqExp e, Env env);   // new for reflang
+
+        T visit(AST.RegionExp e, Env env);
+
+        T visit(AST.CasExp e, Env env);
+
+        T visit(AST.LocalRefExp e, Env env);    // introduced by EscapeAnalysis
+
+        T visit(AST.LocalDerefExp e, Env env);  // introduced by EscapeAnalysis
+
+        T visit(AST.LocalAssignExp e, Env env); // introduced by EscapeAnalysis
+
+        T visit(AST.InlinedCallExp e, Env env); // introduced by Inliner
+
+        T visit(AST.RefUpdateExp e, Env env);   // introduced by Superinstructions
+
+        T visit(AST.LocalUpdateExp e, Env env); // introduced by Superinstructions
+
+        T visit(AST.DerefCarExp e, Env env);    // introduced by Superinstructions
     }
 
     abstract class ASTNode implements AST {
@@ -94,20 +112,48 @@ public interface AST {
     }
 
     abstract class Exp extends ASTNode {
-        /* no-op */
+        Exp _origin; // the source expression the optimizer rewrote into this one
+        TypeChecker.Type _type; // proven by the TypeChecker, or null if the program was not checked
+
+        /**
+         * Returns the expression as the program wrote it, for error messages
+         * and printing.
+         */
+        public Exp origin() {
+            return _origin == null ? this : _origin;
+        }
     }
 
     class VarExp extends Exp {
-        final String _name;
+        final Symbol _name;
+        int _depth = -1; // lexical address filled in by the Resolver; -1 for globals
+        int _slot = -1;
+        Env.GlobalEnv.Cell _cell; // global cell cached by the Evaluator after the first lookup
 
         public VarExp(String name) {
+            this(Symbol.of(name));
+        }
+
+        VarExp(Symbol name) {
             _name = name;
         }
 
         public String name() {
+            return _name.name();
+        }
+
+        public Symbol symbol() {
             return _name;
         }
 
+        public int depth() {
+            return _depth;
+        }
+
+        public int slot() {
+            return _slot;
+        }
+
         public <T> T accept(Visitor<T> visitor, Env env) {
             return visitor.visit(this, env);
         }
@@ -126,15 +172,29 @@ public interface AST {
 
     class NumExp extends Exp {
         final double _val;
+        private final Value.NumVal _value; // evaluating a constant allocates nothing
 
         public NumExp(double v) {
             _val = v;
+            _value = Value.NumVal.of(v);
+        }
+
+        /**
+         * An integer literal, which evaluates to an exact Value.IntVal.
+         */
+        public NumExp(long v) {
+            _val = v;
+            _value = Value.IntVal.of(v);
         }
 
         public double v() {
             return _val;
         }
 
+        public Value.NumVal value() {
+            return _value;
+        }
+
         public <T> T accept(Visitor<T> visitor, Env env) {
             return visitor.visit(this, env);
         }
@@ -225,11 +285,15 @@ public interface AST {
      * @author hridesh
      */
     class LetExp extends Exp {
-        final List<String> _names;
+        final Symbol[] _names;
         final List<Exp> _value_exps;
         final Exp _body;
 
         public LetExp(List<String> names, List<Exp> value_exps, Exp body) {
+            this(Symbol.of(names), value_exps, body);
+        }
+
+        LetExp(Symbol[] names, List<Exp> value_exps, Exp body) {
             _names = names;
             _value_exps = value_exps;
             _body = body;
@@ -240,6 +304,10 @@ public interface AST {
         }
 
         public List<String> names() {
+            return Symbol.names(_names);
+        }
+
+        public Symbol[] symbols() {
             return _names;
         }
 
@@ -254,10 +322,14 @@ public interface AST {
     }
 
     class DefineDecl extends Exp {
-        final String _name;
+        final Symbol _name;
         final Exp _value_exp;
 
         public DefineDecl(String name, Exp value_exp) {
+            this(Symbol.of(name), value_exp);
+        }
+
+        DefineDecl(Symbol name, Exp value_exp) {
             _name = name;
             _value_exp = value_exp;
         }
@@ -267,6 +339,10 @@ public interface AST {
         }
 
         public String name() {
+            return _name.name();
+        }
+
+        public Symbol symbol() {
             return _name;
         }
 
@@ -277,18 +353,43 @@ public interface AST {
     }
 
     class LambdaExp extends Exp {
-        List<String> _formals;
+        Symbol[] _formals;
         Exp _body;
+        // Free local variables captured by the closure, and their addresses at
+        // the point where the lambda is evaluated. Filled in by the Resolver.
+        Symbol[] _free = new Symbol[0];
+        int[] _free_depths = new int[0];
+        int[] _free_slots = new int[0];
 
         public LambdaExp(List<String> formals, Exp body) {
+            this(Symbol.of(formals), body);
+        }
+
+        LambdaExp(Symbol[] formals, Exp body) {
             _formals = formals;
             _body = body;
         }
 
         public List<String> formals() {
+            return Symbol.names(_formals);
+        }
+
+        public Symbol[] symbols() {
             return _formals;
         }
 
+        public Symbol[] free() {
+            return _free;
+        }
+
+        public int[] free_depths() {
+            return _free_depths;
+        }
+
+        public int[] free_slots() {
+            return _free_slots;
+        }
+
         public Exp body() {
             return _body;
         }
@@ -301,6 +402,8 @@ public interface AST {
     class CallExp extends Exp {
         Exp _operator;
         List<Exp> _operands;
+        boolean _tail; // set by the Resolver for calls in tail position of a lambda body
+        final Evaluator.CallCache _cache = new Evaluator.CallCache(); // callees seen by the tree and stack engines
 
         public CallExp(Exp operator, List<Exp> operands) {
             _operator = operator;
@@ -315,6 +418,10 @@ public interface AST {
             return _operands;
         }
 
+        public boolean tail() {
+            return _tail;
+        }
+
         public <T> T accept(Visitor<T> visitor, Env env) {
             return visitor.visit(this, env);
         }
@@ -611,4 +718,250 @@ public interface AST {
             return exp2;
         }
     }
+
+    /**
+     * A compare-and-set expression has the syntax
+     * <p>
+     * (cas! location expected new)
+     * <p>
+     * It atomically stores new at the location if the location holds a value
+     * equal to expected, and evaluates to #t if it did so, #f otherwise.
+     */
+    class CasExp extends Exp {
+        private final Exp _loc_exp;
+        private final Exp _expected_exp;
+        private final Exp _new_exp;
+
+        public CasExp(Exp loc_exp, Exp expected_exp, Exp new_exp) {
+            _loc_exp = loc_exp;
+            _expected_exp = expected_exp;
+            _new_exp = new_exp;
+        }
+
+        public <T> T accept(Visitor<T> visitor, Env env) {
+            return visitor.visit(this, env);
+        }
+
+        public Exp loc_exp() {
+            return _loc_exp;
+        }
+
+        public Exp expected_exp() {
+            return _expected_exp;
+        }
+
+        public Exp new_exp() {
+            return _new_exp;
+        }
+    }
+
+    /**
+     * A region expression has the syntax
+     * <p>
+     * (region expression)
+     * <p>
+     * Every cell allocated by ref while the expression is evaluated is
+     * released when the region is left.
+     */
+    class RegionExp extends Exp {
+        private final Exp _body;
+
+        public RegionExp(Exp body) {
+            _body = body;
+        }
+
+        public <T> T accept(Visitor<T> visitor, Env env) {
+            return visitor.visit(this, env);
+        }
+
+        public Exp body() {
+            return _body;
+        }
+    }
+
+    /**
+     * A let-bound reference that never escapes its let expression, written
+     * (ref expression) in the source. The let frame slot holds the referenced
+     * value directly instead of a heap location.
+     */
+    class LocalRefExp extends Exp {
+        private final Exp _value_exp;
+
+        public LocalRefExp(Exp value_exp) {
+            _value_exp = value_exp;
+        }
+
+        public <T> T accept(Visitor<T> visitor, Env env) {
+            return visitor.visit(this, env);
+        }
+
+        public Exp value_exp() {
+            return _value_exp;
+        }
+    }
+
+    /**
+     * (deref name) where name is bound by a LocalRefExp: reads the frame slot.
+     */
+    class LocalDerefExp extends Exp {
+        private final VarExp _var;
+
+        public LocalDerefExp(VarExp var) {
+            _var = var;
+        }
+
+        public <T> T accept(Visitor<T> visitor, Env env) {
+            return visitor.visit(this, env);
+        }
+
+        public VarExp var() {
+            return _var;
+        }
+    }
+
+    /**
+     * (set! name expression) where name is bound by a LocalRefExp: writes
+     * the frame slot.
+     */
+    class LocalAssignExp extends Exp {
+        private final VarExp _var;
+        private final Exp _rhs_exp;
+
+        public LocalAssignExp(VarExp var, Exp rhs_exp) {
+            _var = var;
+            _rhs_exp = rhs_exp;
+        }
+
+        public <T> T accept(Visitor<T> visitor, Env env) {
+            return visitor.visit(this, env);
+        }
+
+        public VarExp var() {
+            return _var;
+        }
+
+        public Exp rhs_exp() {
+            return _rhs_exp;
+        }
+    }
+
+    /**
+     * A call of a global function whose body the Inliner copied into the
+     * call site. The global may be redefined later, so the inlined copy only
+     * runs while the global still holds a closure of the inlined lambda,
+     * recognized by its formals array, which every rewrite of the lambda
+     * keeps. Otherwise the original call runs.
+     */
+    class InlinedCallExp extends Exp {
+        private final Symbol[] _formals;
+        private final Exp _inlined;
+        private final CallExp _call;
+
+        public InlinedCallExp(Symbol[] formals, Exp inlined, CallExp call) {
+            _formals = formals;
+            _inlined = inlined;
+            _call = call;
+        }
+
+        public <T> T accept(Visitor<T> visitor, Env env) {
+            return visitor.visit(this, env);
+        }
+
+        public Symbol[] formals() {
+            return _formals;
+        }
+
+        public Exp inlined() {
+            return _inlined;
+        }
+
+        public CallExp call() {
+            return _call;
+        }
+    }
+
+    /**
+     * (set! var (+ (deref var) e ...)), or the same with -, with at least one
+     * e: updates the heap cell var refers to in one step.
+     */
+    class RefUpdateExp extends Exp {
+        private final VarExp _var;
+        private final CompoundArithExp _rhs_exp;
+
+        public RefUpdateExp(VarExp var, CompoundArithExp rhs_exp) {
+            _var = var;
+            _rhs_exp = rhs_exp;
+        }
+
+        public <T> T accept(Visitor<T> visitor, Env env) {
+            return visitor.visit(this, env);
+        }
+
+        public VarExp var() {
+            return _var;
+        }
+
+        /**
+         * The (+ (deref var) e ...) or (- (deref var) e ...) expression.
+         */
+        public CompoundArithExp rhs_exp() {
+            return _rhs_exp;
+        }
+
+        public boolean subtract() {
+            return _rhs_exp instanceof SubExp;
+        }
+    }
+
+    /**
+     * A RefUpdateExp where var is bound by a LocalRefExp: updates the frame
+     * slot.
+     */
+    class LocalUpdateExp extends Exp {
+        private final VarExp _var;
+        private final CompoundArithExp _rhs_exp;
+
+        public LocalUpdateExp(VarExp var, CompoundArithExp rhs_exp) {
+            _var = var;
+            _rhs_exp = rhs_exp;
+        }
+
+        public <T> T accept(Visitor<T> visitor, Env env) {
+            return visitor.visit(this, env);
+        }
+
+        public VarExp var() {
+            return _var;
+        }
+
+        public CompoundArithExp rhs_exp() {
+            return _rhs_exp;
+        }
+
+        public boolean subtract() {
+            return _rhs_exp instanceof SubExp;
+        }
+    }
+
+    /**
+     * (deref (car e)).
+     */
+    class DerefCarExp extends Exp {
+        private final Exp _arg;
+
+        public DerefCarExp(Exp arg) {
+            _arg = arg;
+        }
+
+        public <T> T accept(Visitor<T> visitor, Env env) {
+            return visitor.visit(this, env);
+        }
+
+        /**
+         * The list e.
+         */
+        public Exp arg() {
+            return _arg;
+        }
+    }
 }
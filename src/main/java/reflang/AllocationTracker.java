@@ -0,0 +1,145 @@
+package reflang;
+
+import reflang.AST.FreeExp;
+import reflang.AST.RefExp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records which (ref e) expression allocated each heap cell, so that live
+ * cells can be reported by allocation site. The Evaluator only calls into
+ * the tracker when one is installed; without one, ref and free do nothing
+ * extra.
+ * <p>
+ * Live cells are found by scanning the heap when a report is made, so cells
+ * released by the collector or by leaving a region are accounted for
+ * without the tracker having to hear about them.
+ */
+public class AllocationTracker {
+    private static final int MAX_DOUBLE_FREES = 100; // details kept; all are counted
+
+    private final Heap.ArrayHeap _heap;
+    private RefExp[] _sites = new RefExp[1024]; // last allocation site of each location
+    private final Map<RefExp, Integer> _allocations = new IdentityHashMap<>();
+    private final List<String> _double_frees = new ArrayList<>();
+    private int _double_free_count = 0;
+
+    public AllocationTracker(Heap.ArrayHeap heap) {
+        _heap = heap;
+    }
+
+    void allocated(RefExp site, Value result) {
+        if (!(result instanceof Value.RefVal ref)) return; // out of memory
+        int loc = ref.loc();
+        if (loc >= _sites.length) _sites = Arrays.copyOf(_sites, Math.max(loc + 1, _sites.length * 2));
+        _sites[loc] = site;
+        _allocations.merge(site, 1, Integer::sum);
+    }
+
+    /**
+     * Called before (free e) releases loc, to notice frees of cells that are
+     * already free.
+     */
+    void freeing(FreeExp e, Value.RefVal loc) {
+        int l = loc.loc();
+        if (l < 0 || l >= _heap._capacity || !_heap.isFree(l)) return;
+        if (_double_free_count++ < MAX_DOUBLE_FREES)
+            _double_frees.add("%s allocated by %s, freed again by %s".formatted(loc, describe(siteOf(l)), describe(e)));
+    }
+
+    private RefExp siteOf(int loc) {
+        return loc < _sites.length ? _sites[loc] : null;
+    }
+
+    public Report report() {
+        Map<RefExp, Site> sites = new IdentityHashMap<>();
+        List<Site> order = new ArrayList<>();
+        for (int loc = 0; loc < _heap._top; loc++) {
+            Value value = _heap.load(loc);
+            if (value == null) continue;
+            RefExp site = siteOf(loc);
+            Site s = sites.get(site);
+            if (s == null) {
+                s = new Site(describe(site), site == null ? 0 : _allocations.getOrDefault(site, 0));
+                sites.put(site, s);
+                order.add(s);
+            }
+            s.live++;
+            s.bytes += bytes(value);
+        }
+        order.sort((a, b) -> Long.compare(b.bytes, a.bytes));
+        return new Report(order, List.copyOf(_double_frees), _double_free_count);
+    }
+
+    private static String describe(AST.Exp site) {
+        return site == null ? "(unknown site)" : site.origin().accept(new Printer.Formatter(), null);
+    }
+
+    /**
+     * Approximate size of a cell: its slot in the heap plus the shallow size
+     * of the value it holds, assuming compressed references.
+     */
+    static int bytes(Value value) {
+        int object;
+        if (value instanceof Value.NumVal || value instanceof Value.PairVal || value instanceof Value.FunVal) object = 24;
+        else object = 16;
+        return 4 + object;
+    }
+
+    static final class Site {
+        final String description;
+        final int allocations;
+        int live = 0;
+        long bytes = 0;
+
+        Site(String description, int allocations) {
+            this.description = description;
+            this.allocations = allocations;
+        }
+    }
+
+    /**
+     * Cells still allocated, grouped by the (ref e) that allocated them, and
+     * the frees of cells that were already free.
+     */
+    public static class Report {
+        private final List<Site> _sites;
+        private final List<String> _double_frees;
+        private final int _double_free_count;
+
+        Report(List<Site> sites, List<String> double_frees, int double_free_count) {
+            _sites = sites;
+            _double_frees = double_frees;
+            _double_free_count = double_free_count;
+        }
+
+        public int liveCells() {
+            int live = 0;
+            for (Site site : _sites) live += site.live;
+            return live;
+        }
+
+        public int doubleFrees() {
+            return _double_free_count;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder result = new StringBuilder();
+            result.append("Allocations: %d cells never freed%n".formatted(liveCells()));
+            for (Site site : _sites)
+                result.append("  %8d cells %10d bytes %8d allocated  %s%n"
+                        .formatted(site.live, site.bytes, site.allocations, site.description));
+            result.append("Double frees: %d%n".formatted(_double_free_count));
+            for (String double_free : _double_frees)
+                result.append("  ").append(double_free).append(System.lineSeparator());
+            if (_double_free_count > _double_frees.size())
+                result.append("  ... %d more%n".formatted(_double_free_count - _double_frees.size()));
+            return result.toString();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package reflang;
+
+import reflang.AST.Program;
+import reflang.Env.GlobalEnv;
+
+import java.util.LinkedHashMap;
+import java.util.function.Function;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micro-benchmarks for the interpreter. Run all of them with
+ * {@code ./gradlew benchmark}, or pass benchmark names as arguments to run
+ * only those.
+ */
+public class Benchmark {
+
+    private static final Map<String, Runnable> BENCHMARKS = new LinkedHashMap<>();
+
+    static {
+        BENCHMARKS.put("shared-globals", Benchmark::sharedGlobals);
+        BENCHMARKS.put("heap-contention", Benchmark::heapContention);
+        BENCHMARKS.put("engines", Benchmark::engines);
+        BENCHMARKS.put("tail-calls", Benchmark::tailCalls);
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) args = BENCHMARKS.keySet().toArray(new String[0]);
+        for (String name : args) {
+            Runnable benchmark = BENCHMARKS.get(name);
+            if (benchmark == null) {
+                System.err.println("Unknown benchmark: " + name + ", expected one of " + BENCHMARKS.keySet());
+                continue;
+            }
+            System.out.println("== " + name);
+            benchmark.run();
+        }
+    }
+
+    // Never closed, since closing a Reader closes System.in. Parsing keeps
+    // no state in the Reader, so threads can share it.
+    private static final Reader READER = new Reader();
+
+    static Program parse(String programText) {
+        return READER.parse(programText);
+    }
+
+    /**
+     * Runs {@code work} on each of {@code threads} threads at once and
+     * returns the wall-clock time in nanoseconds until all of them finish.
+     */
+    static long runConcurrently(int threads, Runnable work) {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    work.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            t.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Threads evaluate recursive calls to functions defined once in a shared
+     * global environment. Without contention on environment lookups the
+     * throughput grows with the number of threads.
+     */
+    static void sharedGlobals() {
+        GlobalEnv globals = new GlobalEnv();
+        new Evaluator(globals).valueOf(parse("""
+                (define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))
+                (define sum (lambda (n acc) (if (= n 0) acc (sum (- n 1) (+ acc n)))))
+                """));
+        int iterations = 200;
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            AtomicLong checksum = new AtomicLong();
+            Runnable work = () -> {
+                Evaluator eval = new Evaluator(globals);
+                for (int i = 0; i < iterations; i++) {
+                    Value v = eval.valueOf(parse("(+ (fib 15) (sum 100 0))"));
+                    checksum.addAndGet((long) ((Value.NumVal) v).v());
+                }
+            };
+            runConcurrently(threads, work); // warm up
+            checksum.set(0);
+            long nanos = runConcurrently(threads, work);
+            double opsPerSecond = threads * iterations / (nanos / 1e9);
+            System.out.printf("threads=%d  %.0f programs/s  (%.0f per thread, checksum %d)%n",
+                    threads, opsPerSecond, opsPerSecond / threads, checksum.get());
+        }
+    }
+
+    /**
+     * Threads share one concurrent heap. Each increments a shared counter
+     * with a compare-and-set retry loop and allocates and frees cells of its
+     * own. The final counter value is checked against the expected total.
+     */
+    static void heapContention() {
+        int iterations = 200;
+        int increments = 100;
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            GlobalEnv globals = new GlobalEnv();
+            Heap heap = new Heap.ConcurrentHeap(1 << 20);
+            new Evaluator(globals, heap).valueOf(parse("""
+                    (define counter (ref 0))
+                    (define incr (lambda (n)
+                      (if (= n 0) 0
+                        (let ((old (deref counter)))
+                          (if (cas! counter old (+ old 1)) (incr (- n 1)) (incr n))))))
+                    (define churn (lambda (n)
+                      (if (= n 0) 0
+                        (let ((r (ref n)))
+                          (let ((v (deref r)) (u (free r))) (churn (- n 1)))))))
+                    """));
+            Program program = parse("(+ (incr %d) (churn %d))".formatted(increments, increments));
+            Runnable work = () -> {
+                Evaluator eval = new Evaluator(globals, heap);
+                for (int i = 0; i < iterations; i++)
+                    eval.valueOf(program);
+            };
+            long nanos = runConcurrently(threads, work);
+            Value count = new Evaluator(globals, heap).valueOf(parse("(deref counter)"));
+            long expected = (long) threads * iterations * increments;
+            double opsPerSecond = threads * iterations / (nanos / 1e9);
+            System.out.printf("threads=%d  %.0f programs/s  (%.0f per thread, counter %s, expected %d)%n",
+                    threads, opsPerSecond, opsPerSecond / threads, count, expected);
+        }
+    }
+
+    /**
+     * Runs the same recursive numeric program on each execution engine.
+     */
+    static void engines() {
+        Map<String, Function<GlobalEnv, Evaluator>> engines = new LinkedHashMap<>();
+        engines.put("tree", Evaluator::new);
+        engines.put("compiled", globals -> new CompiledEvaluator(globals, new Heap.Heap16Bit(), null));
+        engines.put("stack", globals -> new StackEvaluator(globals, new Heap.Heap16Bit(), null));
+        engines.put("tree+jit", globals -> {
+            Evaluator eval = new Evaluator(globals);
+            eval.jit = new Jit(globals, Jit.DEFAULT_THRESHOLD);
+            return eval;
+        });
+        Program definitions = parse("""
+                (define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))
+                """);
+        Program program = parse("(fib 22)");
+        int iterations = 100;
+        for (Map.Entry<String, Function<GlobalEnv, Evaluator>> engine : engines.entrySet()) {
+            Evaluator eval = engine.getValue().apply(new GlobalEnv());
+            eval.valueOf(definitions);
+            for (int i = 0; i < iterations; i++) eval.valueOf(program); // warm up
+            long start = System.nanoTime();
+            Value result = null;
+            for (int i = 0; i < iterations; i++) result = eval.valueOf(program);
+            double millis = (System.nanoTime() - start) / 1e6 / iterations;
+            System.out.printf("%-10s %8.2f ms per (fib 22)  (result %s)%n", engine.getKey(), millis, result);
+        }
+    }
+
+    /**
+     * Times non-tail calls, which still use the Java stack, and a tail
+     * recursive loop far deeper than the Java stack would allow, on both
+     * engines. (fib 22) is also timed with tail calls left unmarked, so
+     * every call takes the direct path, to show what the trampoline costs.
+     */
+    static void tailCalls() {
+        Map<String, Function<GlobalEnv, Evaluator>> engines = new LinkedHashMap<>();
+        engines.put("tree", Evaluator::new);
+        engines.put("compiled", globals -> new CompiledEvaluator(globals, new Heap.Heap16Bit(), null));
+        Program definitions = parse("""
+                (define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))
+                (define loop (lambda (n acc) (if (= n 0) acc (loop (- n 1) (+ acc 1)))))
+                """);
+        Program fib = parse("(fib 22)");
+        Program loop = parse("(loop 1000000 0)");
+        int iterations = 20;
+        for (Map.Entry<String, Function<GlobalEnv, Evaluator>> engine : engines.entrySet()) {
+            Evaluator eval = engine.getValue().apply(new GlobalEnv());
+            Evaluator direct = engine.getValue().apply(new GlobalEnv());
+            direct.resolver.tail_calls = false;
+            eval.valueOf(definitions);
+            direct.valueOf(definitions);
+            // Warm up both before timing either, as the first one timed would
+            // otherwise also pay for the JVM compiling the shared engine code.
+            for (int i = 0; i < iterations; i++) {
+                eval.valueOf(fib);
+                eval.valueOf(loop);
+                direct.valueOf(fib); // the loop overflows the Java stack without tail calls
+            }
+            time(engine.getKey(), eval, "(fib 22)", fib, iterations);
+            time(engine.getKey() + " direct", direct, "(fib 22)", fib, iterations);
+            time(engine.getKey(), eval, "(loop 1000000 0)", loop, iterations);
+        }
+    }
+
+    private static void time(String label, Evaluator eval, String name, Program program, int iterations) {
+        long start = System.nanoTime();
+        Value result = null;
+        for (int i = 0; i < iterations; i++) result = eval.valueOf(program);
+        double millis = (System.nanoTime() - start) / 1e6 / iterations;
+        System.out.printf("%-16s %8.2f ms per %s  (result %s)%n", label, millis, name, result);
+    }
+}
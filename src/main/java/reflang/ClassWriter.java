@@ -0,0 +1,289 @@
+package reflang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for JVM class files, with just the constants and
+ * instructions the Jit needs. Classes are written in version 49 (Java 5)
+ * format, which the JVM verifies without stack map frames, so branches need
+ * no type information.
+ */
+final class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream pool_bytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(pool_bytes);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int pool_count = 1;
+
+    private final int this_class;
+    private final int super_class;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<MethodWriter> methods = new ArrayList<>();
+
+    ClassWriter(String name, String super_name) {
+        this_class = classRef(name);
+        super_class = classRef(super_name);
+    }
+
+    private int constant(String key, int slots, IOAction write) {
+        Integer index = constants.get(key);
+        if (index != null) return index;
+        try {
+            write.run();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        constants.put(key, pool_count);
+        pool_count += slots;
+        return pool_count - slots;
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    int utf8(String s) {
+        return constant("U" + s, 1, () -> {
+            pool.writeByte(1);
+            pool.writeUTF(s);
+        });
+    }
+
+    int classRef(String name) {
+        int utf8 = utf8(name);
+        return constant("C" + name, 1, () -> {
+            pool.writeByte(7);
+            pool.writeShort(utf8);
+        });
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int n = utf8(name), d = utf8(descriptor);
+        return constant("N" + name + ":" + descriptor, 1, () -> {
+            pool.writeByte(12);
+            pool.writeShort(n);
+            pool.writeShort(d);
+        });
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        int c = classRef(owner), nt = nameAndType(name, descriptor);
+        return constant(tag + owner + "." + name + ":" + descriptor, 1, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(c);
+            pool.writeShort(nt);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return member(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return member(10, owner, name, descriptor);
+    }
+
+    int doubleConstant(double value) {
+        return constant("D" + Double.doubleToRawLongBits(value), 2, () -> {
+            pool.writeByte(6);
+            pool.writeDouble(value);
+        });
+    }
+
+    int longConstant(long value) {
+        return constant("J" + value, 2, () -> {
+            pool.writeByte(5);
+            pool.writeLong(value);
+        });
+    }
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    MethodWriter method(int access, String name, String descriptor, int max_locals) {
+        MethodWriter method = new MethodWriter(access, utf8(name), utf8(descriptor), max_locals);
+        methods.add(method);
+        return method;
+    }
+
+    byte[] toByteArray() {
+        int code_attribute = utf8("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(pool_count);
+            pool_bytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(this_class);
+            out.writeShort(super_class);
+            out.writeShort(0); // interfaces
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for (MethodWriter method : methods) method.writeTo(out, code_attribute);
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A branch target. Branches to a label that is not placed yet are
+     * patched when it is.
+     */
+    static final class Label {
+        private int position = -1;
+        private int stack = -1; // operand stack depth at the label
+        private final List<int[]> uses = new ArrayList<>(); // {branch opcode position, offset position}
+    }
+
+    final class MethodWriter {
+        private final int access, name, descriptor;
+        private int max_locals;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int stack = 0;
+        private int max_stack = 0;
+        private final List<Label> labels = new ArrayList<>();
+
+        private MethodWriter(int access, int name, int descriptor, int max_locals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.max_locals = max_locals;
+        }
+
+        /**
+         * Sets the number of local variable slots, for methods whose locals
+         * are only known once their code is generated.
+         */
+        void maxLocals(int max_locals) {
+            this.max_locals = max_locals;
+        }
+
+        private void adjust(int delta) {
+            stack += delta;
+            max_stack = Math.max(max_stack, stack);
+        }
+
+        private void u1(int b) {
+            code.write(b);
+        }
+
+        private void u2(int s) {
+            code.write(s >> 8);
+            code.write(s);
+        }
+
+        /**
+         * Emits an instruction without operands that changes the stack depth
+         * by delta slots.
+         */
+        MethodWriter op(int opcode, int delta) {
+            u1(opcode);
+            adjust(delta);
+            return this;
+        }
+
+        MethodWriter local(int opcode, int index, int delta) {
+            if (index > 255) {
+                u1(0xC4); // wide
+                u1(opcode);
+                u2(index);
+            } else {
+                u1(opcode);
+                u1(index);
+            }
+            adjust(delta);
+            return this;
+        }
+
+        MethodWriter constantOp(int opcode, int index, int delta) {
+            u1(opcode);
+            u2(index);
+            adjust(delta);
+            return this;
+        }
+
+        MethodWriter intConstant(int value) {
+            if (value >= -1 && value <= 5) return op(0x03 + value, 1); // iconst_<n>
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(0x10); // bipush
+                u1(value);
+            } else {
+                u1(0x11); // sipush
+                u2(value);
+            }
+            adjust(1);
+            return this;
+        }
+
+        MethodWriter branch(int opcode, int delta, Label target) {
+            int at = code.size();
+            u1(opcode);
+            adjust(delta);
+            if (target.stack < 0) target.stack = stack;
+            target.uses.add(new int[]{at, code.size()});
+            u2(0);
+            if (!labels.contains(target)) labels.add(target);
+            return this;
+        }
+
+        /**
+         * Places label here. After an unconditional jump the stack depth is
+         * taken from the branches that target the label.
+         */
+        MethodWriter mark(Label label, boolean reachable) {
+            label.position = code.size();
+            if (!reachable && label.stack >= 0) stack = label.stack;
+            if (!labels.contains(label)) labels.add(label);
+            return this;
+        }
+
+        private void writeTo(DataOutputStream out, int code_attribute) throws IOException {
+            byte[] bytes = code.toByteArray();
+            for (Label label : labels) {
+                if (label.position < 0) throw new IllegalStateException("Label never placed");
+                for (int[] use : label.uses) {
+                    int offset = label.position - use[0];
+                    if (offset != (short) offset) throw new IllegalStateException("Method too large");
+                    bytes[use[1]] = (byte) (offset >> 8);
+                    bytes[use[1] + 1] = (byte) offset;
+                }
+            }
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(code_attribute);
+            out.writeInt(12 + bytes.length);
+            out.writeShort(max_stack);
+            out.writeShort(max_locals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package reflang;
+
+import reflang.Env.FrameEnv;
+import reflang.Env.GlobalEnv;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * A mark-sweep garbage collector for the cells of an ArrayHeap.
+ * <p>
+ * The roots are the values bound in the global environment plus a shadow
+ * stack maintained by the Evaluator, which holds every frame that is still
+ * in use and every intermediate value that is kept while another
+ * subexpression is evaluated. Marking follows ref cells, pairs, and the
+ * frames captured by closures; sweeping returns every unmarked cell to the
+ * heap's free list.
+ */
+public class Collector {
+
+    public enum Mode {
+        /**
+         * Cells are only reclaimed by (free e); no collection takes place.
+         */
+        MANUAL,
+        /**
+         * Unreachable cells are collected automatically, and (free e) still
+         * releases a cell immediately.
+         */
+        AUTOMATIC,
+        /**
+         * Unreachable cells are collected automatically, and (free e) only
+         * hints that garbage is available, making the next collection happen
+         * sooner. Cells are never released while still reachable.
+         */
+        HINT
+    }
+
+    static final int DEFAULT_THRESHOLD = 4096;
+    private static final int HINTS_PER_COLLECTION = 64;
+
+    private final Heap.ArrayHeap _heap;
+    private final GlobalEnv _globals;
+    private final Mode _mode;
+    private final int _min_threshold;
+
+    private Object[] _roots = new Object[64]; // Values, Envs, and Value[]s
+    private int _root_count = 0;
+    private final Set<RootSet> _root_sets = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private int _allocations = 0; // since the last collection
+    private int _threshold;
+    private int _hints = 0;
+
+    private final Stats _stats = new Stats();
+
+    public Collector(Heap.ArrayHeap heap, GlobalEnv globals, Mode mode, int threshold) {
+        _heap = heap;
+        _globals = globals;
+        _mode = mode;
+        _min_threshold = threshold;
+        _threshold = threshold;
+    }
+
+    public Mode mode() {
+        return _mode;
+    }
+
+    public Stats stats() {
+        return _stats;
+    }
+
+    void push(Object root) {
+        if (_root_count == _roots.length) _roots = Arrays.copyOf(_roots, _root_count * 2);
+        _roots[_root_count++] = root;
+    }
+
+    void pop(int count) {
+        _root_count -= count;
+        Arrays.fill(_roots, _root_count, _root_count + count, null);
+    }
+
+    /**
+     * Values held outside the shadow stack of roots, such as the stacks of a
+     * suspended StackEvaluator.Machine.
+     */
+    interface RootSet {
+        void forEachRoot(Consumer<Object> action);
+    }
+
+    void addRoots(RootSet roots) {
+        _root_sets.add(roots);
+    }
+
+    void removeRoots(RootSet roots) {
+        _root_sets.remove(roots);
+    }
+
+    void clearRoots() {
+        Arrays.fill(_roots, 0, _root_count, null);
+        _root_count = 0;
+    }
+
+    /**
+     * Called before each allocation; collects if enough cells have been
+     * allocated (or freed as a hint) since the last collection.
+     * The value about to be stored in the new cell is treated as a root.
+     */
+    void beforeAllocation(Value pending) {
+        if (++_allocations >= _threshold || _hints >= HINTS_PER_COLLECTION) collect(pending);
+    }
+
+    void hint() {
+        _hints++;
+    }
+
+    /**
+     * Collects all cells not reachable from the roots or from extra_root.
+     */
+    void collect(Value extra_root) {
+        long start = System.nanoTime();
+        int top = _heap._top;
+        long[] marks = new long[(top >> 6) + 1];
+        Marker marker = new Marker(marks);
+        marker.markFrom(extra_root);
+
+        int collected = 0;
+        for (int loc = 0; loc < top; loc++) {
+            if ((marks[loc >> 6] & (1L << loc)) == 0 && !_heap.isFree(loc)) {
+                _heap.release(loc);
+                collected++;
+            }
+        }
+        int live = _heap.live();
+        _allocations = 0;
+        _hints = 0;
+        // Let the heap double before the next collection, and never collect
+        // more often than the cost of tracing the roots can be amortized.
+        _threshold = Math.max(_min_threshold, Math.max(live, marker.traced));
+        _stats.record(System.nanoTime() - start, collected, live);
+    }
+
+    private final class Marker {
+        private final long[] marks;
+        private final ArrayDeque<Object> work = new ArrayDeque<>();
+        private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        int traced = 0;
+
+        Marker(long[] marks) {
+            this.marks = marks;
+        }
+
+        void markFrom(Value extra_root) {
+            // Bindings and cells still in a restored snapshot are traced in the
+            // file, so that collecting does not build their values.
+            _globals.forEachCell(cell -> add(cell.valueIfLoaded()));
+            if (_heap._image != null) _heap._image.forEachUnreadRef(this::mark);
+            for (int i = 0; i < _root_count; i++) add(_roots[i]);
+            for (RootSet roots : _root_sets) roots.forEachRoot(this::add);
+            add(extra_root);
+            while (!work.isEmpty())
+                trace(work.pop());
+        }
+
+        private void add(Object o) {
+            if (o != null) work.push(o);
+        }
+
+        private void mark(int loc) {
+            if (loc < 0 || loc >= _heap._top) return;
+            long bit = 1L << loc;
+            if ((marks[loc >> 6] & bit) != 0) return;
+            marks[loc >> 6] |= bit;
+            add(_heap.get(loc)); // null for a cell still in a snapshot, which traces it instead
+        }
+
+        private void trace(Object o) {
+            traced++;
+            if (o instanceof Value.RefVal ref) {
+                mark(ref.loc());
+            } else if (o instanceof Value.PairVal pair) {
+                if (visited.add(pair)) {
+                    add(pair.fst());
+                    add(pair.snd());
+                }
+            } else if (o instanceof Value.FunVal fun) {
+                add(fun.env());
+            } else if (o instanceof FrameEnv frame) {
+                if (visited.add(frame)) {
+                    for (Value v : frame.values()) add(v);
+                    add(frame.saved_env());
+                }
+            } else if (o instanceof Value[] values) {
+                for (Value v : values) add(v);
+            }
+        }
+    }
+
+    /**
+     * Pause times and reclaimed cells over the lifetime of a collector.
+     */
+    public static class Stats {
+        private int _collections = 0;
+        private long _total_pause = 0;
+        private long _max_pause = 0;
+        private long _collected = 0;
+        private int _last_live = 0;
+
+        void record(long pause, int collected, int live) {
+            _collections++;
+            _total_pause += pause;
+            _max_pause = Math.max(_max_pause, pause);
+            _collected += collected;
+            _last_live = live;
+        }
+
+        public int collections() {
+            return _collections;
+        }
+
+        public long collected() {
+            return _collected;
+        }
+
+        @Override
+        public String toString() {
+            return "GC: %d collections, %d cells collected, %d cells live after last collection, pause total %.3f ms, max %.3f ms, mean %.3f ms"
+                    .formatted(_collections, _collected, _last_live, _total_pause / 1e6, _max_pause / 1e6,
+                            _collections == 0 ? 0.0 : _total_pause / 1e6 / _collections);
+        }
+    }
+}
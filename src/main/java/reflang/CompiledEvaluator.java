@@ -0,0 +1,1071 @@
+package reflang;
+
+import reflang.Env.FrameEnv;
+import reflang.Env.GlobalEnv;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static reflang.AST.*;
+
+/**
+ * An evaluator that compiles each program once into a tree of executable
+ * nodes and then runs the nodes, instead of walking the AST with a visitor.
+ * Every node keeps its children and constants in final fields and arrays,
+ * so evaluation does no double dispatch and no list lookups, and the JIT
+ * sees small, monomorphic execute methods it can inline.
+ * <p>
+ * The nodes follow the Evaluator step by step, so both engines produce the
+ * same values and the same errors. Heap allocation, garbage collection and
+ * allocation tracking are shared with the Evaluator.
+ */
+public class CompiledEvaluator extends Evaluator {
+
+    private final Printer.Formatter ts = new Printer.Formatter();
+    private final Compiler compiler = new Compiler();
+    private final Map<Exp, Node> foreign_bodies = new IdentityHashMap<>(); // bodies of closures made elsewhere
+
+    public CompiledEvaluator(GlobalEnv globals, Heap heap, Collector gc) {
+        super(globals, heap, gc);
+    }
+
+    @Override
+    Value valueOf(Program p) {
+        p = prepare(p);
+        Node[] decls = new Node[p.decls().size()];
+        Symbol[] names = new Symbol[decls.length];
+        for (int i = 0; i < decls.length; i++) {
+            names[i] = p.decls().get(i).symbol();
+            decls[i] = compiler.compile(p.decls().get(i).value_exp());
+        }
+        Node body = compiler.compile(p.e());
+        try {
+            for (int i = 0; i < decls.length; i++)
+                globals().extend(names[i], decls[i].execute(globals()));
+            return body.execute(globals());
+        } catch (ClassCastException e) {
+            return new Value.DynamicError(e.getMessage());
+        }
+    }
+
+    /**
+     * A closure created by compiled code, which carries its compiled body
+     * alongside the AST. Other evaluators see it as an ordinary FunVal.
+     */
+    static final class Closure extends Value.FunVal {
+        final CompiledEvaluator owner;
+        final Node code;
+
+        Closure(Env env, Symbol[] formals, Exp body, CompiledEvaluator owner, Node code) {
+            super(env, formals, body);
+            this.owner = owner;
+            this.code = code;
+        }
+    }
+
+    /**
+     * Returns the compiled body of fun. Closures made by another evaluator,
+     * e.g. one sharing the global environment, have their bodies compiled
+     * again here, because nodes use the heap of the evaluator that made them.
+     */
+    private Node code(Value.FunVal fun) {
+        if (fun instanceof Closure closure && closure.owner == this) return closure.code;
+        return foreign_bodies.computeIfAbsent(fun.body(), compiler::compile);
+    }
+
+    @Override
+    Value body(Value.FunVal fun, Object code, Env fun_env) {
+        return (code instanceof Node node ? node : code(fun)).execute(fun_env);
+    }
+
+    /**
+     * Translates a resolved AST into nodes.
+     */
+    private final class Compiler implements Visitor<Node> {
+
+        Node compile(Exp e) {
+            return e.accept(this, null);
+        }
+
+        Node[] compileAll(List<Exp> exps) {
+            Node[] nodes = new Node[exps.size()];
+            for (int i = 0; i < nodes.length; i++)
+                nodes[i] = compile(exps.get(i));
+            return nodes;
+        }
+
+        @Override
+        public Node visit(Program p, Env env) {
+            throw new UnsupportedOperationException("Programs are compiled by valueOf");
+        }
+
+        @Override
+        public Node visit(AddExp e, Env env) {
+            Node[] operands = compileAll(e.all());
+            if (operands.length == 2) return new Add2Node(operands[0], operands[1]);
+            return new AddNode(operands);
+        }
+
+        @Override
+        public Node visit(UnitExp e, Env env) {
+            return new ConstNode(Value.UnitVal.UNIT);
+        }
+
+        @Override
+        public Node visit(NumExp e, Env env) {
+            return new NumNode(e.value());
+        }
+
+        @Override
+        public Node visit(BoolExp e, Env env) {
+            return new ConstNode(Value.BoolVal.of(e.b()));
+        }
+
+        @Override
+        public Node visit(DivExp e, Env env) {
+            Node[] operands = compileAll(e.all());
+            if (operands.length == 1) return new NumberNode(operands[0]);
+            if (operands.length == 2) return new Div2Node(operands[0], operands[1]);
+            return new DivNode(operands);
+        }
+
+        @Override
+        public Node visit(MultExp e, Env env) {
+            Node[] operands = compileAll(e.all());
+            if (operands.length == 1) return new NumberNode(operands[0]);
+            if (operands.length == 2) return new Mult2Node(operands[0], operands[1]);
+            return new MultNode(operands);
+        }
+
+        @Override
+        public Node visit(SubExp e, Env env) {
+            Node[] operands = compileAll(e.all());
+            if (operands.length == 1) return new NumberNode(operands[0]);
+            if (operands.length == 2) return new Sub2Node(operands[0], operands[1]);
+            return new SubNode(operands);
+        }
+
+        @Override
+        public Node visit(VarExp e, Env env) {
+            if (e.depth() < 0) return new GlobalNode(e.symbol());
+            if (e.depth() == 0) return new SlotNode(e.slot());
+            return new LocalNode(e.depth(), e.slot());
+        }
+
+        @Override
+        public Node visit(LetExp e, Env env) {
+            return new LetNode(e.symbols(), compileAll(e.value_exps()), compile(e.body()));
+        }
+
+        @Override
+        public Node visit(DefineDecl d, Env env) {
+            throw new UnsupportedOperationException("Definitions are compiled by valueOf");
+        }
+
+        @Override
+        public Node visit(LambdaExp e, Env env) {
+            return new LambdaNode(e, compile(e.body()));
+        }
+
+        @Override
+        public Node visit(CallExp e, Env env) {
+            return new CallNode(e, compile(e.operator()), compileAll(e.operands()));
+        }
+
+        @Override
+        public Node visit(IfExp e, Env env) {
+            if (e.conditional()._type == TypeChecker.Type.BOOLEAN)
+                return new TestNode(compile(e.conditional()), compile(e.then_exp()), compile(e.else_exp()));
+            return new IfNode(e, compile(e.conditional()), compile(e.then_exp()), compile(e.else_exp()));
+        }
+
+        @Override
+        public Node visit(LessExp e, Env env) {
+            return new LessNode(compile(e.first_exp()), compile(e.second_exp()));
+        }
+
+        @Override
+        public Node visit(EqualExp e, Env env) {
+            return new EqualNode(compile(e.first_exp()), compile(e.second_exp()));
+        }
+
+        @Override
+        public Node visit(GreaterExp e, Env env) {
+            return new GreaterNode(compile(e.first_exp()), compile(e.second_exp()));
+        }
+
+        @Override
+        public Node visit(CarExp e, Env env) {
+            return new CarNode(compile(e.arg()));
+        }
+
+        @Override
+        public Node visit(CdrExp e, Env env) {
+            return new CdrNode(compile(e.arg()));
+        }
+
+        @Override
+        public Node visit(ConsExp e, Env env) {
+            return new ConsNode(compile(e.fst()), compile(e.snd()));
+        }
+
+        @Override
+        public Node visit(ListExp e, Env env) {
+            return new ListNode(compileAll(e.elems()));
+        }
+
+        @Override
+        public Node visit(NullExp e, Env env) {
+            return new NullNode(compile(e.arg()));
+        }
+
+        @Override
+        public Node visit(RefExp e, Env env) {
+            return new RefNode(e, compile(e.value_exp()));
+        }
+
+        @Override
+        public Node visit(AssignExp e, Env env) {
+            return new AssignNode(compile(e.lhs_exp()), compile(e.rhs_exp()));
+        }
+
+        @Override
+        public Node visit(DerefExp e, Env env) {
+            return new DerefNode(compile(e.loc_exp()));
+        }
+
+        @Override
+        public Node visit(FreeExp e, Env env) {
+            return new FreeNode(e, compile(e.value_exp()));
+        }
+
+        @Override
+        public Node visit(RefEqExp e, Env env) {
+            return new RefEqNode(compile(e.exp1()), compile(e.exp2()));
+        }
+
+        @Override
+        public Node visit(CasExp e, Env env) {
+            return new CasNode(compile(e.loc_exp()), compile(e.expected_exp()), compile(e.new_exp()));
+        }
+
+        @Override
+        public Node visit(RegionExp e, Env env) {
+            return new RegionNode(compile(e.body()));
+        }
+
+        @Override
+        public Node visit(LocalRefExp e, Env env) {
+            return compile(e.value_exp());
+        }
+
+        @Override
+        public Node visit(LocalDerefExp e, Env env) {
+            return compile(e.var());
+        }
+
+        @Override
+        public Node visit(LocalAssignExp e, Env env) {
+            return new LocalAssignNode(e.var().depth(), e.var().slot(), compile(e.rhs_exp()));
+        }
+
+        @Override
+        public Node visit(InlinedCallExp e, Env env) {
+            return new InlinedCallNode(compile(e.call().operator()), e.formals(), compile(e.inlined()), compile(e.call()));
+        }
+
+        @Override
+        public Node visit(RefUpdateExp e, Env env) {
+            List<Exp> operands = e.rhs_exp().all();
+            return new RefUpdateNode(compile(e.var()), e.subtract(), compileAll(operands.subList(1, operands.size())));
+        }
+
+        @Override
+        public Node visit(LocalUpdateExp e, Env env) {
+            List<Exp> operands = e.rhs_exp().all();
+            return new LocalUpdateNode(e.var().depth(), e.var().slot(), e.subtract(), compileAll(operands.subList(1, operands.size())));
+        }
+
+        @Override
+        public Node visit(DerefCarExp e, Env env) {
+            return new DerefCarNode(compile(e.arg()));
+        }
+    }
+
+    /**
+     * An executable node. Nodes are inner classes so that they can reach the
+     * heap, the collector's roots and the global environment directly.
+     * <p>
+     * A parent that needs a number, a boolean or a pair calls the typed
+     * execute method of its operand. By default it checks the value, like
+     * the Evaluator; nodes that always produce that type override it to
+     * return their result without a check, and a TestNode, made for an if
+     * whose condition the TypeChecker proved to be a boolean, passes the
+     * typed call on to its branches.
+     */
+    abstract class Node {
+        abstract Value execute(Env env);
+
+        Value.NumVal executeNumber(Env env) {
+            return (Value.NumVal) execute(env);
+        }
+
+        boolean executeBoolean(Env env) {
+            return ((Value.BoolVal) execute(env)).v();
+        }
+
+        Value.PairVal executePair(Env env) {
+            return (Value.PairVal) execute(env);
+        }
+    }
+
+    final class ConstNode extends Node {
+        private final Value value;
+
+        ConstNode(Value value) {
+            this.value = value;
+        }
+
+        Value execute(Env env) {
+            return value;
+        }
+    }
+
+    final class NumNode extends Node {
+        private final Value.NumVal value;
+
+        NumNode(Value.NumVal value) {
+            this.value = value;
+        }
+
+        Value execute(Env env) {
+            return value;
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            return value;
+        }
+    }
+
+    final class AddNode extends Node {
+        private final Node[] operands;
+
+        AddNode(Node[] operands) {
+            this.operands = operands;
+        }
+
+        Value execute(Env env) {
+            return executeNumber(env);
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            Value.NumVal result = Value.IntVal.ZERO;
+            for (Node operand : operands)
+                result = Value.NumVal.add(result, operand.executeNumber(env));
+            return result;
+        }
+    }
+
+    final class SubNode extends Node {
+        private final Node[] operands;
+
+        SubNode(Node[] operands) {
+            this.operands = operands;
+        }
+
+        Value execute(Env env) {
+            return executeNumber(env);
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            Value.NumVal result = operands[0].executeNumber(env);
+            for (int i = 1; i < operands.length; i++)
+                result = Value.NumVal.sub(result, operands[i].executeNumber(env));
+            return result;
+        }
+    }
+
+    final class MultNode extends Node {
+        private final Node[] operands;
+
+        MultNode(Node[] operands) {
+            this.operands = operands;
+        }
+
+        Value execute(Env env) {
+            return executeNumber(env);
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            Value.NumVal result = Value.IntVal.ONE;
+            for (Node operand : operands)
+                result = Value.NumVal.mul(result, operand.executeNumber(env));
+            return result;
+        }
+    }
+
+    final class DivNode extends Node {
+        private final Node[] operands;
+
+        DivNode(Node[] operands) {
+            this.operands = operands;
+        }
+
+        Value execute(Env env) {
+            return executeNumber(env);
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            double result = operands[0].executeNumber(env).v();
+            for (int i = 1; i < operands.length; i++)
+                result = result / operands[i].executeNumber(env).v();
+            return Value.NumVal.of(result);
+        }
+    }
+
+    // Arithmetic with one or two operands, the common cases, needs no loop.
+
+    /**
+     * (- e), (/ e) or (* e), whose value is the number e evaluates to.
+     */
+    final class NumberNode extends Node {
+        private final Node operand;
+
+        NumberNode(Node operand) {
+            this.operand = operand;
+        }
+
+        Value execute(Env env) {
+            return executeNumber(env);
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            return operand.executeNumber(env);
+        }
+    }
+
+    final class Add2Node extends Node {
+        private final Node first;
+        private final Node second;
+
+        Add2Node(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        Value execute(Env env) {
+            return executeNumber(env);
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            Value.NumVal x = first.executeNumber(env);
+            Value.NumVal y = second.executeNumber(env);
+            if (x instanceof Value.IntVal && y instanceof Value.IntVal) return Value.NumVal.add(x, y);
+            return Value.NumVal.of(0 + x.v() + y.v()); // starting from 0 like AddNode, so (+ -0.0 -0.0) is 0.0
+        }
+    }
+
+    final class Sub2Node extends Node {
+        private final Node first;
+        private final Node second;
+
+        Sub2Node(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        Value execute(Env env) {
+            return executeNumber(env);
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            Value.NumVal x = first.executeNumber(env);
+            Value.NumVal y = second.executeNumber(env);
+            return Value.NumVal.sub(x, y);
+        }
+    }
+
+    final class Mult2Node extends Node {
+        private final Node first;
+        private final Node second;
+
+        Mult2Node(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        Value execute(Env env) {
+            return executeNumber(env);
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            Value.NumVal x = first.executeNumber(env);
+            Value.NumVal y = second.executeNumber(env);
+            return Value.NumVal.mul(x, y);
+        }
+    }
+
+    final class Div2Node extends Node {
+        private final Node first;
+        private final Node second;
+
+        Div2Node(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        Value execute(Env env) {
+            return executeNumber(env);
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            double x = first.executeNumber(env).v();
+            double y = second.executeNumber(env).v();
+            return Value.NumVal.of(x / y);
+        }
+    }
+
+    /**
+     * A variable bound in the innermost frame.
+     */
+    final class SlotNode extends Node {
+        private final int slot;
+
+        SlotNode(int slot) {
+            this.slot = slot;
+        }
+
+        Value execute(Env env) {
+            return ((FrameEnv) env).values()[slot];
+        }
+    }
+
+    final class LocalNode extends Node {
+        private final int depth;
+        private final int slot;
+
+        LocalNode(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        Value execute(Env env) {
+            return ((FrameEnv) env).get(depth, slot);
+        }
+    }
+
+    final class GlobalNode extends Node {
+        private final Symbol name;
+        private GlobalEnv.Cell cell; // looked up on first use
+
+        GlobalNode(Symbol name) {
+            this.name = name;
+        }
+
+        Value execute(Env env) {
+            GlobalEnv.Cell c = cell;
+            if (c == null) cell = c = globals().cell(name);
+            return c.value();
+        }
+    }
+
+    final class LetNode extends Node {
+        private final Symbol[] names;
+        private final Node[] value_nodes;
+        private final Node body;
+
+        LetNode(Symbol[] names, Node[] value_nodes, Node body) {
+            this.names = names;
+            this.value_nodes = value_nodes;
+            this.body = body;
+        }
+
+        Value execute(Env env) {
+            Value[] values = new Value[value_nodes.length];
+            Env new_env = new FrameEnv(env, names, values);
+            root(new_env);
+            for (int i = 0; i < values.length; i++)
+                values[i] = value_nodes[i].execute(env);
+            Value result = body.execute(new_env);
+            unroot(1);
+            return result;
+        }
+    }
+
+    final class LambdaNode extends Node {
+        private final LambdaExp exp;
+        private final Symbol[] formals;
+        private final Symbol[] free;
+        private final int[] depths;
+        private final int[] slots;
+        private final Node body;
+
+        LambdaNode(LambdaExp exp, Node body) {
+            this.exp = exp;
+            this.formals = exp.symbols();
+            this.free = exp.free();
+            this.depths = exp.free_depths();
+            this.slots = exp.free_slots();
+            this.body = body;
+        }
+
+        Value execute(Env env) {
+            Value[] captured = new Value[depths.length];
+            for (int i = 0; i < captured.length; i++)
+                captured[i] = ((FrameEnv) env).get(depths[i], slots[i]);
+            return new Closure(new FrameEnv(globals(), free, captured), formals, exp.body(), CompiledEvaluator.this, body);
+        }
+    }
+
+    final class CallNode extends Node {
+        private final CallExp exp;
+        private final Node operator;
+        private final Node[] operands;
+
+        private final CallCache cache = new CallCache(); // compiled bodies of the callees, for this evaluator
+
+        CallNode(CallExp exp, Node operator, Node[] operands) {
+            this.exp = exp;
+            this.operator = operator;
+            this.operands = operands;
+        }
+
+        Value execute(Env env) {
+            Object result = operator.execute(env);
+            if (!(result instanceof Value.FunVal fun))
+                return new Value.DynamicError("Operator not a function in call " + exp.origin().accept(ts, env));
+            root(fun);
+
+            Value[] actuals = new Value[operands.length];
+            root(actuals);
+            for (int i = 0; i < actuals.length; i++)
+                actuals[i] = operands[i].execute(env);
+            unroot(2);
+
+            Object code = cache.code(fun);
+            if (code == null) {
+                if (fun.formals().length != actuals.length)
+                    return new Value.DynamicError("Argument mismatch in call " + exp.origin().accept(ts, env));
+                cache.add(fun, code = code(fun));
+            }
+            if (exp.tail()) return tail_call.set(fun, actuals, code);
+            return apply(fun, actuals, code);
+        }
+    }
+
+    final class IfNode extends Node {
+        private final IfExp exp;
+        private final Node conditional;
+        private final Node then_node;
+        private final Node else_node;
+
+        IfNode(IfExp exp, Node conditional, Node then_node, Node else_node) {
+            this.exp = exp;
+            this.conditional = conditional;
+            this.then_node = then_node;
+            this.else_node = else_node;
+        }
+
+        Value execute(Env env) {
+            Object result = conditional.execute(env);
+            if (!(result instanceof Value.BoolVal condition))
+                return new Value.DynamicError("Condition not a boolean in expression " + exp.origin().accept(ts, env));
+            return condition.v() ? then_node.execute(env) : else_node.execute(env);
+        }
+    }
+
+    /**
+     * An if whose condition the TypeChecker proved to be a boolean, which
+     * needs no check.
+     */
+    final class TestNode extends Node {
+        private final Node conditional;
+        private final Node then_node;
+        private final Node else_node;
+
+        TestNode(Node conditional, Node then_node, Node else_node) {
+            this.conditional = conditional;
+            this.then_node = then_node;
+            this.else_node = else_node;
+        }
+
+        Value execute(Env env) {
+            return conditional.executeBoolean(env) ? then_node.execute(env) : else_node.execute(env);
+        }
+
+        Value.NumVal executeNumber(Env env) {
+            return conditional.executeBoolean(env) ? then_node.executeNumber(env) : else_node.executeNumber(env);
+        }
+
+        boolean executeBoolean(Env env) {
+            return conditional.executeBoolean(env) ? then_node.executeBoolean(env) : else_node.executeBoolean(env);
+        }
+
+        Value.PairVal executePair(Env env) {
+            return conditional.executeBoolean(env) ? then_node.executePair(env) : else_node.executePair(env);
+        }
+    }
+
+    final class LessNode extends Node {
+        private final Node first;
+        private final Node second;
+
+        LessNode(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        Value execute(Env env) {
+            return Value.BoolVal.of(executeBoolean(env));
+        }
+
+        boolean executeBoolean(Env env) {
+            Value.NumVal x = first.executeNumber(env);
+            Value.NumVal y = second.executeNumber(env);
+            return Value.NumVal.less(x, y);
+        }
+    }
+
+    final class EqualNode extends Node {
+        private final Node first;
+        private final Node second;
+
+        EqualNode(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        Value execute(Env env) {
+            return Value.BoolVal.of(executeBoolean(env));
+        }
+
+        boolean executeBoolean(Env env) {
+            Value.NumVal x = first.executeNumber(env);
+            Value.NumVal y = second.executeNumber(env);
+            return Value.NumVal.equal(x, y);
+        }
+    }
+
+    final class GreaterNode extends Node {
+        private final Node first;
+        private final Node second;
+
+        GreaterNode(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        Value execute(Env env) {
+            return Value.BoolVal.of(executeBoolean(env));
+        }
+
+        boolean executeBoolean(Env env) {
+            Value.NumVal x = first.executeNumber(env);
+            Value.NumVal y = second.executeNumber(env);
+            return Value.NumVal.greater(x, y);
+        }
+    }
+
+    final class CarNode extends Node {
+        private final Node arg;
+
+        CarNode(Node arg) {
+            this.arg = arg;
+        }
+
+        Value execute(Env env) {
+            return arg.executePair(env).fst();
+        }
+    }
+
+    final class CdrNode extends Node {
+        private final Node arg;
+
+        CdrNode(Node arg) {
+            this.arg = arg;
+        }
+
+        Value execute(Env env) {
+            return arg.executePair(env).snd();
+        }
+    }
+
+    final class ConsNode extends Node {
+        private final Node fst;
+        private final Node snd;
+
+        ConsNode(Node fst, Node snd) {
+            this.fst = fst;
+            this.snd = snd;
+        }
+
+        Value execute(Env env) {
+            return executePair(env);
+        }
+
+        Value.PairVal executePair(Env env) {
+            Value first = fst.execute(env);
+            root(first);
+            Value second = snd.execute(env);
+            unroot(1);
+            return new Value.PairVal(first, second);
+        }
+    }
+
+    final class ListNode extends Node {
+        private final Node[] elems;
+
+        ListNode(Node[] elems) {
+            this.elems = elems;
+        }
+
+        Value execute(Env env) {
+            if (elems.length == 0) return Value.Null.NULL;
+            Value[] values = new Value[elems.length];
+            root(values);
+            for (int i = 0; i < values.length; i++)
+                values[i] = elems[i].execute(env);
+            unroot(1);
+
+            Value result = Value.Null.NULL;
+            for (int i = values.length - 1; i >= 0; i--)
+                result = new Value.PairVal(values[i], result);
+            return result;
+        }
+    }
+
+    final class NullNode extends Node {
+        private final Node arg;
+
+        NullNode(Node arg) {
+            this.arg = arg;
+        }
+
+        Value execute(Env env) {
+            return Value.BoolVal.of(executeBoolean(env));
+        }
+
+        boolean executeBoolean(Env env) {
+            return arg.execute(env) instanceof Value.Null;
+        }
+    }
+
+    final class RefNode extends Node {
+        private final RefExp exp;
+        private final Node value_node;
+
+        RefNode(RefExp exp, Node value_node) {
+            this.exp = exp;
+            this.value_node = value_node;
+        }
+
+        Value execute(Env env) {
+            return allocate(exp, value_node.execute(env));
+        }
+    }
+
+    final class AssignNode extends Node {
+        private final Node lhs;
+        private final Node rhs;
+
+        AssignNode(Node lhs, Node rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        Value execute(Env env) {
+            Value rhs_val = rhs.execute(env);
+            root(rhs_val);
+            Value.RefVal loc = (Value.RefVal) lhs.execute(env);
+            unroot(1);
+            return heap.setref(loc, rhs_val);
+        }
+    }
+
+    final class DerefNode extends Node {
+        private final Node loc_node;
+
+        DerefNode(Node loc_node) {
+            this.loc_node = loc_node;
+        }
+
+        Value execute(Env env) {
+            return heap.deref((Value.RefVal) loc_node.execute(env));
+        }
+    }
+
+    final class FreeNode extends Node {
+        private final FreeExp exp;
+        private final Node value_node;
+
+        FreeNode(FreeExp exp, Node value_node) {
+            this.exp = exp;
+            this.value_node = value_node;
+        }
+
+        Value execute(Env env) {
+            return release(exp, (Value.RefVal) value_node.execute(env));
+        }
+    }
+
+    final class RefEqNode extends Node {
+        private final Node first;
+        private final Node second;
+
+        RefEqNode(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        Value execute(Env env) {
+            Value.RefVal val1 = (Value.RefVal) first.execute(env);
+            root(val1);
+            Value.RefVal val2 = (Value.RefVal) second.execute(env);
+            unroot(1);
+            return Value.BoolVal.of(val1.loc() == val2.loc() && val1.generation() == val2.generation());
+        }
+    }
+
+    final class CasNode extends Node {
+        private final Node loc_node;
+        private final Node expected_node;
+        private final Node new_node;
+
+        CasNode(Node loc_node, Node expected_node, Node new_node) {
+            this.loc_node = loc_node;
+            this.expected_node = expected_node;
+            this.new_node = new_node;
+        }
+
+        Value execute(Env env) {
+            Value.RefVal loc = (Value.RefVal) loc_node.execute(env);
+            root(loc);
+            Value expected = expected_node.execute(env);
+            root(expected);
+            Value value = new_node.execute(env);
+            unroot(2);
+            return heap.cas(loc, expected, value);
+        }
+    }
+
+    final class RegionNode extends Node {
+        private final Node body;
+
+        RegionNode(Node body) {
+            this.body = body;
+        }
+
+        Value execute(Env env) {
+            int mark = heap.enterRegion();
+            if (mark < 0) return new Value.DynamicError("Regions are not supported by this heap");
+            try {
+                return body.execute(env);
+            } finally {
+                heap.exitRegion(mark);
+            }
+        }
+    }
+
+    final class LocalAssignNode extends Node {
+        private final int depth;
+        private final int slot;
+        private final Node rhs;
+
+        LocalAssignNode(int depth, int slot, Node rhs) {
+            this.depth = depth;
+            this.slot = slot;
+            this.rhs = rhs;
+        }
+
+        Value execute(Env env) {
+            Value rhs_val = rhs.execute(env);
+            ((FrameEnv) env).set(depth, slot, rhs_val);
+            return rhs_val;
+        }
+    }
+
+    final class InlinedCallNode extends Node {
+        private final Node callee;
+        private final Symbol[] formals;
+        private final Node inlined;
+        private final Node call;
+
+        InlinedCallNode(Node callee, Symbol[] formals, Node inlined, Node call) {
+            this.callee = callee;
+            this.formals = formals;
+            this.inlined = inlined;
+            this.call = call;
+        }
+
+        Value execute(Env env) {
+            if (callee.execute(env) instanceof Value.FunVal fun && fun.formals() == formals) return inlined.execute(env);
+            return call.execute(env);
+        }
+    }
+
+    /**
+     * Adds the values of operands to first, or subtracts them.
+     */
+    private static Value.NumVal update(boolean subtract, Value.NumVal first, Node[] operands, Env env) {
+        Value.NumVal result = subtract ? first : Value.NumVal.add(Value.IntVal.ZERO, first);
+        for (Node operand : operands) {
+            Value.NumVal value = (Value.NumVal) operand.execute(env);
+            result = subtract ? Value.NumVal.sub(result, value) : Value.NumVal.add(result, value);
+        }
+        return result;
+    }
+
+    final class RefUpdateNode extends Node {
+        private final Node var;
+        private final boolean subtract;
+        private final Node[] operands; // after the (deref var)
+
+        RefUpdateNode(Node var, boolean subtract, Node[] operands) {
+            this.var = var;
+            this.subtract = subtract;
+            this.operands = operands;
+        }
+
+        Value execute(Env env) {
+            Value.RefVal loc = (Value.RefVal) var.execute(env);
+            root(loc);
+            Value.NumVal result = update(subtract, (Value.NumVal) heap.deref(loc), operands, env);
+            unroot(1);
+            return heap.setref(loc, result);
+        }
+    }
+
+    final class LocalUpdateNode extends Node {
+        private final int depth;
+        private final int slot;
+        private final boolean subtract;
+        private final Node[] operands;
+
+        LocalUpdateNode(int depth, int slot, boolean subtract, Node[] operands) {
+            this.depth = depth;
+            this.slot = slot;
+            this.subtract = subtract;
+            this.operands = operands;
+        }
+
+        Value execute(Env env) {
+            FrameEnv frame = (FrameEnv) env;
+            Value.NumVal result = update(subtract, (Value.NumVal) frame.get(depth, slot), operands, env);
+            frame.set(depth, slot, result);
+            return result;
+        }
+    }
+
+    final class DerefCarNode extends Node {
+        private final Node arg;
+
+        DerefCarNode(Node arg) {
+            this.arg = arg;
+        }
+
+        Value execute(Env env) {
+            return heap.deref((Value.RefVal) arg.executePair(env).fst());
+        }
+    }
+}
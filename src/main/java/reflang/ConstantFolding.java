@@ -0,0 +1,188 @@
+package reflang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static reflang.AST.*;
+
+/**
+ * Evaluates constant subexpressions once, before the program runs.
+ * <ul>
+ * <li>Leading number operands of arithmetic are combined, so (+ 1 2 x)
+ * becomes (+ 3 x). Later operands are left alone, since combining them
+ * would change the order in which doubles are rounded.</li>
+ * <li>Comparisons of two numbers become #t or #f.</li>
+ * <li>An if with a #t or #f condition is replaced by the branch it takes.</li>
+ * <li>Let-bound numbers and booleans are substituted into the let body and
+ * their bindings dropped.</li>
+ * </ul>
+ * Only literals are ever removed or reordered, so every other expression,
+ * including ref, set! and free, is evaluated as often and in the same order
+ * as before.
+ */
+public class ConstantFolding extends Rewriter {
+
+    private Map<Symbol, Exp> constants = new HashMap<>(); // let-bound literals in scope
+
+    private static boolean isConstant(Exp e) {
+        return e instanceof NumExp || e instanceof BoolExp;
+    }
+
+    private static NumExp numExp(Value.NumVal v) {
+        if (v instanceof Value.IntVal i) return new NumExp(i.l());
+        return new NumExp(v.v());
+    }
+
+    /**
+     * The number of leading operands that are numbers.
+     */
+    private static int leadingNumbers(List<Exp> operands) {
+        int n = 0;
+        while (n < operands.size() && operands.get(n) instanceof NumExp) n++;
+        return n;
+    }
+
+    @Override
+    public Exp visit(VarExp e, Env env) {
+        Exp constant = constants.get(e.symbol());
+        if (constant != null) return constant;
+        return super.visit(e, env);
+    }
+
+    @Override
+    public Exp visit(AddExp e, Env env) {
+        List<Exp> operands = rewriteAll(e.all());
+        int n = leadingNumbers(operands);
+        if (n < 2 && n < operands.size()) return new AddExp(operands);
+        Value.NumVal sum = Value.IntVal.ZERO;
+        for (Exp operand : operands.subList(0, n))
+            sum = Value.NumVal.add(sum, ((NumExp) operand).value());
+        return fold(numExp(sum), operands, n, AddExp::new);
+    }
+
+    @Override
+    public Exp visit(MultExp e, Env env) {
+        List<Exp> operands = rewriteAll(e.all());
+        int n = leadingNumbers(operands);
+        if (n < 2 && n < operands.size()) return new MultExp(operands);
+        Value.NumVal product = Value.IntVal.ONE;
+        for (Exp operand : operands.subList(0, n))
+            product = Value.NumVal.mul(product, ((NumExp) operand).value());
+        return fold(numExp(product), operands, n, MultExp::new);
+    }
+
+    @Override
+    public Exp visit(SubExp e, Env env) {
+        List<Exp> operands = rewriteAll(e.all());
+        int n = leadingNumbers(operands);
+        if (n < 2) return new SubExp(operands);
+        Value.NumVal difference = ((NumExp) operands.get(0)).value();
+        for (Exp operand : operands.subList(1, n))
+            difference = Value.NumVal.sub(difference, ((NumExp) operand).value());
+        return fold(numExp(difference), operands, n, SubExp::new);
+    }
+
+    @Override
+    public Exp visit(DivExp e, Env env) {
+        List<Exp> operands = rewriteAll(e.all());
+        int n = leadingNumbers(operands);
+        if (n < 2) return new DivExp(operands);
+        double quotient = ((NumExp) operands.get(0)).v();
+        for (Exp operand : operands.subList(1, n))
+            quotient = quotient / ((NumExp) operand).v();
+        return fold(new NumExp(quotient), operands, n, DivExp::new);
+    }
+
+    /**
+     * Replaces the first n operands by their combined value, which is the
+     * whole result when there are no others.
+     */
+    private static Exp fold(NumExp value, List<Exp> operands, int n, Function<List<Exp>, Exp> rebuild) {
+        if (n == operands.size()) return value;
+        List<Exp> rest = new ArrayList<>(operands.size() - n + 1);
+        rest.add(value);
+        rest.addAll(operands.subList(n, operands.size()));
+        return rebuild.apply(rest);
+    }
+
+    @Override
+    public Exp visit(LessExp e, Env env) {
+        Exp first = rewrite(e.first_exp()), second = rewrite(e.second_exp());
+        if (first instanceof NumExp x && second instanceof NumExp y)
+            return new BoolExp(Value.NumVal.less(x.value(), y.value()));
+        return new LessExp(first, second);
+    }
+
+    @Override
+    public Exp visit(EqualExp e, Env env) {
+        Exp first = rewrite(e.first_exp()), second = rewrite(e.second_exp());
+        if (first instanceof NumExp x && second instanceof NumExp y)
+            return new BoolExp(Value.NumVal.equal(x.value(), y.value()));
+        return new EqualExp(first, second);
+    }
+
+    @Override
+    public Exp visit(GreaterExp e, Env env) {
+        Exp first = rewrite(e.first_exp()), second = rewrite(e.second_exp());
+        if (first instanceof NumExp x && second instanceof NumExp y)
+            return new BoolExp(Value.NumVal.greater(x.value(), y.value()));
+        return new GreaterExp(first, second);
+    }
+
+    @Override
+    public Exp visit(IfExp e, Env env) {
+        Exp conditional = rewrite(e.conditional());
+        if (conditional instanceof BoolExp bool) return bool.b() ? rewrite(e.then_exp()) : rewrite(e.else_exp());
+        return new IfExp(conditional, rewrite(e.then_exp()), rewrite(e.else_exp()));
+    }
+
+    @Override
+    public Exp visit(LetExp e, Env env) {
+        Symbol[] names = e.symbols();
+        List<Exp> value_exps = rewriteAll(e.value_exps());
+
+        Map<Symbol, Exp> saved = constants;
+        Map<Symbol, Exp> inner = new HashMap<>(saved);
+        List<Symbol> kept_names = new ArrayList<>(names.length);
+        List<Exp> kept_values = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            inner.remove(names[i]);
+            if (isConstant(value_exps.get(i)) && boundOnce(names, i)) continue;
+            kept_names.add(names[i]);
+            kept_values.add(value_exps.get(i));
+        }
+        for (int i = 0; i < names.length; i++)
+            if (isConstant(value_exps.get(i)) && boundOnce(names, i)) inner.put(names[i], value_exps.get(i));
+
+        constants = inner;
+        try {
+            Exp body = rewrite(e.body());
+            if (kept_names.isEmpty()) return body;
+            return new LetExp(kept_names.toArray(new Symbol[0]), kept_values, body);
+        } finally {
+            constants = saved;
+        }
+    }
+
+    @Override
+    public Exp visit(LambdaExp e, Env env) {
+        Map<Symbol, Exp> saved = constants;
+        constants = new HashMap<>(saved);
+        for (Symbol formal : e.symbols())
+            constants.remove(formal);
+        try {
+            return super.visit(e, env);
+        } finally {
+            constants = saved;
+        }
+    }
+
+    private static boolean boundOnce(Symbol[] names, int index) {
+        for (int i = 0; i < names.length; i++)
+            if (i != index && names[i] == names[index]) return false;
+        return true;
+    }
+}
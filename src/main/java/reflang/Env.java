@@ -1,10 +1,16 @@
 package reflang;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 /**
  * Representation of an environment, which maps variables to values.
+ * <p>
+ * Local environments are only mutated by the thread that created them and
+ * the global environment publishes its bindings without locks, so
+ * environments can be shared between threads without locking.
  *
  * @author hridesh
  */
@@ -35,26 +41,197 @@ public interface Env {
             _val = val;
         }
 
-        public synchronized Value get(String search_var) {
+        public Value get(String search_var) {
             if (search_var.equals(_var)) return _val;
             return _saved_env.get(search_var);
         }
     }
 
+    /**
+     * A frame holds all the bindings introduced by one let expression or one
+     * function call. Variables resolved by the Resolver are accessed by their
+     * lexical address (frame depth, slot) instead of by name.
+     */
+    class FrameEnv implements Env {
+        private final Env _saved_env;
+        private final Symbol[] _vars;
+        private final Value[] _vals;
+
+        public FrameEnv(Env saved_env, Symbol[] vars, Value[] vals) {
+            _saved_env = saved_env;
+            _vars = vars;
+            _vals = vals;
+        }
+
+        public Value get(String search_var) {
+            for (int i = _vars.length - 1; i >= 0; i--)
+                if (search_var.equals(_vars[i].name())) return _vals[i];
+            return _saved_env.get(search_var);
+        }
+
+        Env saved_env() {
+            return _saved_env;
+        }
+
+        Symbol[] vars() {
+            return _vars;
+        }
+
+        Value[] values() {
+            return _vals;
+        }
+
+        public Value get(int depth, int slot) {
+            FrameEnv frame = this;
+            for (; depth > 0; depth--)
+                frame = (FrameEnv) frame._saved_env;
+            return frame._vals[slot];
+        }
+
+        /**
+         * Overwrites a slot; only used for references that EscapeAnalysis
+         * moved from the heap into a let frame.
+         */
+        public void set(int depth, int slot, Value value) {
+            FrameEnv frame = this;
+            for (; depth > 0; depth--)
+                frame = (FrameEnv) frame._saved_env;
+            frame._vals[slot] = value;
+        }
+    }
+
+    /**
+     * The global environment maps each defined name to a cell. A cell is
+     * created the first time a name is defined and is never replaced:
+     * redefining the name updates the cell in place, so a variable reference
+     * can hold on to the cell after its first lookup.
+     * <p>
+     * Cells are stored in an array indexed by symbol id. Lookups read the
+     * array without locking; defining a new name publishes a new copy of the
+     * array when it has to grow.
+     * <p>
+     * A binding restored from a Snapshot starts out with a loader instead of
+     * a value, and the value is only built when the binding is first read.
+     */
     class GlobalEnv implements Env {
-        private final Map<String, Value> map;
+        private volatile Cell[] _cells = new Cell[64];
 
-        public GlobalEnv() {
-            map = new HashMap<>();
+        public Value get(String search_var) {
+            Symbol sym = Symbol.find(search_var);
+            if (sym == null) throw new LookupException("No binding found for name: " + search_var);
+            return cell(sym).value();
         }
 
-        public synchronized Value get(String search_var) {
-            if (map.containsKey(search_var)) return map.get(search_var);
+        public Cell cell(Symbol search_var) {
+            Cell[] cells = _cells;
+            int id = search_var.id();
+            if (id < cells.length && cells[id] != null) return cells[id];
             throw new LookupException("No binding found for name: " + search_var);
         }
 
-        public synchronized void extend(String var, Value val) {
-            map.put(var, val);
+        public void extend(String var, Value val) {
+            extend(Symbol.of(var), val);
+        }
+
+        void forEachCell(Consumer<Cell> action) {
+            for (Cell cell : _cells)
+                if (cell != null) action.accept(cell);
+        }
+
+        // A new cell gets its value or loader before the array holding it is
+        // published, so a lookup never finds a cell without either.
+
+        public void extend(Symbol var, Value val) {
+            int id = var.id();
+            Cell[] cells = _cells;
+            if (id < cells.length && cells[id] != null) {
+                cells[id].set(val);
+                return;
+            }
+            synchronized (this) {
+                cells = _cells;
+                if (id < cells.length && cells[id] != null) {
+                    cells[id].set(val);
+                    return;
+                }
+                if (id >= cells.length)
+                    cells = Arrays.copyOf(cells, Math.max(id + 1, cells.length * 2));
+                else
+                    cells = cells.clone();
+                cells[id] = new Cell(this, var, val, null);
+                _cells = cells;
+            }
+        }
+
+        /**
+         * Binds each vars[i] to the value that loaders.apply(i) returns the
+         * first time vars[i] is read. The cell array is copied once for all
+         * of the names rather than once per new name.
+         */
+        synchronized void extendLazily(Symbol[] vars, IntFunction<Supplier<Value>> loaders) {
+            int max = -1;
+            for (Symbol var : vars)
+                max = Math.max(max, var.id());
+            Cell[] cells = Arrays.copyOf(_cells, Math.max(max + 1, _cells.length));
+            for (int i = 0; i < vars.length; i++) {
+                Symbol var = vars[i];
+                if (cells[var.id()] == null) cells[var.id()] = new Cell(this, var, null, loaders.apply(i));
+                else cells[var.id()].setLoader(loaders.apply(i));
+            }
+            _cells = cells;
+        }
+
+        public static final class Cell {
+            private final GlobalEnv _owner;
+            private final Symbol _name;
+            private volatile Value _val;
+            private Supplier<Value> _loader; // set while the value has not been built yet
+
+            private Cell(GlobalEnv owner, Symbol name, Value val, Supplier<Value> loader) {
+                _owner = owner;
+                _name = name;
+                _val = val;
+                _loader = loader;
+            }
+
+            public GlobalEnv owner() {
+                return _owner;
+            }
+
+            public Symbol name() {
+                return _name;
+            }
+
+            public Value value() {
+                Value val = _val;
+                return val != null ? val : load();
+            }
+
+            /**
+             * Returns the value without building it, or null if it is still
+             * waiting to be loaded.
+             */
+            Value valueIfLoaded() {
+                return _val;
+            }
+
+            private synchronized Value load() {
+                if (_val == null && _loader != null) {
+                    _val = _loader.get();
+                    _loader = null;
+                }
+                return _val;
+            }
+
+            synchronized void set(Value val) {
+                _loader = null;
+                _val = val;
+            }
+
+            synchronized void setLoader(Supplier<Value> loader) {
+                _val = null;
+                _loader = loader;
+            }
         }
     }
 
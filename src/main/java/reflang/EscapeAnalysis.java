@@ -0,0 +1,142 @@
+package reflang;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static reflang.AST.*;
+
+/**
+ * Escape analysis for let-bound references. A binding (name (ref e)) does
+ * not escape when every use of name in the let body is either (deref name)
+ * or the target of (set! name e), outside of any lambda. Such a reference
+ * can never be observed as a location, so it is rewritten to keep its value
+ * directly in the let frame and never touches the heap. Any other use,
+ * including (== name e), (free name), passing name to a function or
+ * capturing it in a closure, keeps the reference on the heap.
+ */
+public class EscapeAnalysis extends Rewriter {
+
+    private Set<Symbol> local = new HashSet<>(); // non-escaping references in scope
+
+    @Override
+    public Exp visit(LetExp e, Env env) {
+        Symbol[] names = e.symbols();
+        List<Exp> value_exps = rewriteAll(e.value_exps());
+
+        Set<Symbol> saved = local;
+        Set<Symbol> inner = new HashSet<>(saved);
+        for (Symbol name : names)
+            inner.remove(name);
+        for (int i = 0; i < names.length; i++) {
+            if (value_exps.get(i) instanceof RefExp ref && isLastBinding(names, i) && !escapes(names[i], e.body())) {
+                value_exps.set(i, new LocalRefExp(ref.value_exp()));
+                inner.add(names[i]);
+            }
+        }
+
+        local = inner;
+        try {
+            return new LetExp(names, value_exps, rewrite(e.body()));
+        } finally {
+            local = saved;
+        }
+    }
+
+    @Override
+    public Exp visit(LambdaExp e, Env env) {
+        Set<Symbol> saved = local;
+        local = new HashSet<>(saved);
+        for (Symbol formal : e.symbols())
+            local.remove(formal);
+        try {
+            return super.visit(e, env);
+        } finally {
+            local = saved;
+        }
+    }
+
+    @Override
+    public Exp visit(DerefExp e, Env env) {
+        if (e.loc_exp() instanceof VarExp var && local.contains(var.symbol()))
+            return new LocalDerefExp(new VarExp(var.symbol()));
+        return super.visit(e, env);
+    }
+
+    @Override
+    public Exp visit(AssignExp e, Env env) {
+        if (e.lhs_exp() instanceof VarExp var && local.contains(var.symbol()))
+            return new LocalAssignExp(new VarExp(var.symbol()), rewrite(e.rhs_exp()));
+        return super.visit(e, env);
+    }
+
+    private static boolean isLastBinding(Symbol[] names, int index) {
+        for (int i = index + 1; i < names.length; i++)
+            if (names[i] == names[index]) return false; // shadowed within the same let
+        return true;
+    }
+
+    private static boolean escapes(Symbol name, Exp body) {
+        Uses uses = new Uses(name);
+        body.accept(uses, null);
+        return uses.escapes;
+    }
+
+    /**
+     * Looks for uses of a name other than (deref name) and (set! name e)
+     * outside of lambdas.
+     */
+    private static final class Uses extends Rewriter {
+        private final Symbol name;
+        private int lambda_depth = 0;
+        boolean escapes = false;
+
+        Uses(Symbol name) {
+            this.name = name;
+        }
+
+        private boolean isName(Exp e) {
+            return e instanceof VarExp var && var.symbol() == name;
+        }
+
+        @Override
+        public Exp visit(VarExp e, Env env) {
+            if (e.symbol() == name) escapes = true;
+            return e;
+        }
+
+        @Override
+        public Exp visit(DerefExp e, Env env) {
+            if (lambda_depth == 0 && isName(e.loc_exp())) return e;
+            return super.visit(e, env);
+        }
+
+        @Override
+        public Exp visit(AssignExp e, Env env) {
+            if (lambda_depth == 0 && isName(e.lhs_exp())) {
+                rewrite(e.rhs_exp());
+                return e;
+            }
+            return super.visit(e, env);
+        }
+
+        @Override
+        public Exp visit(LetExp e, Env env) {
+            rewriteAll(e.value_exps());
+            for (Symbol bound : e.symbols())
+                if (bound == name) return e; // shadowed in the body
+            rewrite(e.body());
+            return e;
+        }
+
+        @Override
+        public Exp visit(LambdaExp e, Env env) {
+            for (Symbol formal : e.symbols())
+                if (formal == name) return e;
+            lambda_depth++;
+            rewrite(e.body());
+            lambda_depth--;
+            return e;
+        }
+    }
+}
@@ -1,9 +1,9 @@
 package reflang;
 
-import reflang.Env.ExtendEnv;
+import reflang.Env.FrameEnv;
 import reflang.Env.GlobalEnv;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static reflang.AST.*;
@@ -15,60 +15,178 @@ public class Evaluator implements Visitor<Value> {
 
     private final Printer.Formatter ts = new Printer.Formatter();
 
-    private final Env initialEnv = new GlobalEnv(); // new for DefineLang
-    Heap heap = new Heap.Heap16Bit(); //New for reflang
+    private final GlobalEnv initialEnv; // new for DefineLang
+    Heap heap; //New for reflang
+
+    public Evaluator() {
+        this(new GlobalEnv());
+    }
+
+    /**
+     * Creates an evaluator whose definitions go into the given global
+     * environment, which may be shared with evaluators on other threads.
+     */
+    public Evaluator(GlobalEnv globals) {
+        this(globals, new Heap.Heap16Bit());
+    }
+
+    public Evaluator(GlobalEnv globals, Heap heap) {
+        this(globals, heap, null);
+    }
+
+    /**
+     * Creates an evaluator whose heap is garbage collected by gc, or only
+     * managed with explicit (free e) if gc is null.
+     */
+    public Evaluator(GlobalEnv globals, Heap heap, Collector gc) {
+        initialEnv = globals;
+        this.heap = heap;
+        this.gc = gc;
+    }
+
+    final Resolver resolver = new Resolver();
+    Optimizer optimizer = new Optimizer(true); // AST passes run before each program is resolved
+    private final Collector gc;
+    AllocationTracker tracker; // records allocation sites when set
+    Jit jit; // compiles hot functions when set
+    TypeChecker typechecker; // rejects programs with type errors and proves operand types when set
+
+    Collector collector() {
+        return gc;
+    }
+
+    GlobalEnv globals() {
+        return initialEnv;
+    }
 
     Value valueOf(Program p) {
-        return p.accept(this, initialEnv);
+        return prepare(p).accept(this, initialEnv);
+    }
+
+    /**
+     * Runs the TypeChecker, the optimizer and the Resolver over a program
+     * that is about to be evaluated. The optimized program is annotated
+     * again, so its nodes carry the types the typed paths below rely on.
+     */
+    Program prepare(Program p) {
+        if (typechecker != null) typechecker.check(p);
+        Program optimized = optimizer.optimize(p);
+        if (typechecker != null && optimized != p) typechecker.annotate(optimized);
+        p = optimized;
+        resolver.resolve(p);
+        if (gc != null) gc.clearRoots(); // an exception may have left roots behind
+        return p;
+    }
+
+    // Values held by the evaluator while it evaluates another subexpression
+    // must be visible to the collector.
+    void root(Object o) {
+        if (gc != null) gc.push(o);
+    }
+
+    void unroot(int count) {
+        if (gc != null) gc.pop(count);
+    }
+
+    // Typed paths. An operand whose type the TypeChecker proved needs no
+    // dynamic check: numbers, arithmetic, comparisons, pairs and the ifs
+    // choosing between them produce their result directly, without a
+    // BoolVal to test or a cast. Other operands are evaluated to a Value and
+    // checked; for a proven variable or call the cast cannot fail.
+
+    /**
+     * Evaluates an operand that must be a number.
+     */
+    NumVal number(Exp e, Env env) {
+        if (e._type == TypeChecker.Type.NUMBER) {
+            if (e instanceof NumExp num) return num.value();
+            if (e instanceof AddExp add) return add(add, env);
+            if (e instanceof SubExp sub) return sub(sub, env);
+            if (e instanceof MultExp mult) return mult(mult, env);
+            if (e instanceof DivExp div) return div(div, env);
+            if (e instanceof IfExp exp) return number(test(exp.conditional(), env) ? exp.then_exp() : exp.else_exp(), env);
+        }
+        return (NumVal) e.accept(this, env); // Dynamic type-checking
+    }
+
+    /**
+     * Evaluates a condition that the TypeChecker proved to be a boolean.
+     */
+    boolean test(Exp e, Env env) {
+        if (e instanceof BoolExp bool) return bool.b();
+        if (e instanceof LessExp less) return NumVal.less(number(less.first_exp(), env), number(less.second_exp(), env));
+        if (e instanceof EqualExp equal) return NumVal.equal(number(equal.first_exp(), env), number(equal.second_exp(), env));
+        if (e instanceof GreaterExp greater) return NumVal.greater(number(greater.first_exp(), env), number(greater.second_exp(), env));
+        if (e instanceof NullExp exp) return exp.arg().accept(this, env) instanceof Value.Null;
+        if (e instanceof IfExp exp) return test(test(exp.conditional(), env) ? exp.then_exp() : exp.else_exp(), env);
+        return ((BoolVal) e.accept(this, env)).v();
+    }
+
+    /**
+     * Evaluates an operand that must be a pair.
+     */
+    Value.PairVal pair(Exp e, Env env) {
+        if (e._type == TypeChecker.Type.PAIR) {
+            if (e instanceof ConsExp cons) return cons(cons, env);
+            if (e instanceof ListExp list) return list(list, env);
+            if (e instanceof IfExp exp) return pair(test(exp.conditional(), env) ? exp.then_exp() : exp.else_exp(), env);
+        }
+        return (Value.PairVal) e.accept(this, env);
     }
 
     @Override
     public Value visit(AddExp e, Env env) {
-        List<Exp> operands = e.all();
-        double result = 0;
-        for (Exp exp : operands) {
-            NumVal intermediate = (NumVal) exp.accept(this, env); // Dynamic type-checking
-            result += intermediate.v(); //Semantics of AddExp in terms of the target language.
-        }
-        return new NumVal(result);
+        return add(e, env);
+    }
+
+    private NumVal add(AddExp e, Env env) {
+        NumVal result = Value.IntVal.ZERO;
+        for (Exp exp : e.all())
+            result = NumVal.add(result, number(exp, env)); //Semantics of AddExp in terms of the target language.
+        return result;
     }
 
     @Override
     public Value visit(UnitExp e, Env env) {
-        return new UnitVal();
+        return UnitVal.UNIT;
     }
 
     @Override
     public Value visit(NumExp e, Env env) {
-        return new NumVal(e.v());
+        return e.value();
     }
 
     @Override
     public Value visit(BoolExp e, Env env) {
-        return new Value.BoolVal(e.b());
+        return Value.BoolVal.of(e.b());
     }
 
     @Override
     public Value visit(DivExp e, Env env) {
+        return div(e, env);
+    }
+
+    private NumVal div(DivExp e, Env env) {
         List<Exp> operands = e.all();
-        NumVal lVal = (NumVal) operands.getFirst().accept(this, env);
+        NumVal lVal = number(operands.getFirst(), env);
         double result = lVal.v();
         for (int i = 1; i < operands.size(); i++) {
-            NumVal rVal = (NumVal) operands.get(i).accept(this, env);
+            NumVal rVal = number(operands.get(i), env);
             result = result / rVal.v();
         }
-        return new NumVal(result);
+        return NumVal.of(result);
     }
 
     @Override
     public Value visit(MultExp e, Env env) {
-        List<Exp> operands = e.all();
-        double result = 1;
-        for (Exp exp : operands) {
-            NumVal intermediate = (NumVal) exp.accept(this, env); // Dynamic type-checking
-            result *= intermediate.v(); //Semantics of MultExp.
-        }
-        return new NumVal(result);
+        return mult(e, env);
+    }
+
+    private NumVal mult(MultExp e, Env env) {
+        NumVal result = Value.IntVal.ONE;
+        for (Exp exp : e.all())
+            result = NumVal.mul(result, number(exp, env)); //Semantics of MultExp.
+        return result;
     }
 
     @Override
@@ -84,44 +202,52 @@ public class Evaluator implements Visitor<Value> {
 
     @Override
     public Value visit(SubExp e, Env env) {
+        return sub(e, env);
+    }
+
+    private NumVal sub(SubExp e, Env env) {
         List<Exp> operands = e.all();
-        NumVal lVal = (NumVal) operands.getFirst().accept(this, env);
-        double result = lVal.v();
+        NumVal result = number(operands.getFirst(), env);
         for (int i = 1; i < operands.size(); i++) {
-            NumVal rVal = (NumVal) operands.get(i).accept(this, env);
-            result = result - rVal.v();
+            NumVal rVal = number(operands.get(i), env);
+            result = NumVal.sub(result, rVal);
         }
-        return new NumVal(result);
+        return result;
     }
 
     @Override
     public Value visit(VarExp e, Env env) { // New for varlang
-        return env.get(e.name());
+        if (e.depth() >= 0) return ((FrameEnv) env).get(e.depth(), e.slot());
+        GlobalEnv.Cell cell = e._cell;
+        if (cell == null || cell.owner() != initialEnv) // first lookup, or AST shared with another evaluator
+            e._cell = cell = initialEnv.cell(e.symbol());
+        return cell.value();
     }
 
     @Override
     public Value visit(LetExp e, Env env) { // New for varlang.
-        List<String> names = e.names();
         List<Exp> value_exps = e.value_exps();
-        List<Value> values = new ArrayList<>(value_exps.size());
+        Value[] values = new Value[value_exps.size()];
 
-        for (Exp exp : value_exps)
-            values.add(exp.accept(this, env));
+        // All bindings of a let share a single frame.
+        Env new_env = new FrameEnv(env, e.symbols(), values);
+        root(new_env);
 
-        Env new_env = env;
-        for (int i = 0; i < names.size(); i++)
-            new_env = new ExtendEnv(new_env, names.get(i), values.get(i));
+        for (int i = 0; i < values.length; i++)
+            values[i] = value_exps.get(i).accept(this, env);
 
-        return e.body().accept(this, new_env);
+        Value result = e.body().accept(this, new_env);
+        unroot(1);
+        return result;
     }
 
     @Override
     public Value visit(DefineDecl e, Env env) { // New for reflang.
-        String name = e.name();
+        Symbol name = e.symbol();
         Exp value_exp = e.value_exp();
         Value value = value_exp.accept(this, env);
-        ((GlobalEnv) initialEnv).extend(name, value);
-        return new Value.UnitVal();
+        initialEnv.extend(name, value);
+        return Value.UnitVal.UNIT;
     }
 
     @Override
@@ -130,38 +256,144 @@ public class Evaluator implements Visitor<Value> {
         //  1. formal parameters of the function - e.formals()
         //  2. actual body of the function - e.body()
         //  3. mapping from the free variables in the function body to their values.
-        return new Value.FunVal(env, e.formals(), e.body());
+        // Only the free variables found by the Resolver are copied into the
+        // closure; everything else stays reachable through the global environment.
+        int[] depths = e.free_depths();
+        int[] slots = e.free_slots();
+        Value[] captured = new Value[depths.length];
+        for (int i = 0; i < captured.length; i++)
+            captured[i] = ((FrameEnv) env).get(depths[i], slots[i]);
+        return new Value.FunVal(new FrameEnv(initialEnv, e.free(), captured), e.symbols(), e.body());
     }
 
     @Override
     public Value visit(CallExp e, Env env) {
         Object result = e.operator().accept(this, env);
         if (!(result instanceof Value.FunVal operator))
-            return new Value.DynamicError("Operator not a function in call " + ts.visit(e, env));
+            return new Value.DynamicError("Operator not a function in call " + e.origin().accept(ts, env));
         //Dynamic checking
         List<Exp> operands = e.operands();
+        root(operator);
 
         // Call-by-value semantics
-        List<Value> actuals = new ArrayList<>(operands.size());
-        for (Exp exp : operands)
-            actuals.add(exp.accept(this, env));
+        Value[] actuals = new Value[operands.size()];
+        root(actuals);
+        for (int i = 0; i < actuals.length; i++)
+            actuals[i] = operands.get(i).accept(this, env);
+        unroot(2);
+
+        Object code = e._cache.code(operator);
+        if (code == null) {
+            if (operator.formals().length != actuals.length)
+                return new Value.DynamicError("Argument mismatch in call " + e.origin().accept(ts, env));
+            e._cache.add(operator, code = operator.body());
+        }
+        if (e.tail()) return tail_call.set(operator, actuals, code);
+        return apply(operator, actuals, code);
+    }
+
+    /**
+     * A polymorphic inline cache for a call site: the callees whose arity
+     * matched the site, each with the code that runs its body. Two closures
+     * of the same lambda share their formals and body, and so their entry.
+     * A site that sees more than POLYMORPHIC callees is megamorphic, and
+     * from then on checks every call. Entries are never changed in place,
+     * so threads may share a site without locking.
+     */
+    static final class CallCache {
+        static final int POLYMORPHIC = 4;
+
+        private record Entry(Symbol[] formals, Exp body, Object code) {
+        }
+
+        private static final Entry[] MEGAMORPHIC = new Entry[0];
+
+        private volatile Entry[] _entries = new Entry[0];
+
+        /**
+         * The code cached for fun, or null if fun has to be checked.
+         */
+        Object code(Value.FunVal fun) {
+            for (Entry entry : _entries)
+                if (entry.body() == fun.body() && entry.formals() == fun.formals()) return entry.code();
+            return null;
+        }
+
+        /**
+         * Caches code for fun, whose arity matches the site.
+         */
+        void add(Value.FunVal fun, Object code) {
+            Entry[] entries = _entries;
+            if (entries == MEGAMORPHIC) return;
+            if (entries.length == POLYMORPHIC) {
+                _entries = MEGAMORPHIC;
+                return;
+            }
+            Entry[] more = Arrays.copyOf(entries, entries.length + 1);
+            more[entries.length] = new Entry(fun.formals(), fun.body(), code);
+            _entries = more;
+        }
+    }
 
-        List<String> formals = operator.formals();
-        if (formals.size() != actuals.size())
-            return new Value.DynamicError("Argument mismatch in call " + ts.visit(e, env));
+    /**
+     * A call in tail position, returned to the enclosing call instead of
+     * being made, so that loops written as tail recursion run in constant
+     * stack. There is one per evaluator, read as soon as it is returned.
+     */
+    static final class TailCall implements Value {
+        private Value.FunVal _fun;
+        private Value[] _actuals;
+        private Object _code; // from the cache of the call site
+
+        TailCall set(Value.FunVal fun, Value[] actuals, Object code) {
+            _fun = fun;
+            _actuals = actuals;
+            _code = code;
+            return this;
+        }
+    }
 
-        Env fun_env = operator.env();
-        for (int index = 0; index < formals.size(); index++)
-            fun_env = new ExtendEnv(fun_env, formals.get(index), actuals.get(index));
+    final TailCall tail_call = new TailCall();
+
+    /**
+     * Calls fun, whose arity has been checked, and then each tail call its
+     * body returns. code is what the call site cached for fun.
+     */
+    Value apply(Value.FunVal fun, Value[] actuals, Object code) {
+        while (true) {
+            if (jit != null) {
+                Value value = jit.call(fun, actuals);
+                if (value != null) return value;
+            }
+
+            // One frame per call, holding all actual parameters.
+            Env fun_env = new FrameEnv(fun.env(), fun.formals(), actuals);
+            root(fun_env);
+            Value value = body(fun, code, fun_env);
+            unroot(1);
+            if (value != tail_call) return value;
+            fun = tail_call._fun;
+            actuals = tail_call._actuals;
+            code = tail_call._code;
+            tail_call.set(null, null, null);
+        }
+    }
 
-        return operator.body().accept(this, fun_env);
+    /**
+     * Evaluates the body of fun in the frame of a call. This evaluator
+     * caches the body itself as the code of a function.
+     */
+    Value body(Value.FunVal fun, Object code, Env fun_env) {
+        return fun.body().accept(this, fun_env);
     }
 
     @Override
     public Value visit(IfExp e, Env env) {
+        if (e.conditional()._type == TypeChecker.Type.BOOLEAN)
+            return test(e.conditional(), env) ? e.then_exp().accept(this, env) : e.else_exp().accept(this, env);
         Object result = e.conditional().accept(this, env);
         if (!(result instanceof Value.BoolVal condition))
-            return new Value.DynamicError("Condition not a boolean in expression " + ts.visit(e, env));
+            return new Value.DynamicError("Condition not a boolean in expression " + e.origin().accept(ts, env));
         //Dynamic checking
 
         if (condition.v()) return e.then_exp().accept(this, env);
@@ -170,57 +402,69 @@ public class Evaluator implements Visitor<Value> {
 
     @Override
     public Value visit(LessExp e, Env env) {
-        Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
-        Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-        return new Value.BoolVal(first.v() < second.v());
+        Value.NumVal first = number(e.first_exp(), env);
+        Value.NumVal second = number(e.second_exp(), env);
+        return Value.BoolVal.of(NumVal.less(first, second));
     }
 
     @Override
     public Value visit(EqualExp e, Env env) {
-        Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
-        Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-        return new Value.BoolVal(first.v() == second.v());
+        Value.NumVal first = number(e.first_exp(), env);
+        Value.NumVal second = number(e.second_exp(), env);
+        return Value.BoolVal.of(NumVal.equal(first, second));
     }
 
     @Override
     public Value visit(GreaterExp e, Env env) {
-        Value.NumVal first = (Value.NumVal) e.first_exp().accept(this, env);
-        Value.NumVal second = (Value.NumVal) e.second_exp().accept(this, env);
-        return new Value.BoolVal(first.v() > second.v());
+        Value.NumVal first = number(e.first_exp(), env);
+        Value.NumVal second = number(e.second_exp(), env);
+        return Value.BoolVal.of(NumVal.greater(first, second));
     }
 
     @Override
     public Value visit(CarExp e, Env env) {
-        Value.PairVal pair = (Value.PairVal) e.arg().accept(this, env);
+        Value.PairVal pair = pair(e.arg(), env);
         return pair.fst();
     }
 
     @Override
     public Value visit(CdrExp e, Env env) {
-        Value.PairVal pair = (Value.PairVal) e.arg().accept(this, env);
+        Value.PairVal pair = pair(e.arg(), env);
         return pair.snd();
     }
 
     @Override
     public Value visit(ConsExp e, Env env) {
+        return cons(e, env);
+    }
+
+    private Value.PairVal cons(ConsExp e, Env env) {
         Value first = e.fst().accept(this, env);
+        root(first);
         Value second = e.snd().accept(this, env);
+        unroot(1);
         return new Value.PairVal(first, second);
     }
 
     @Override
     public Value visit(ListExp e, Env env) {
+        if (e.elems().isEmpty()) return Value.Null.NULL;
+        return list(e, env);
+    }
+
+    private Value.PairVal list(ListExp e, Env env) {
         List<Exp> elemExps = e.elems();
         int length = elemExps.size();
-        if (length == 0) return new Value.Null();
 
         //Order of evaluation: left to right e.g. (list (+ 3 4) (+ 5 4))
         Value[] elems = new Value[length];
+        root(elems);
         for (int i = 0; i < length; i++)
             elems[i] = elemExps.get(i).accept(this, env);
+        unroot(1);
 
-        Value result = new Value.Null();
-        for (int i = length - 1; i >= 0; i--)
+        Value.PairVal result = new Value.PairVal(elems[length - 1], Value.Null.NULL);
+        for (int i = length - 2; i >= 0; i--)
             result = new Value.PairVal(elems[i], result);
         return result;
     }
@@ -228,14 +472,34 @@ public class Evaluator implements Visitor<Value> {
     @Override
     public Value visit(NullExp e, Env env) {
         Value val = e.arg().accept(this, env);
-        return new Value.BoolVal(val instanceof Value.Null);
+        return Value.BoolVal.of(val instanceof Value.Null);
     }
 
     @Override
     public Value visit(RefExp e, Env env) {
         Exp value_exp = e.value_exp();
         Value value = value_exp.accept(this, env);
-        return heap.ref(value);
+        return allocate(e, value);
+    }
+
+    /**
+     * Stores value in a new heap cell for e, collecting garbage first if
+     * the collector asks for it.
+     */
+    Value allocate(RefExp e, Value value) {
+        Value loc;
+        if (gc == null) {
+            loc = heap.ref(value);
+        } else {
+            gc.beforeAllocation(value);
+            loc = heap.ref(value);
+            if (loc instanceof Value.DynamicError) { // out of memory: collect everything we can and retry
+                gc.collect(value);
+                loc = heap.ref(value);
+            }
+        }
+        if (tracker != null) tracker.allocated(e, loc);
+        return loc;
     }
 
     @Override
@@ -244,7 +508,9 @@ public class Evaluator implements Visitor<Value> {
         Exp lhs = e.lhs_exp();
         //Note the order of evaluation below.
         Value rhs_val = rhs.accept(this, env);
+        root(rhs_val);
         Value.RefVal loc = (Value.RefVal) lhs.accept(this, env);
+        unroot(1);
         return heap.setref(loc, rhs_val);
     }
 
@@ -259,14 +525,118 @@ public class Evaluator implements Visitor<Value> {
     public Value visit(FreeExp e, Env env) {
         Exp value_exp = e.value_exp();
         Value.RefVal loc = (Value.RefVal) value_exp.accept(this, env);
-        heap.free(loc);
-        return new Value.UnitVal();
+        return release(e, loc);
+    }
+
+    Value release(FreeExp e, Value.RefVal loc) {
+        if (tracker != null) tracker.freeing(e, loc);
+        if (gc != null && gc.mode() == Collector.Mode.HINT) { // the collector decides when the cell goes
+            gc.hint();
+            return Value.UnitVal.UNIT;
+        }
+        Value result = heap.free(loc);
+        if (result instanceof Value.DynamicError) return result;
+        return Value.UnitVal.UNIT;
     }
 
     @Override
     public Value visit(RefEqExp e, Env env) {
         Value.RefVal val1 = (Value.RefVal) e.exp1().accept(this, env);
+        root(val1);
         Value.RefVal val2 = (Value.RefVal) e.exp2().accept(this, env);
-        return new BoolVal(val1.loc() == val2.loc());
+        unroot(1);
+        return BoolVal.of(val1.loc() == val2.loc() && val1.generation() == val2.generation());
+    }
+
+    @Override
+    public Value visit(CasExp e, Env env) {
+        Value.RefVal loc = (Value.RefVal) e.loc_exp().accept(this, env);
+        root(loc);
+        Value expected = e.expected_exp().accept(this, env);
+        root(expected);
+        Value value = e.new_exp().accept(this, env);
+        unroot(2);
+        return heap.cas(loc, expected, value);
+    }
+
+    @Override
+    public Value visit(RegionExp e, Env env) {
+        int mark = heap.enterRegion();
+        if (mark < 0) return new Value.DynamicError("Regions are not supported by this heap");
+        try {
+            return e.body().accept(this, env);
+        } finally {
+            heap.exitRegion(mark);
+        }
+    }
+
+    @Override
+    public Value visit(LocalRefExp e, Env env) {
+        return e.value_exp().accept(this, env);
+    }
+
+    @Override
+    public Value visit(LocalDerefExp e, Env env) {
+        return e.var().accept(this, env);
+    }
+
+    @Override
+    public Value visit(LocalAssignExp e, Env env) {
+        Value rhs_val = e.rhs_exp().accept(this, env);
+        VarExp var = e.var();
+        ((FrameEnv) env).set(var.depth(), var.slot(), rhs_val);
+        return rhs_val;
+    }
+
+    @Override
+    public Value visit(InlinedCallExp e, Env env) {
+        return (stillInlined(e, env) ? e.inlined() : e.call()).accept(this, env);
+    }
+
+    /**
+     * Whether the global that e calls still holds a closure of the inlined
+     * lambda. Looking up a global has no side effects, so the original call
+     * may look it up again.
+     */
+    boolean stillInlined(InlinedCallExp e, Env env) {
+        return visit((VarExp) e.call().operator(), env) instanceof Value.FunVal fun && fun.formals() == e.formals();
+    }
+
+    @Override
+    public Value visit(RefUpdateExp e, Env env) {
+        Value.RefVal loc = (Value.RefVal) visit(e.var(), env);
+        root(loc);
+        NumVal result = update(e.rhs_exp(), e.subtract(), (NumVal) heap.deref(loc), env);
+        unroot(1);
+        return heap.setref(loc, result);
+    }
+
+    @Override
+    public Value visit(LocalUpdateExp e, Env env) {
+        VarExp var = e.var();
+        FrameEnv frame = (FrameEnv) env;
+        NumVal result = update(e.rhs_exp(), e.subtract(), (NumVal) frame.get(var.depth(), var.slot()), env);
+        frame.set(var.depth(), var.slot(), result);
+        return result;
+    }
+
+    /**
+     * Evaluates the operands of rhs after the first, and adds them to or
+     * subtracts them from first, the value of the first operand.
+     */
+    private NumVal update(CompoundArithExp rhs, boolean subtract, NumVal first, Env env) {
+        List<Exp> operands = rhs.all();
+        NumVal result = subtract ? first : NumVal.add(Value.IntVal.ZERO, first);
+        for (int i = 1; i < operands.size(); i++) {
+            NumVal operand = (NumVal) operands.get(i).accept(this, env);
+            result = subtract ? NumVal.sub(result, operand) : NumVal.add(result, operand);
+        }
+        return result;
+    }
+
+    @Override
+    public Value visit(DerefCarExp e, Env env) {
+        Value.PairVal pair = pair(e.arg(), env);
+        return heap.deref((Value.RefVal) pair.fst());
     }
 }
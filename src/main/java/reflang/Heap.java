@@ -1,6 +1,10 @@
 package reflang;
 
-import java.util.TreeSet;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Representation of a heap, which maps references to values.
@@ -17,50 +21,481 @@ public interface Heap {
 
     Value free(Value.RefVal value);
 
-    class Heap16Bit implements Heap {
+    /**
+     * Stores value at loc if loc holds a value equal to expected, returning
+     * a BoolVal that tells whether it did.
+     */
+    Value cas(Value.RefVal loc, Value expected, Value value);
+
+    /**
+     * Starts a region. Until the matching exitRegion, ref allocates cells
+     * from a contiguous arena by bumping a pointer.
+     *
+     * @return the mark to pass to exitRegion, or -1 if the heap does not
+     * support regions
+     */
+    int enterRegion();
+
+    /**
+     * Releases every cell allocated since the matching enterRegion in one
+     * step. Later accesses through references to those cells report a null
+     * pointer, even once their locations have been allocated again.
+     */
+    void exitRegion(int mark);
+
+    /**
+     * The equality used by cas: numbers and booleans compare by value,
+     * references by location and generation, unit and the empty list by kind, and every
+     * other value by identity.
+     */
+    static boolean sameValue(Value a, Value b) {
+        if (a == b) return true;
+        if (a instanceof Value.NumVal x && b instanceof Value.NumVal y) return Value.NumVal.equal(x, y);
+        if (a instanceof Value.BoolVal x && b instanceof Value.BoolVal y) return x.v() == y.v();
+        if (a instanceof Value.RefVal x && b instanceof Value.RefVal y)
+            return x.loc() == y.loc() && x.generation() == y.generation();
+        if (a instanceof Value.UnitVal && b instanceof Value.UnitVal) return true;
+        return a instanceof Value.Null && b instanceof Value.Null;
+    }
+
+    /**
+     * Common allocator for heaps that store their cells in arrays. Locations
+     * that have never been used are handed out by bumping a pointer, and
+     * freed locations are kept on a stack of ints, so both ref and free take
+     * constant time and do not allocate. A free cell holds null, which is how
+     * a second free of the same location is detected.
+     */
+    abstract class ArrayHeap implements Heap {
+        int _capacity = 0; // number of cells backed by storage
+        int _top = 0; // cells at and above _top have never been allocated
+        int[] _free = new int[16];
+        int _free_count = 0;
+        int _region_floor = Integer.MAX_VALUE; // cells at and above belong to an active region
+        int _region_depth = 0;
+        int[] _generations = new int[0]; // per cell, bumped each time a region releases it; 0 past the end
+        Snapshot _image; // holds the cells of a restored snapshot that have not been read yet
+
+        /**
+         * Reads the cell at loc, where 0 &lt;= loc &lt; _capacity.
+         */
+        abstract Value get(int loc);
+
+        /**
+         * Writes the cell at loc, where 0 &lt;= loc &lt; _capacity.
+         */
+        abstract void set(int loc, Value value);
+
+        /**
+         * Adds storage for more cells, returning false if the heap cannot grow.
+         */
+        abstract boolean grow();
+
+        /**
+         * Reads the cell at loc like get, but first copies the cell in from a
+         * restored snapshot if it has not been read yet.
+         */
+        Value load(int loc) {
+            Value value = get(loc);
+            if (value == null && _image != null) {
+                value = _image.takeCell(loc);
+                if (value != null) set(loc, value);
+            }
+            return value;
+        }
+
+        /**
+         * Returns true if no value is stored at loc, neither in the heap nor
+         * in a restored snapshot. Unlike load, this never builds the value.
+         */
+        boolean isFree(int loc) {
+            return get(loc) == null && (_image == null || !_image.holdsCell(loc));
+        }
+
+        /**
+         * Empties the cells from, ..., to - 1.
+         */
+        void clear(int from, int to) {
+            for (int loc = from; loc < to; loc++)
+                set(loc, null);
+        }
+
+        int generation(int loc) {
+            int[] generations = _generations;
+            return loc < generations.length ? generations[loc] : 0;
+        }
+
+        /**
+         * Returns true if loc refers to a cell that a region has released,
+         * even if the location has been allocated again since.
+         */
+        boolean dangling(Value.RefVal loc) {
+            return loc.generation() != generation(loc.loc());
+        }
+
+        public Value ref(Value value) {
+            int loc;
+            if (_free_count > 0 && _region_depth == 0) loc = _free[--_free_count];
+            else if (_top < _capacity || grow()) loc = _top++;
+            else return new Value.DynamicError("Out of memory error");
+            set(loc, value);
+            return new Value.RefVal(loc, generation(loc));
+        }
+
+        public Value deref(Value.RefVal loc) {
+            int l = loc.loc();
+            if (l < 0 || l >= _capacity) return new Value.DynamicError("Segmentation fault at access " + loc);
+            Value value = load(l);
+            if (value == null || dangling(loc)) return new Value.DynamicError("Null pointer at " + loc);
+            return value;
+        }
+
+        public Value setref(Value.RefVal loc, Value value) {
+            int l = loc.loc();
+            if (l < 0 || l >= _capacity) return new Value.DynamicError("Segmentation fault at access " + loc);
+            if (isFree(l) || dangling(loc)) return new Value.DynamicError("Null pointer at " + loc);
+            if (_image != null) _image.dropCell(l); // overwritten before it was read
+            set(l, value);
+            return value;
+        }
+
+        public Value free(Value.RefVal loc) {
+            int l = loc.loc();
+            if (l < 0 || l >= _capacity) return new Value.DynamicError("Segmentation fault at access " + loc);
+            if (dangling(loc)) return new Value.DynamicError("Null pointer at " + loc);
+            if (isFree(l)) return new Value.DynamicError("Double free at " + loc);
+            release(l);
+            return loc;
+        }
+
+        public Value cas(Value.RefVal loc, Value expected, Value value) {
+            int l = loc.loc();
+            if (l < 0 || l >= _capacity) return new Value.DynamicError("Segmentation fault at access " + loc);
+            Value current = load(l);
+            if (current == null || dangling(loc)) return new Value.DynamicError("Null pointer at " + loc);
+            if (!Heap.sameValue(current, expected)) return Value.BoolVal.FALSE;
+            set(l, value);
+            return Value.BoolVal.TRUE;
+        }
+
+        /**
+         * Returns an allocated cell to the free list.
+         */
+        void release(int loc) {
+            set(loc, null);
+            if (_image != null) _image.dropCell(loc);
+            if (loc >= _region_floor) return; // reclaimed when the region exits
+            if (_free_count == _free.length) _free = Arrays.copyOf(_free, _free.length * 2);
+            _free[_free_count++] = loc;
+        }
+
+        public int enterRegion() {
+            if (_region_depth++ == 0) _region_floor = _top;
+            return _top;
+        }
+
+        public void exitRegion(int mark) {
+            clear(mark, _top);
+            // The cells will be allocated again, so references into the region
+            // must no longer match them.
+            if (_generations.length < _top) _generations = Arrays.copyOf(_generations, Math.max(_top, _generations.length * 2));
+            for (int loc = mark; loc < _top; loc++)
+                _generations[loc]++;
+            _top = mark;
+            if (--_region_depth == 0) _region_floor = Integer.MAX_VALUE;
+        }
+
+        /**
+         * Returns the number of allocated cells.
+         */
+        int live() {
+            return _top - _free_count;
+        }
+    }
+
+    /**
+     * A fixed heap of 65,536 cells.
+     */
+    class Heap16Bit extends ArrayHeap {
         static final int HEAP_SIZE = 65_536;
 
         Value[] _rep = new Value[HEAP_SIZE];
-        TreeSet<Integer> ts = new TreeSet();
+
+        public Heap16Bit() {
+            _capacity = HEAP_SIZE;
+        }
+
+        Value get(int loc) {
+            return _rep[loc];
+        }
+
+        void set(int loc, Value value) {
+            _rep[loc] = value;
+        }
+
+        @Override
+        void clear(int from, int to) {
+            Arrays.fill(_rep, from, to, null);
+        }
+
+        boolean grow() {
+            return false;
+        }
+    }
+
+    /**
+     * A heap that grows on demand, one fixed-size segment at a time, up to a
+     * maximum capacity; the last segment is shorter when the maximum is not a
+     * multiple of the segment size. Growing allocates a new segment and never
+     * copies the existing cells; only the small directory of segments is
+     * resized.
+     */
+    class SegmentedHeap extends ArrayHeap {
+        static final int DEFAULT_SEGMENT_SIZE = 65_536;
+
+        private final int _segment_size;
+        private final int _shift;
+        private final int _mask;
+        private final int _max_capacity;
+        Value[][] _segments = new Value[4][];
+
+        public SegmentedHeap() {
+            this(DEFAULT_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE);
+        }
+
+        /**
+         * @param initial_capacity number of cells to allocate up front
+         * @param segment_size     number of cells added by each growth step, a power of two
+         * @param max_capacity     the heap never grows beyond this many cells
+         */
+        public SegmentedHeap(int initial_capacity, int segment_size, int max_capacity) {
+            if (segment_size <= 0 || Integer.bitCount(segment_size) != 1)
+                throw new IllegalArgumentException("Heap segment size must be a power of two: " + segment_size);
+            if (initial_capacity < 0 || max_capacity < initial_capacity)
+                throw new IllegalArgumentException("Invalid heap capacity: " + initial_capacity + " (maximum " + max_capacity + ")");
+            _segment_size = segment_size;
+            _shift = Integer.numberOfTrailingZeros(segment_size);
+            _mask = segment_size - 1;
+            _max_capacity = max_capacity;
+            while (_capacity < initial_capacity && grow()) ;
+        }
+
+        Value get(int loc) {
+            return _segments[loc >>> _shift][loc & _mask];
+        }
+
+        void set(int loc, Value value) {
+            _segments[loc >>> _shift][loc & _mask] = value;
+        }
+
+        boolean grow() {
+            if (_capacity >= _max_capacity) return false;
+            int index = _capacity >>> _shift;
+            if (index == _segments.length) _segments = Arrays.copyOf(_segments, index * 2);
+            // The last segment is cut short so the heap ends at exactly _max_capacity.
+            int size = Math.min(_segment_size, _max_capacity - _capacity);
+            _segments[index] = new Value[size];
+            _capacity += size;
+            return true;
+        }
+    }
+
+    /**
+     * A heap that stores numbers unboxed. Each cell has a tag saying whether
+     * it is free, holds an integer, holds another number, or holds any other
+     * value; numbers live in a parallel long[], as the long itself or as the
+     * bits of the double, and only become NumVal objects when they are read,
+     * so a heap full of numbers keeps no Value objects alive. The arrays
+     * double in size when the heap grows, up to a maximum capacity.
+     */
+    class UnboxedHeap extends ArrayHeap {
+        private static final byte FREE = 0, NUMBER = 1, INTEGER = 2, OBJECT = 3;
+
+        private final int _max_capacity;
+        byte[] _tags;
+        long[] _numbers; // a long for INTEGER cells, the bits of a double for NUMBER cells
+        Value[] _objects;
+
+        public UnboxedHeap(int initial_capacity, int max_capacity) {
+            if (initial_capacity <= 0 || max_capacity < initial_capacity)
+                throw new IllegalArgumentException("Invalid heap capacity: " + initial_capacity + " (maximum " + max_capacity + ")");
+            _max_capacity = max_capacity;
+            _capacity = initial_capacity;
+            _tags = new byte[initial_capacity];
+            _numbers = new long[initial_capacity];
+            _objects = new Value[initial_capacity];
+        }
+
+        Value get(int loc) {
+            return switch (_tags[loc]) {
+                case NUMBER -> Value.NumVal.of(Double.longBitsToDouble(_numbers[loc]));
+                case INTEGER -> Value.IntVal.of(_numbers[loc]);
+                case OBJECT -> _objects[loc];
+                default -> null;
+            };
+        }
+
+        void set(int loc, Value value) {
+            if (value instanceof Value.IntVal num) {
+                _tags[loc] = INTEGER;
+                _numbers[loc] = num.l();
+                _objects[loc] = null;
+            } else if (value instanceof Value.NumVal num) {
+                _tags[loc] = NUMBER;
+                _numbers[loc] = Double.doubleToRawLongBits(num.v());
+                _objects[loc] = null;
+            } else {
+                _tags[loc] = value == null ? FREE : OBJECT;
+                _objects[loc] = value;
+            }
+        }
+
+        @Override
+        boolean isFree(int loc) {
+            return _tags[loc] == FREE && (_image == null || !_image.holdsCell(loc));
+        }
+
+        @Override
+        void clear(int from, int to) {
+            Arrays.fill(_tags, from, to, FREE);
+            Arrays.fill(_objects, from, to, null);
+        }
+
+        boolean grow() {
+            if (_capacity >= _max_capacity) return false;
+            int capacity = (int) Math.min((long) _capacity * 2, _max_capacity);
+            _tags = Arrays.copyOf(_tags, capacity);
+            _numbers = Arrays.copyOf(_numbers, capacity);
+            _objects = Arrays.copyOf(_objects, capacity);
+            _capacity = capacity;
+            return true;
+        }
+    }
+
+    /**
+     * A fixed-size heap that evaluators on several threads can share.
+     * <p>
+     * Cells are atomic references: deref, setref, free and cas never see a
+     * half-finished update, and a cell freed by one thread cannot be written
+     * by another. Each thread bump-allocates fresh cells from its own chunk
+     * of the heap, so allocation only touches shared state once per chunk.
+     * Freed cells go on a lock-free stack shared by all threads and are
+     * reused once the calling thread's chunk is used up.
+     * <p>
+     * Regions are not supported, since another thread could still refer to
+     * a region's cells when it releases them. The heap cannot be garbage
+     * collected.
+     */
+    class ConcurrentHeap implements Heap {
+        static final int CHUNK_SIZE = 256;
+
+        private final int _capacity;
+        private final AtomicReferenceArray<Value> _cells;
+        private final AtomicInteger _top = new AtomicInteger(); // start of the next unclaimed chunk
+
+        // Free stack of locations linked through _next. The head packs a
+        // version count above the top location + 1, so a location that is
+        // popped and pushed again between a read and a compareAndSet of the
+        // head cannot corrupt the stack.
+        private final AtomicIntegerArray _next;
+        private final AtomicLong _free_head = new AtomicLong();
+
+        private final ThreadLocal<int[]> _chunk = ThreadLocal.withInitial(() -> new int[2]); // {next, limit}
+
+        public ConcurrentHeap(int capacity) {
+            if (capacity <= 0) throw new IllegalArgumentException("Invalid heap capacity: " + capacity);
+            _capacity = capacity;
+            _cells = new AtomicReferenceArray<>(capacity);
+            _next = new AtomicIntegerArray(capacity);
+        }
 
         public Value ref(Value value) {
-            if (ts.isEmpty()) return new Value.DynamicError("Out of memory error");
-            Value.RefVal new_loc = new Value.RefVal(ts.first());
-            _rep[ts.first()] = value;
-            ts.removeFirst();
-            return new_loc;
+            int loc = allocate();
+            if (loc < 0) return new Value.DynamicError("Out of memory error");
+            _cells.set(loc, value);
+            return new Value.RefVal(loc);
         }
 
-        public Value deref(Value.RefVal loc) {
-            try {
-                if (_rep[loc.loc()] == null) return new Value.DynamicError("Null pointer at " + loc);
-                return _rep[loc.loc()];
-            } catch (ArrayIndexOutOfBoundsException e) {
-                return new Value.DynamicError("Segmentation fault at access " + loc);
+        private int allocate() {
+            int[] chunk = _chunk.get();
+            if (chunk[0] < chunk[1]) return chunk[0]++;
+            int loc = pop();
+            if (loc >= 0) return loc;
+            int start = _top.getAndAdd(CHUNK_SIZE);
+            if (start < 0 || start >= _capacity) {
+                _top.set(_capacity); // keep the counter from wrapping around
+                return -1;
+            }
+            chunk[0] = start + 1;
+            chunk[1] = Math.min(start + CHUNK_SIZE, _capacity);
+            return start;
+        }
+
+        private int pop() {
+            while (true) {
+                long head = _free_head.get();
+                int loc = (int) head - 1;
+                if (loc < 0) return -1;
+                long next = (head & 0xFFFF_FFFF_0000_0000L) + (1L << 32) | (_next.get(loc) + 1);
+                if (_free_head.compareAndSet(head, next)) return loc;
+            }
+        }
+
+        private void push(int loc) {
+            while (true) {
+                long head = _free_head.get();
+                _next.set(loc, (int) head - 1);
+                long next = (head & 0xFFFF_FFFF_0000_0000L) + (1L << 32) | (loc + 1);
+                if (_free_head.compareAndSet(head, next)) return;
             }
         }
 
+        public Value deref(Value.RefVal loc) {
+            int l = loc.loc();
+            if (l < 0 || l >= _capacity) return new Value.DynamicError("Segmentation fault at access " + loc);
+            Value value = _cells.get(l);
+            if (value == null) return new Value.DynamicError("Null pointer at " + loc);
+            return value;
+        }
+
         public Value setref(Value.RefVal loc, Value value) {
-            try {
-                if (_rep[loc.loc()] == null) return new Value.DynamicError("Null pointer at " + loc);
-                return _rep[loc.loc()] = value;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                return new Value.DynamicError("Segmentation fault at access " + loc);
+            int l = loc.loc();
+            if (l < 0 || l >= _capacity) return new Value.DynamicError("Segmentation fault at access " + loc);
+            while (true) {
+                Value current = _cells.get(l);
+                if (current == null) return new Value.DynamicError("Null pointer at " + loc);
+                if (_cells.compareAndSet(l, current, value)) return value;
             }
         }
 
         public Value free(Value.RefVal loc) {
-            try {
-                ts.add(loc.loc());
-                _rep[loc.loc()] = null;
-                return loc;
-            } catch (ArrayIndexOutOfBoundsException e) {
-                return new Value.DynamicError("Segmentation fault at access " + loc);
+            int l = loc.loc();
+            if (l < 0 || l >= _capacity) return new Value.DynamicError("Segmentation fault at access " + loc);
+            while (true) {
+                Value current = _cells.get(l);
+                if (current == null) return new Value.DynamicError("Double free at " + loc);
+                if (_cells.compareAndSet(l, current, null)) break;
             }
+            push(l);
+            return loc;
         }
 
-        public Heap16Bit() {
-            for(int i=0; i<HEAP_SIZE; i++) ts.add(i);
+        public Value cas(Value.RefVal loc, Value expected, Value value) {
+            int l = loc.loc();
+            if (l < 0 || l >= _capacity) return new Value.DynamicError("Segmentation fault at access " + loc);
+            while (true) {
+                Value current = _cells.get(l);
+                if (current == null) return new Value.DynamicError("Null pointer at " + loc);
+                if (!Heap.sameValue(current, expected)) return Value.BoolVal.FALSE;
+                if (_cells.compareAndSet(l, current, value)) return Value.BoolVal.TRUE;
+            }
+        }
+
+        public int enterRegion() {
+            return -1;
+        }
+
+        public void exitRegion(int mark) {
+            throw new IllegalStateException("The concurrent heap has no regions");
         }
     }
 
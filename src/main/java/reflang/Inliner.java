@@ -0,0 +1,274 @@
+package reflang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static reflang.AST.*;
+
+/**
+ * Replaces calls of small functions that are known before the program runs
+ * by their bodies. A call (f a b) of (lambda (x y) body) becomes
+ * (let ((x a) (y b)) body), which evaluates the arguments once each and in
+ * the same order as the call, and binds them the same way. Arguments that
+ * are literals or local variables are substituted into the body instead,
+ * when the body does not bind their names itself, so (square n) becomes
+ * (* n n) without a frame.
+ * <p>
+ * The callee is known when the operator is a lambda expression, a name bound
+ * to a lambda by an enclosing let, or a global that the program defines as a
+ * lambda exactly once, in an earlier definition. A call of a global becomes
+ * an InlinedCallExp, which falls back to the call if the global has been
+ * redefined since. Besides immediate lambdas, only bodies of at most BUDGET
+ * nodes that do not call the function itself are inlined, and only where
+ * none of the body's free variables is bound differently than where the
+ * lambda was written.
+ */
+public class Inliner extends Rewriter {
+    static final int BUDGET = 24;
+
+    /**
+     * A lambda the Inliner may copy, already rewritten, with the free
+     * variables and bound names of its body and the number of enclosing
+     * scopes where it was written.
+     */
+    private record Known(LambdaExp lambda, Names names, int depth, boolean global) {
+    }
+
+    private Map<Symbol, Known> known = new HashMap<>();
+    private final List<Symbol[]> scopes = new ArrayList<>(); // names bound by enclosing lets and lambdas
+
+    @Override
+    public Program rewrite(Program p) {
+        Map<Symbol, Integer> definitions = new HashMap<>();
+        for (DefineDecl d : p.decls())
+            definitions.merge(d.symbol(), 1, Integer::sum);
+
+        List<DefineDecl> decls = new ArrayList<>(p.decls().size());
+        for (DefineDecl d : p.decls()) {
+            DefineDecl decl = (DefineDecl) rewrite(d);
+            decls.add(decl);
+            if (decl.value_exp() instanceof LambdaExp lambda && definitions.get(d.symbol()) == 1) {
+                Names names = names(lambda);
+                if (!names.free.contains(d.symbol()) && size(lambda.body()) <= BUDGET)
+                    known.put(d.symbol(), new Known(lambda, names, 0, true));
+            }
+        }
+        return new Program(decls, rewrite(p.e()));
+    }
+
+    @Override
+    public Exp visit(CallExp e, Env env) {
+        List<Exp> operands = rewriteAll(e.operands());
+        if (e.operator() instanceof LambdaExp lambda && lambda.symbols().length == operands.size()) {
+            LambdaExp callee = (LambdaExp) rewrite(lambda);
+            return bind(callee, names(callee), operands);
+        }
+        if (e.operator() instanceof VarExp var) {
+            Known callee = known.get(var.symbol());
+            if (callee != null && callee.lambda().symbols().length == operands.size() && !captured(callee)) {
+                Exp inlined = bind(callee.lambda(), callee.names(), operands);
+                if (!callee.global()) return inlined;
+                // Resolving the same node twice could give it two addresses, so copy the operands.
+                CallExp call = new CallExp(new VarExp(var.symbol()), new Rewriter().rewriteAll(operands));
+                call._origin = e.origin();
+                return new InlinedCallExp(callee.lambda().symbols(), inlined, call);
+            }
+        }
+        return new CallExp(rewrite(e.operator()), operands);
+    }
+
+    /**
+     * Returns (let ((formal operand) ...) body) for the callee, leaving out
+     * the operands that are substituted into a copy of the body.
+     */
+    private Exp bind(LambdaExp callee, Names names, List<Exp> operands) {
+        Symbol[] formals = callee.symbols();
+        Map<Symbol, Exp> substitutions = new HashMap<>();
+        List<Symbol> kept_formals = new ArrayList<>();
+        List<Exp> kept_operands = new ArrayList<>();
+        for (int i = 0; i < formals.length; i++) {
+            if (substitutable(operands.get(i), formals, names) && !substitutions.containsKey(formals[i])) {
+                substitutions.put(formals[i], operands.get(i));
+            } else {
+                kept_formals.add(formals[i]);
+                kept_operands.add(operands.get(i));
+            }
+        }
+        for (Symbol formal : kept_formals)
+            substitutions.remove(formal); // a formal listed twice is bound by its last operand
+        Exp body = new Substitution(substitutions).rewrite(callee.body());
+        if (kept_formals.isEmpty()) return body;
+        return new LetExp(kept_formals.toArray(new Symbol[0]), kept_operands, body);
+    }
+
+    /**
+     * Literals can be evaluated anywhere. A local variable always has a
+     * value, and means the same in the body unless the body or the formals
+     * bind its name.
+     */
+    private boolean substitutable(Exp operand, Symbol[] formals, Names names) {
+        if (operand instanceof NumExp || operand instanceof BoolExp || operand instanceof UnitExp) return true;
+        if (!(operand instanceof VarExp var) || names.bound.contains(var.symbol())) return false;
+        for (Symbol formal : formals)
+            if (formal == var.symbol()) return false;
+        for (Symbol[] scope : scopes)
+            for (Symbol name : scope)
+                if (name == var.symbol()) return true;
+        return false;
+    }
+
+    /**
+     * Whether a scope entered since the callee was written binds one of its
+     * free variables.
+     */
+    private boolean captured(Known callee) {
+        for (int i = callee.depth(); i < scopes.size(); i++)
+            for (Symbol name : scopes.get(i))
+                if (callee.names().free.contains(name)) return true;
+        return false;
+    }
+
+    @Override
+    public Exp visit(LetExp e, Env env) {
+        Symbol[] names = e.symbols();
+        List<Exp> value_exps = rewriteAll(e.value_exps());
+
+        Map<Symbol, Known> saved = known;
+        known = new HashMap<>(saved);
+        for (int i = 0; i < names.length; i++) {
+            known.remove(names[i]);
+            if (value_exps.get(i) instanceof LambdaExp lambda && size(lambda.body()) <= BUDGET)
+                known.put(names[i], new Known(lambda, names(lambda), scopes.size(), false));
+        }
+        scopes.add(names);
+        try {
+            return new LetExp(names, value_exps, rewrite(e.body()));
+        } finally {
+            scopes.remove(scopes.size() - 1);
+            known = saved;
+        }
+    }
+
+    @Override
+    public Exp visit(LambdaExp e, Env env) {
+        Map<Symbol, Known> saved = known;
+        known = new HashMap<>(saved);
+        for (Symbol formal : e.symbols())
+            known.remove(formal);
+        scopes.add(e.symbols());
+        try {
+            return super.visit(e, env);
+        } finally {
+            scopes.remove(scopes.size() - 1);
+            known = saved;
+        }
+    }
+
+    private static int size(Exp e) {
+        Size size = new Size();
+        size.rewrite(e);
+        return size.nodes;
+    }
+
+    private static Names names(LambdaExp lambda) {
+        Names names = new Names();
+        names.rewrite(lambda.body());
+        for (Symbol formal : lambda.symbols())
+            names.free.remove(formal);
+        return names;
+    }
+
+    /**
+     * Counts the nodes of an expression.
+     */
+    private static final class Size extends Rewriter {
+        int nodes = 0;
+
+        @Override
+        protected Exp rewrite(Exp e) {
+            nodes++;
+            return super.rewrite(e);
+        }
+    }
+
+    /**
+     * Collects the names an expression uses without binding them, and the
+     * names it binds.
+     */
+    private static final class Names extends Rewriter {
+        final Set<Symbol> free = new HashSet<>();
+        final Set<Symbol> bound = new HashSet<>();
+        private final List<Symbol> in_scope = new ArrayList<>();
+
+        @Override
+        public Exp visit(VarExp e, Env env) {
+            if (!in_scope.contains(e.symbol())) free.add(e.symbol());
+            return e;
+        }
+
+        @Override
+        public Exp visit(LetExp e, Env env) {
+            rewriteAll(e.value_exps());
+            return within(e.symbols(), e.body());
+        }
+
+        @Override
+        public Exp visit(LambdaExp e, Env env) {
+            return within(e.symbols(), e.body());
+        }
+
+        private Exp within(Symbol[] names, Exp body) {
+            int size = in_scope.size();
+            in_scope.addAll(List.of(names));
+            bound.addAll(List.of(names));
+            rewrite(body);
+            in_scope.subList(size, in_scope.size()).clear();
+            return body;
+        }
+    }
+
+    /**
+     * Copies an expression, replacing the free occurrences of some names.
+     */
+    private static final class Substitution extends Rewriter {
+        private Map<Symbol, Exp> substitutions;
+
+        Substitution(Map<Symbol, Exp> substitutions) {
+            this.substitutions = substitutions;
+        }
+
+        @Override
+        public Exp visit(VarExp e, Env env) {
+            Exp replacement = substitutions.get(e.symbol());
+            if (replacement == null) return super.visit(e, env);
+            return rewrite(replacement); // a fresh copy for each occurrence
+        }
+
+        @Override
+        public Exp visit(LetExp e, Env env) {
+            List<Exp> value_exps = rewriteAll(e.value_exps());
+            return new LetExp(e.symbols(), value_exps, within(e.symbols(), e.body()));
+        }
+
+        @Override
+        public Exp visit(LambdaExp e, Env env) {
+            return new LambdaExp(e.symbols(), within(e.symbols(), e.body()));
+        }
+
+        private Exp within(Symbol[] names, Exp body) {
+            Map<Symbol, Exp> saved = substitutions;
+            substitutions = new HashMap<>(saved);
+            for (Symbol name : names)
+                substitutions.remove(name);
+            try {
+                return rewrite(body);
+            } finally {
+                substitutions = saved;
+            }
+        }
+    }
+}
@@ -2,6 +2,9 @@ package reflang;
 
 import reflang.AST.Program;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
 /**
  * This main class implements the Read-Eval-Print-Loop of the interpreter with
  * the help of Reader, Evaluator, and Printer classes.
@@ -10,6 +13,16 @@ import reflang.AST.Program;
  */
 public class Interpreter {
     public static void main(String[] args) {
+        Options options;
+        Evaluator eval;
+        try {
+            options = Options.parse(args);
+            eval = options.newEvaluator();
+            if (options.loadSnapshot != null) Snapshot.restore(eval, Path.of(options.loadSnapshot));
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
         System.out.println("""
                 RefLang: Type a program to evaluate and press the enter key,
                 e.g. (ref 342)
@@ -20,7 +33,6 @@ public class Interpreter {
                 Press Ctrl + C to exit.
                 """);
         try (Reader reader = new Reader()) {
-            Evaluator eval = new Evaluator();
             Printer printer = new Printer();
             // Read-Eval-Print-Loop (also known as REPL)
             while (true) {
@@ -29,6 +41,13 @@ public class Interpreter {
                     p = reader.read();
                     if (p == null) {
                         System.out.println();
+                        if (options.gcStats && eval.collector() != null)
+                            System.out.println(eval.collector().stats());
+                        if (eval.tracker != null)
+                            System.out.print(eval.tracker.report());
+                        if (options.jitStats && eval.jit != null)
+                            System.out.println(eval.jit.stats());
+                        if (options.saveSnapshot != null) save(eval, options.saveSnapshot);
                         break;
                     } else if (p._e == null) {
                         System.out.println();
@@ -36,7 +55,7 @@ public class Interpreter {
                         Value val = eval.valueOf(p);
                         printer.print(val);
                     }
-                } catch (Env.LookupException e) {
+                } catch (Env.LookupException | TypeChecker.TypeException e) {
                     printer.print(e);
                 } catch (Exception e) {
                     System.out.println("Error:" + e.getMessage());
@@ -46,4 +65,12 @@ public class Interpreter {
             System.err.println("Error closing input stream: " + e.getMessage());
         }
     }
+
+    private static void save(Evaluator eval, String file) {
+        try {
+            Snapshot.write(eval, Path.of(file));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error saving snapshot: " + e.getMessage());
+        }
+    }
 }
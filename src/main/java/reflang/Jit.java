@@ -0,0 +1,451 @@
+package reflang;
+
+import reflang.AST.*;
+import reflang.ClassWriter.Label;
+import reflang.ClassWriter.MethodWriter;
+import reflang.Env.GlobalEnv;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static reflang.ClassWriter.ACC_PUBLIC;
+import static reflang.ClassWriter.ACC_STATIC;
+
+/**
+ * The second tier of execution: compiles the bodies of hot functions to JVM
+ * bytecode.
+ * <p>
+ * Every call of a function value is counted, and when a function reaches
+ * the threshold its body is compiled into a hidden class, once per body.
+ * Only numeric code is compiled: numbers, the parameters and let-bound
+ * variables holding numbers, arithmetic, comparisons used as if conditions,
+ * and calls of the function to itself through its global name, which become
+ * loops when they are tail calls. Such code works on unboxed longs and
+ * doubles and has no side effects. A function whose body uses anything else
+ * keeps running in the interpreter.
+ * <p>
+ * Each parameter is compiled as a long or a double, whichever the argument
+ * of the call that triggered compilation was, and compiled code is only
+ * entered with arguments of those types. Integer arithmetic that overflows
+ * deoptimizes, since the interpreter would continue in doubles. A recursive
+ * call first checks that the global name still refers to the compiled
+ * function; if not, the code deoptimizes by throwing Deopt, and the call is
+ * evaluated again by the interpreter, which is safe because the compiled
+ * code had no side effects. For the same reason, a call whose compiled
+ * recursion overflows the Java stack deoptimizes too, so that the
+ * StackEvaluator can run deep recursion on its own stack.
+ */
+public class Jit {
+    static final int DEFAULT_THRESHOLD = 1000;
+
+    private static final String CODE = "reflang/Jit$Code";
+    private static final String DEOPT = "reflang/Jit$Deopt";
+    private static final String VALUE = "reflang/Value";
+    private static final String NUM_VAL = "reflang/Value$NumVal";
+    private static final String INT_VAL = "reflang/Value$IntVal";
+    private static final String CELL = "reflang/Env$GlobalEnv$Cell";
+
+    /**
+     * Compiled code for a function body. Subclasses are generated.
+     */
+    abstract static class Code {
+        GlobalEnv globals; // the environment whose global names the code refers to
+        String types; // J or D for each parameter, as in the descriptor of run
+
+        abstract Value call(Value[] args);
+    }
+
+    static final class Deopt extends RuntimeException {
+        static final Deopt INSTANCE = new Deopt();
+
+        private Deopt() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final Code NOT_COMPILED = new Code() {
+        Value call(Value[] args) {
+            throw new IllegalStateException("Function is not compiled");
+        }
+    };
+
+    private final GlobalEnv _globals;
+    private final int _threshold;
+    private final Map<Exp, Code> _compiled = new IdentityHashMap<>(); // by function body
+    private final Stats _stats = new Stats();
+
+    public Jit(GlobalEnv globals, int threshold) {
+        _globals = globals;
+        _threshold = threshold;
+    }
+
+    public Stats stats() {
+        return _stats;
+    }
+
+    /**
+     * Calls fun with actuals using compiled code, or returns null if the call
+     * has to be interpreted.
+     */
+    Value call(Value.FunVal fun, Value[] actuals) {
+        Code code = fun._code;
+        if (code == null) {
+            if (++fun._calls < _threshold) return null;
+            fun._code = code = compile(fun, actuals);
+        }
+        if (code == NOT_COMPILED || code.globals != _globals) return null;
+        for (int i = 0; i < actuals.length; i++) {
+            if (!(actuals[i] instanceof Value.NumVal)) return null;
+            if ((actuals[i] instanceof Value.IntVal) != (code.types.charAt(i) == LONG)) return null;
+        }
+        try {
+            return code.call(actuals);
+        } catch (Deopt | ArithmeticException | StackOverflowError e) {
+            _stats._deopts++;
+            fun._code = NOT_COMPILED;
+            return null;
+        }
+    }
+
+    private Code compile(Value.FunVal fun, Value[] actuals) {
+        Code code = _compiled.get(fun.body());
+        if (code != null) return code;
+        StringBuilder types = new StringBuilder();
+        for (Value actual : actuals)
+            types.append(actual instanceof Value.IntVal ? LONG : DOUBLE);
+        long start = System.nanoTime();
+        try {
+            try {
+                code = new Generator(fun, types.toString(), LONG).define();
+            } catch (WrongReturnType e) {
+                code = new Generator(fun, types.toString(), e.type).define();
+            }
+            _stats._compiled++;
+        } catch (Unsupported e) {
+            code = NOT_COMPILED;
+            _stats._not_compilable++;
+        } catch (Throwable e) {
+            code = NOT_COMPILED;
+            _stats._failed++;
+        }
+        _stats._compile_time += System.nanoTime() - start;
+        _compiled.put(fun.body(), code);
+        return code;
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * The body was compiled assuming run returns one type, but it returns
+     * the other.
+     */
+    private static final class WrongReturnType extends Unsupported {
+        final char type;
+
+        WrongReturnType(char type) {
+            this.type = type;
+        }
+    }
+
+    private static final char LONG = 'J', DOUBLE = 'D';
+
+    /**
+     * Generates a class with a static method run that evaluates the function
+     * body on unboxed arguments, and a call(Value[]) that unboxes them.
+     */
+    private final class Generator {
+        private final Value.FunVal fun;
+        private final int arity;
+        private final String types;
+        private final char return_type;
+        private final ClassWriter cw = new ClassWriter("reflang/JitCode", CODE);
+        private final String run_descriptor;
+        private MethodWriter m;
+        private final List<int[]> scopes = new ArrayList<>(); // JVM locals of each frame, innermost last
+        private final List<String> scope_types = new ArrayList<>(); // and their types
+        private int next_local;
+        private GlobalEnv.Cell self_cell;
+        private final Label start = new Label();
+
+        Generator(Value.FunVal fun, String types, char return_type) {
+            this.fun = fun;
+            this.arity = fun.formals().length;
+            this.types = types;
+            this.return_type = return_type;
+            run_descriptor = "(" + types + ")" + return_type;
+        }
+
+        Code define() throws Throwable {
+            int[] params = new int[arity];
+            for (int i = 0; i < arity; i++)
+                params[i] = 2 * i;
+            scopes.add(params);
+            scope_types.add(types);
+            next_local = 2 * arity;
+
+            // The number of locals is known once the body is generated.
+            m = cw.method(ACC_PUBLIC | ACC_STATIC, "run", run_descriptor, 0);
+            m.mark(start, true);
+            char type = compile(fun.body());
+            if (type != return_type) throw new WrongReturnType(type);
+            m.op(type == LONG ? 0xAD : 0xAF, -2); // lreturn or dreturn
+            if (next_local > 65535) throw new Unsupported();
+            m.maxLocals(next_local);
+
+            cw.field(ACC_STATIC, "SELF_CELL", "L" + CELL + ";");
+            cw.field(ACC_STATIC, "SELF", "L" + VALUE + ";");
+
+            MethodWriter init = cw.method(ACC_PUBLIC, "<init>", "()V", 1);
+            init.local(0x19, 0, 1); // aload
+            init.constantOp(0xB7, cw.methodRef(CODE, "<init>", "()V"), -1); // invokespecial
+            init.op(0xB1, 0); // return
+
+            MethodWriter call = cw.method(ACC_PUBLIC, "call", "([L" + VALUE + ";)L" + VALUE + ";", 2);
+            for (int i = 0; i < arity; i++) {
+                call.local(0x19, 1, 1); // aload
+                call.intConstant(i);
+                call.op(0x32, -1); // aaload
+                if (types.charAt(i) == LONG) {
+                    call.constantOp(0xC0, cw.classRef(INT_VAL), 0); // checkcast
+                    call.constantOp(0xB6, cw.methodRef(INT_VAL, "l", "()J"), 1); // invokevirtual
+                } else {
+                    call.constantOp(0xC0, cw.classRef(NUM_VAL), 0); // checkcast
+                    call.constantOp(0xB6, cw.methodRef(NUM_VAL, "v", "()D"), 1); // invokevirtual
+                }
+            }
+            call.constantOp(0xB8, cw.methodRef("reflang/JitCode", "run", run_descriptor), 2 - 2 * arity); // invokestatic
+            if (return_type == LONG)
+                call.constantOp(0xB8, cw.methodRef(INT_VAL, "of", "(J)L" + INT_VAL + ";"), -1); // invokestatic
+            else
+                call.constantOp(0xB8, cw.methodRef(NUM_VAL, "of", "(D)L" + NUM_VAL + ";"), -1); // invokestatic
+            call.op(0xB0, -1); // areturn
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cw.toByteArray(), true);
+            Class<?> c = lookup.lookupClass();
+            lookup.findStaticSetter(c, "SELF_CELL", GlobalEnv.Cell.class).invoke(self_cell);
+            lookup.findStaticSetter(c, "SELF", Value.class).invoke((Value) fun);
+            Code code = (Code) lookup.findConstructor(c, MethodType.methodType(void.class)).invoke();
+            code.globals = _globals;
+            code.types = types;
+            return code;
+        }
+
+        /**
+         * Leaves the value of e on the stack as a long if it is an exact
+         * integer, or as a double, and returns which.
+         */
+        private char compile(Exp e) {
+            if (e instanceof NumExp num) {
+                if (num.value() instanceof Value.IntVal i) {
+                    if (i.l() == 0) m.op(0x09, 2); // lconst_0
+                    else if (i.l() == 1) m.op(0x0A, 2); // lconst_1
+                    else m.constantOp(0x14, cw.longConstant(i.l()), 2); // ldc2_w
+                    return LONG;
+                }
+                double v = num.v();
+                if (Double.doubleToRawLongBits(v) == 0L) m.op(0x0E, 2); // dconst_0
+                else if (v == 1.0) m.op(0x0F, 2); // dconst_1
+                else m.constantOp(0x14, cw.doubleConstant(v), 2); // ldc2_w
+                return DOUBLE;
+            } else if (e instanceof VarExp var) {
+                if (var.depth() < 0 || var.depth() >= scopes.size()) throw new Unsupported();
+                int frame = scopes.size() - 1 - var.depth();
+                char type = scope_types.get(frame).charAt(var.slot());
+                m.local(type == LONG ? 0x16 : 0x18, scopes.get(frame)[var.slot()], 2); // lload or dload
+                return type;
+            } else if (e instanceof AddExp add) {
+                m.op(0x09, 2); // lconst_0, like the interpreter's initial sum
+                return compileFold(LONG, add.all(), 0x63, "addExact"); // dadd
+            } else if (e instanceof MultExp mult) {
+                m.op(0x0A, 2); // lconst_1
+                return compileFold(LONG, mult.all(), 0x6B, "multiplyExact"); // dmul
+            } else if (e instanceof SubExp sub) {
+                if (sub.all().isEmpty()) throw new Unsupported();
+                char type = compile(sub.all().get(0));
+                return compileFold(type, sub.all().subList(1, sub.all().size()), 0x67, "subtractExact"); // dsub
+            } else if (e instanceof DivExp div) {
+                // Division is always done in doubles.
+                if (div.all().isEmpty()) throw new Unsupported();
+                toDouble(compile(div.all().get(0)));
+                for (Exp operand : div.all().subList(1, div.all().size())) {
+                    toDouble(compile(operand));
+                    m.op(0x6F, -2); // ddiv
+                }
+                return DOUBLE;
+            } else if (e instanceof IfExp ifExp) {
+                Label else_label = new Label(), end = new Label();
+                branchIfFalse(ifExp.conditional(), else_label);
+                char type = compile(ifExp.then_exp());
+                m.branch(0xA7, 0, end); // goto
+                m.mark(else_label, false);
+                if (compile(ifExp.else_exp()) != type) {
+                    // Perhaps one branch is a self call, assumed to return a long.
+                    if (return_type == LONG) throw new WrongReturnType(DOUBLE);
+                    throw new Unsupported();
+                }
+                m.mark(end, true);
+                return type;
+            } else if (e instanceof LetExp let) {
+                List<Exp> value_exps = let.value_exps();
+                int[] locals = new int[value_exps.size()];
+                StringBuilder local_types = new StringBuilder();
+                for (int i = 0; i < locals.length; i++) {
+                    char type = compile(value_exps.get(i));
+                    locals[i] = next_local;
+                    next_local += 2;
+                    m.local(type == LONG ? 0x37 : 0x39, locals[i], -2); // lstore or dstore
+                    local_types.append(type);
+                }
+                scopes.add(locals);
+                scope_types.add(local_types.toString());
+                char type = compile(let.body());
+                scopes.remove(scopes.size() - 1);
+                scope_types.remove(scope_types.size() - 1);
+                return type;
+            } else if (e instanceof CallExp call) {
+                return compileSelfCall(call);
+            } else {
+                throw new Unsupported();
+            }
+        }
+
+        /**
+         * Combines the accumulator of the given type on the stack with each
+         * operand, in longs with the overflow-checked Math method while both
+         * are integers and in doubles from then on, as NumVal does.
+         */
+        private char compileFold(char type, List<Exp> operands, int double_opcode, String exact) {
+            for (Exp operand : operands) {
+                type = unify(type, compile(operand));
+                if (type == LONG)
+                    m.constantOp(0xB8, cw.methodRef("java/lang/Math", exact, "(JJ)J"), -2); // invokestatic
+                else
+                    m.op(double_opcode, -2);
+            }
+            return type;
+        }
+
+        private void toDouble(char type) {
+            if (type == LONG) m.op(0x8A, 0); // l2d
+        }
+
+        /**
+         * Converts the two values on top of the stack to doubles unless both
+         * are longs, and returns their common type.
+         */
+        private char unify(char first, char second) {
+            if (first == second) return first;
+            if (first == DOUBLE) {
+                toDouble(second);
+                return DOUBLE;
+            }
+            int scratch = next_local;
+            next_local += 2;
+            m.local(0x39, scratch, -2); // dstore
+            m.op(0x8A, 0); // l2d
+            m.local(0x18, scratch, 2); // dload
+            return DOUBLE;
+        }
+
+        /**
+         * Jumps to target if the condition is false.
+         */
+        private void branchIfFalse(Exp condition, Label target) {
+            if (condition instanceof BoolExp bool) {
+                if (!bool.b()) m.branch(0xA7, 0, target); // goto
+            } else if (condition instanceof LessExp less) {
+                if (compileComparison(less.first_exp(), less.second_exp()) == LONG)
+                    m.op(0x94, -3); // lcmp
+                else
+                    m.op(0x98, -3); // dcmpg: NaN compares greater, so the branch is taken
+                m.branch(0x9C, -1, target); // ifge
+            } else if (condition instanceof GreaterExp greater) {
+                if (compileComparison(greater.first_exp(), greater.second_exp()) == LONG)
+                    m.op(0x94, -3); // lcmp
+                else
+                    m.op(0x97, -3); // dcmpl: NaN compares less
+                m.branch(0x9E, -1, target); // ifle
+            } else if (condition instanceof EqualExp equal) {
+                if (compileComparison(equal.first_exp(), equal.second_exp()) == LONG)
+                    m.op(0x94, -3); // lcmp
+                else
+                    m.op(0x97, -3); // dcmpl
+                m.branch(0x9A, -1, target); // ifne
+            } else {
+                throw new Unsupported();
+            }
+        }
+
+        private char compileComparison(Exp first, Exp second) {
+            char type = compile(first);
+            return unify(type, compile(second));
+        }
+
+        private char compileSelfCall(CallExp call) {
+            if (!(call.operator() instanceof VarExp var) || var.depth() >= 0) throw new Unsupported();
+            if (call.operands().size() != arity) throw new Unsupported();
+            GlobalEnv.Cell cell;
+            try {
+                cell = _globals.cell(var.symbol());
+            } catch (Env.LookupException e) {
+                throw new Unsupported();
+            }
+            if (cell.value() != fun || (self_cell != null && self_cell != cell)) throw new Unsupported();
+            self_cell = cell;
+
+            // Guard: the name must still refer to this function.
+            Label ok = new Label();
+            m.constantOp(0xB2, cw.fieldRef("reflang/JitCode", "SELF_CELL", "L" + CELL + ";"), 1); // getstatic
+            m.constantOp(0xB6, cw.methodRef(CELL, "value", "()L" + VALUE + ";"), 0); // invokevirtual
+            m.constantOp(0xB2, cw.fieldRef("reflang/JitCode", "SELF", "L" + VALUE + ";"), 1); // getstatic
+            m.branch(0xA5, -2, ok); // if_acmpeq
+            m.constantOp(0xB2, cw.fieldRef(DEOPT, "INSTANCE", "L" + DEOPT + ";"), 1); // getstatic
+            m.op(0xBF, -1); // athrow
+            m.mark(ok, false);
+
+            // The arguments must have the types the parameters were compiled for.
+            for (int i = 0; i < arity; i++)
+                if (compile(call.operands().get(i)) != types.charAt(i)) throw new Unsupported();
+            if (call.tail()) {
+                // A self call in tail position becomes a jump back to the start.
+                for (int i = arity - 1; i >= 0; i--)
+                    m.local(types.charAt(i) == LONG ? 0x37 : 0x39, 2 * i, -2); // lstore or dstore
+                m.branch(0xA7, 0, start); // goto
+                // Unreachable; keeps the stack depth of an expression.
+                m.op(return_type == LONG ? 0x09 : 0x0E, 2); // lconst_0 or dconst_0
+                return return_type;
+            }
+            m.constantOp(0xB8, cw.methodRef("reflang/JitCode", "run", run_descriptor), 2 - 2 * arity); // invokestatic
+            return return_type;
+        }
+    }
+
+    /**
+     * Compilation counts and time over the lifetime of a Jit.
+     */
+    public static class Stats {
+        private int _compiled = 0;
+        private int _not_compilable = 0;
+        private int _failed = 0;
+        private int _deopts = 0;
+        private long _compile_time = 0;
+
+        public int compiled() {
+            return _compiled;
+        }
+
+        @Override
+        public String toString() {
+            return "JIT: %d functions compiled, %d not compilable, %d failed, %d deoptimizations, compile time %.3f ms"
+                    .formatted(_compiled, _not_compilable, _failed, _deopts, _compile_time / 1e6);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package reflang;
+
+import static reflang.AST.Program;
+
+/**
+ * Runs the AST optimization passes over a program before it is resolved
+ * and evaluated.
+ */
+public class Optimizer {
+    private final boolean _enabled;
+
+    public Optimizer(boolean enabled) {
+        _enabled = enabled;
+    }
+
+    public Program optimize(Program p) {
+        if (!_enabled) return p;
+        p = new Inliner().rewrite(p);
+        p = new ConstantFolding().rewrite(p);
+        p = new EscapeAnalysis().rewrite(p);
+        p = new Superinstructions().rewrite(p);
+        return p;
+    }
+}
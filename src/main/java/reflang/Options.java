@@ -0,0 +1,118 @@
+package reflang;
+
+import reflang.Env.GlobalEnv;
+
+/**
+ * Command-line options of the interpreter, given as {@code --name=value},
+ * e.g. {@code ./gradlew run --args="--heap=segmented --heap-capacity=1000000"}.
+ */
+public class Options {
+    String heap = "16bit";
+    int heapCapacity = Heap.SegmentedHeap.DEFAULT_SEGMENT_SIZE;
+    int heapSegment = Heap.SegmentedHeap.DEFAULT_SEGMENT_SIZE;
+    int heapMax = Integer.MAX_VALUE;
+    Collector.Mode gc = Collector.Mode.MANUAL;
+    int gcThreshold = Collector.DEFAULT_THRESHOLD;
+    boolean gcStats = false;
+    boolean optimize = true;
+    String engine = "tree";
+    String loadSnapshot = null;
+    boolean trackAllocations = false;
+    String saveSnapshot = null;
+    boolean jit = false;
+    int jitThreshold = Jit.DEFAULT_THRESHOLD;
+    boolean jitStats = false;
+    boolean typecheck = false;
+
+    public static Options parse(String[] args) {
+        Options options = new Options();
+        for (String arg : args) {
+            if (!arg.startsWith("--"))
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            switch (name) {
+                case "heap" -> options.heap = value;
+                case "heap-capacity" -> options.heapCapacity = intValue(name, value);
+                case "heap-segment" -> options.heapSegment = intValue(name, value);
+                case "heap-max" -> options.heapMax = intValue(name, value);
+                case "gc" -> options.gc = gcMode(value);
+                case "gc-threshold" -> options.gcThreshold = intValue(name, value);
+                case "gc-stats" -> options.gcStats = true;
+                case "optimize" -> options.optimize = booleanValue(name, value);
+                case "engine" -> options.engine = value;
+                case "load-snapshot" -> options.loadSnapshot = value;
+                case "track-allocations" -> options.trackAllocations = true;
+                case "save-snapshot" -> options.saveSnapshot = value;
+                case "jit" -> options.jit = booleanValue(name, value);
+                case "jit-threshold" -> options.jitThreshold = intValue(name, value);
+                case "jit-stats" -> options.jitStats = true;
+                case "typecheck" -> options.typecheck = booleanValue(name, value);
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return options;
+    }
+
+    private static int intValue(String name, String value) {
+        try {
+            return Integer.parseInt(value.replace("_", ""));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " expects a number, got: " + value);
+        }
+    }
+
+    private static boolean booleanValue(String name, String value) {
+        return switch (value) {
+            case "on", "true", "" -> true;
+            case "off", "false" -> false;
+            default -> throw new IllegalArgumentException("Option --" + name + " expects on or off, got: " + value);
+        };
+    }
+
+    private static Collector.Mode gcMode(String value) {
+        return switch (value) {
+            case "manual" -> Collector.Mode.MANUAL;
+            case "auto" -> Collector.Mode.AUTOMATIC;
+            case "hint" -> Collector.Mode.HINT;
+            default -> throw new IllegalArgumentException("Unknown gc mode: " + value + ", expected manual, auto or hint");
+        };
+    }
+
+    public Heap newHeap() {
+        return switch (heap) {
+            case "16bit" -> new Heap.Heap16Bit();
+            case "segmented" -> new Heap.SegmentedHeap(heapCapacity, heapSegment, heapMax);
+            case "unboxed" -> new Heap.UnboxedHeap(heapCapacity, heapMax);
+            case "concurrent" -> new Heap.ConcurrentHeap(heapCapacity);
+            default -> throw new IllegalArgumentException("Unknown heap: " + heap + ", expected 16bit, segmented, unboxed or concurrent");
+        };
+    }
+
+    public Evaluator newEvaluator() {
+        GlobalEnv globals = new GlobalEnv();
+        Heap newHeap = newHeap();
+        Collector collector = null;
+        if (gc != Collector.Mode.MANUAL) {
+            if (!(newHeap instanceof Heap.ArrayHeap arrayHeap))
+                throw new IllegalArgumentException("Garbage collection is not supported by the " + heap + " heap");
+            collector = new Collector(arrayHeap, globals, gc, gcThreshold);
+        }
+        Evaluator eval = switch (engine) {
+            case "tree" -> new Evaluator(globals, newHeap, collector);
+            case "compiled" -> new CompiledEvaluator(globals, newHeap, collector);
+            case "stack" -> new StackEvaluator(globals, newHeap, collector);
+            default -> throw new IllegalArgumentException("Unknown engine: " + engine + ", expected tree, compiled or stack");
+        };
+        eval.optimizer = new Optimizer(optimize);
+        if (trackAllocations) {
+            if (!(newHeap instanceof Heap.ArrayHeap arrayHeap))
+                throw new IllegalArgumentException("Allocation tracking is not supported by the " + heap + " heap");
+            eval.tracker = new AllocationTracker(arrayHeap);
+        }
+        if (jit) eval.jit = new Jit(globals, jitThreshold);
+        if (typecheck) eval.typechecker = new TypeChecker();
+        return eval;
+    }
+}
@@ -31,7 +31,7 @@ public class Printer {
         }
 
         public String visit(AST.NumExp e, Env env) {
-            return "" + e.v();
+            return e.value().toString();
         }
 
         @Override
@@ -192,5 +192,59 @@ public class Printer {
         public String visit(AST.RefEqExp e, Env env) {
             return "(== %s %s)".formatted(e.exp1().accept(this, env), e.exp2().accept(this, env));
         }
+
+        @Override
+        public String visit(AST.CasExp e, Env env) {
+            return "(cas! %s %s %s)".formatted(
+                    e.loc_exp().accept(this, env),
+                    e.expected_exp().accept(this, env),
+                    e.new_exp().accept(this, env));
+        }
+
+        @Override
+        public String visit(AST.RegionExp e, Env env) {
+            return "(region %s)".formatted(e.body().accept(this, env));
+        }
+
+        @Override
+        public String visit(AST.LocalRefExp e, Env env) {
+            return "(ref %s)".formatted(e.value_exp().accept(this, env));
+        }
+
+        @Override
+        public String visit(AST.LocalDerefExp e, Env env) {
+            return "(deref %s)".formatted(e.var().accept(this, env));
+        }
+
+        @Override
+        public String visit(AST.LocalAssignExp e, Env env) {
+            return "(set! %s %s)".formatted(
+                    e.var().accept(this, env),
+                    e.rhs_exp().accept(this, env));
+        }
+
+        @Override
+        public String visit(AST.InlinedCallExp e, Env env) {
+            return e.call().accept(this, env);
+        }
+
+        @Override
+        public String visit(AST.RefUpdateExp e, Env env) {
+            return "(set! %s %s)".formatted(
+                    e.var().accept(this, env),
+                    e.rhs_exp().accept(this, env));
+        }
+
+        @Override
+        public String visit(AST.LocalUpdateExp e, Env env) {
+            return "(set! %s %s)".formatted(
+                    e.var().accept(this, env),
+                    e.rhs_exp().accept(this, env));
+        }
+
+        @Override
+        public String visit(AST.DerefCarExp e, Env env) {
+            return "(deref (car %s))".formatted(e.arg().accept(this, env));
+        }
     }
 }
@@ -0,0 +1,387 @@
+package reflang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static reflang.AST.*;
+
+/**
+ * The resolver annotates every variable reference in a program with its
+ * lexical address: how many frames up the variable is bound (depth) and at
+ * which position within that frame (slot). Variables that are not bound by
+ * an enclosing let or lambda are left unresolved and looked up in the
+ * global environment at runtime.
+ * <p>
+ * The resolver also performs free-variable analysis for closures. A lambda
+ * records the local variables of enclosing scopes that its body refers to,
+ * and the Evaluator copies just those values into the closure. Inside the
+ * body, such a variable is addressed in the closure frame, which sits right
+ * above the frame holding the actual parameters.
+ * <p>
+ * Finally, calls in tail position of a lambda body, reached through if
+ * branches, let bodies and inlined calls, are marked so that the Evaluator can make them
+ * without growing the Java stack.
+ */
+public class Resolver implements Visitor<Void> {
+
+    /**
+     * Compile-time mirror of an Env.FrameEnv: the names bound by one let
+     * expression or lambda, in slot order.
+     */
+    private record Scope(Symbol[] names, Scope outer) {
+        int slotOf(Symbol name) {
+            for (int i = names.length - 1; i >= 0; i--) // later bindings shadow earlier ones
+                if (names[i] == name) return i;
+            return -1;
+        }
+    }
+
+    private record Address(int depth, int slot) {
+    }
+
+    /**
+     * The body of a lambda being resolved, or the top level of the program
+     * when outer is null.
+     */
+    private static final class Function {
+        final Function outer;
+        final Scope outer_scope; // innermost scope of the outer function where the lambda appears
+        final List<Symbol> free = new ArrayList<>();
+        final List<Address> free_sources = new ArrayList<>(); // addresses in the outer function
+
+        Function(Function outer, Scope outer_scope) {
+            this.outer = outer;
+            this.outer_scope = outer_scope;
+        }
+    }
+
+    private Scope scope = null;
+    private Function function = null;
+    boolean tail_calls = true; // false leaves every call unmarked, to measure what marking saves
+
+    public void resolve(Program p) {
+        p.accept(this, null);
+    }
+
+    /**
+     * Resolves a lambda as if it appeared in the body of a let binding names,
+     * so that the names it uses become its free variables.
+     */
+    public void resolve(LambdaExp e, Symbol[] names) {
+        scope = new Scope(names, null);
+        function = new Function(null, null);
+        resolve(e);
+    }
+
+    private void resolve(Exp e) {
+        e.accept(this, null);
+    }
+
+    private void resolveAll(List<Exp> exps) {
+        for (Exp exp : exps)
+            resolve(exp);
+    }
+
+    private void resolveIn(Symbol[] names, Exp body) {
+        scope = new Scope(names, scope);
+        try {
+            resolve(body);
+        } finally {
+            scope = scope.outer();
+        }
+    }
+
+    /**
+     * Returns the address of name as seen from the current position in
+     * function fn whose innermost scope is s, or null if name is global.
+     */
+    private Address lookup(Symbol name, Function fn, Scope s) {
+        int depth = 0;
+        for (; s != null; s = s.outer(), depth++) {
+            int slot = s.slotOf(name);
+            if (slot >= 0) return new Address(depth, slot);
+        }
+        if (fn.outer == null) return null;
+        int index = fn.free.indexOf(name);
+        if (index < 0) {
+            Address source = lookup(name, fn.outer, fn.outer_scope);
+            if (source == null) return null;
+            fn.free.add(name);
+            fn.free_sources.add(source);
+            index = fn.free.size() - 1;
+        }
+        return new Address(depth, index); // the closure frame is just past the last scope
+    }
+
+    @Override
+    public Void visit(Program p, Env env) {
+        scope = null;
+        function = new Function(null, null);
+        for (DefineDecl d : p.decls())
+            resolve(d);
+        resolve(p.e());
+        return null;
+    }
+
+    @Override
+    public Void visit(VarExp e, Env env) {
+        Address address = lookup(e.symbol(), function, scope);
+        e._depth = address == null ? -1 : address.depth();
+        e._slot = address == null ? -1 : address.slot();
+        return null;
+    }
+
+    @Override
+    public Void visit(LetExp e, Env env) {
+        resolveAll(e.value_exps());
+        resolveIn(e.symbols(), e.body());
+        return null;
+    }
+
+    private static void markTailCalls(Exp e) {
+        while (true) {
+            if (e instanceof CallExp call) {
+                call._tail = true;
+                return;
+            } else if (e instanceof IfExp ifExp) {
+                markTailCalls(ifExp.then_exp());
+                e = ifExp.else_exp();
+            } else if (e instanceof LetExp let) {
+                e = let.body();
+            } else if (e instanceof InlinedCallExp inlined) {
+                markTailCalls(inlined.call());
+                e = inlined.inlined();
+            } else {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public Void visit(DefineDecl d, Env env) {
+        resolve(d.value_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(LambdaExp e, Env env) {
+        Function saved_function = function;
+        Scope saved_scope = scope;
+        function = new Function(saved_function, saved_scope);
+        scope = new Scope(e.symbols(), null);
+        try {
+            resolve(e.body());
+            if (tail_calls) markTailCalls(e.body());
+            int size = function.free.size();
+            e._free = function.free.toArray(new Symbol[size]);
+            e._free_depths = new int[size];
+            e._free_slots = new int[size];
+            for (int i = 0; i < size; i++) {
+                e._free_depths[i] = function.free_sources.get(i).depth();
+                e._free_slots[i] = function.free_sources.get(i).slot();
+            }
+        } finally {
+            function = saved_function;
+            scope = saved_scope;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(CallExp e, Env env) {
+        resolve(e.operator());
+        resolveAll(e.operands());
+        return null;
+    }
+
+    @Override
+    public Void visit(AddExp e, Env env) {
+        resolveAll(e.all());
+        return null;
+    }
+
+    @Override
+    public Void visit(UnitExp e, Env env) {
+        return null;
+    }
+
+    @Override
+    public Void visit(NumExp e, Env env) {
+        return null;
+    }
+
+    @Override
+    public Void visit(BoolExp e, Env env) {
+        return null;
+    }
+
+    @Override
+    public Void visit(DivExp e, Env env) {
+        resolveAll(e.all());
+        return null;
+    }
+
+    @Override
+    public Void visit(MultExp e, Env env) {
+        resolveAll(e.all());
+        return null;
+    }
+
+    @Override
+    public Void visit(SubExp e, Env env) {
+        resolveAll(e.all());
+        return null;
+    }
+
+    @Override
+    public Void visit(IfExp e, Env env) {
+        resolve(e.conditional());
+        resolve(e.then_exp());
+        resolve(e.else_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(LessExp e, Env env) {
+        resolve(e.first_exp());
+        resolve(e.second_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(EqualExp e, Env env) {
+        resolve(e.first_exp());
+        resolve(e.second_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(GreaterExp e, Env env) {
+        resolve(e.first_exp());
+        resolve(e.second_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(CarExp e, Env env) {
+        resolve(e.arg());
+        return null;
+    }
+
+    @Override
+    public Void visit(CdrExp e, Env env) {
+        resolve(e.arg());
+        return null;
+    }
+
+    @Override
+    public Void visit(ConsExp e, Env env) {
+        resolve(e.fst());
+        resolve(e.snd());
+        return null;
+    }
+
+    @Override
+    public Void visit(ListExp e, Env env) {
+        resolveAll(e.elems());
+        return null;
+    }
+
+    @Override
+    public Void visit(NullExp e, Env env) {
+        resolve(e.arg());
+        return null;
+    }
+
+    @Override
+    public Void visit(RefExp e, Env env) {
+        resolve(e.value_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(AssignExp e, Env env) {
+        resolve(e.lhs_exp());
+        resolve(e.rhs_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(DerefExp e, Env env) {
+        resolve(e.loc_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(FreeExp e, Env env) {
+        resolve(e.value_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(RefEqExp e, Env env) {
+        resolve(e.exp1());
+        resolve(e.exp2());
+        return null;
+    }
+
+    @Override
+    public Void visit(CasExp e, Env env) {
+        resolve(e.loc_exp());
+        resolve(e.expected_exp());
+        resolve(e.new_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(RegionExp e, Env env) {
+        resolve(e.body());
+        return null;
+    }
+
+    @Override
+    public Void visit(LocalRefExp e, Env env) {
+        resolve(e.value_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(LocalDerefExp e, Env env) {
+        resolve(e.var());
+        return null;
+    }
+
+    @Override
+    public Void visit(LocalAssignExp e, Env env) {
+        resolve(e.var());
+        resolve(e.rhs_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(InlinedCallExp e, Env env) {
+        resolve(e.inlined());
+        resolve(e.call());
+        return null;
+    }
+
+    @Override
+    public Void visit(RefUpdateExp e, Env env) {
+        resolve(e.var());
+        resolve(e.rhs_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(LocalUpdateExp e, Env env) {
+        resolve(e.var());
+        resolve(e.rhs_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(DerefCarExp e, Env env) {
+        resolve(e.arg());
+        return null;
+    }
+}
@@ -0,0 +1,218 @@
+package reflang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static reflang.AST.*;
+
+/**
+ * Base class for AST-to-AST transformations. By default every node is
+ * rebuilt from its rewritten children; subclasses override the visit
+ * methods for the nodes they transform. Rewriting happens before the
+ * Resolver runs, so lexical addresses never need to be preserved.
+ */
+public class Rewriter implements Visitor<Exp> {
+
+    public Program rewrite(Program p) {
+        List<DefineDecl> decls = new ArrayList<>(p.decls().size());
+        for (DefineDecl d : p.decls())
+            decls.add((DefineDecl) rewrite(d));
+        return new Program(decls, rewrite(p.e()));
+    }
+
+    protected Exp rewrite(Exp e) {
+        Exp result = e.accept(this, null);
+        if (result._origin == null) result._origin = e.origin();
+        return result;
+    }
+
+    protected List<Exp> rewriteAll(List<Exp> exps) {
+        List<Exp> result = new ArrayList<>(exps.size());
+        for (Exp exp : exps)
+            result.add(rewrite(exp));
+        return result;
+    }
+
+    @Override
+    public Exp visit(Program p, Env env) {
+        throw new UnsupportedOperationException("Use rewrite(Program) to rewrite a whole program");
+    }
+
+    @Override
+    public Exp visit(AddExp e, Env env) {
+        return new AddExp(rewriteAll(e.all()));
+    }
+
+    @Override
+    public Exp visit(UnitExp e, Env env) {
+        return e;
+    }
+
+    @Override
+    public Exp visit(NumExp e, Env env) {
+        return e;
+    }
+
+    @Override
+    public Exp visit(BoolExp e, Env env) {
+        return e;
+    }
+
+    @Override
+    public Exp visit(DivExp e, Env env) {
+        return new DivExp(rewriteAll(e.all()));
+    }
+
+    @Override
+    public Exp visit(MultExp e, Env env) {
+        return new MultExp(rewriteAll(e.all()));
+    }
+
+    @Override
+    public Exp visit(SubExp e, Env env) {
+        return new SubExp(rewriteAll(e.all()));
+    }
+
+    @Override
+    public Exp visit(VarExp e, Env env) {
+        return new VarExp(e.symbol());
+    }
+
+    @Override
+    public Exp visit(LetExp e, Env env) {
+        return new LetExp(e.symbols(), rewriteAll(e.value_exps()), rewrite(e.body()));
+    }
+
+    @Override
+    public Exp visit(DefineDecl d, Env env) {
+        return new DefineDecl(d.symbol(), rewrite(d.value_exp()));
+    }
+
+    @Override
+    public Exp visit(LambdaExp e, Env env) {
+        return new LambdaExp(e.symbols(), rewrite(e.body()));
+    }
+
+    @Override
+    public Exp visit(CallExp e, Env env) {
+        return new CallExp(rewrite(e.operator()), rewriteAll(e.operands()));
+    }
+
+    @Override
+    public Exp visit(IfExp e, Env env) {
+        return new IfExp(rewrite(e.conditional()), rewrite(e.then_exp()), rewrite(e.else_exp()));
+    }
+
+    @Override
+    public Exp visit(LessExp e, Env env) {
+        return new LessExp(rewrite(e.first_exp()), rewrite(e.second_exp()));
+    }
+
+    @Override
+    public Exp visit(EqualExp e, Env env) {
+        return new EqualExp(rewrite(e.first_exp()), rewrite(e.second_exp()));
+    }
+
+    @Override
+    public Exp visit(GreaterExp e, Env env) {
+        return new GreaterExp(rewrite(e.first_exp()), rewrite(e.second_exp()));
+    }
+
+    @Override
+    public Exp visit(CarExp e, Env env) {
+        return new CarExp(rewrite(e.arg()));
+    }
+
+    @Override
+    public Exp visit(CdrExp e, Env env) {
+        return new CdrExp(rewrite(e.arg()));
+    }
+
+    @Override
+    public Exp visit(ConsExp e, Env env) {
+        return new ConsExp(rewrite(e.fst()), rewrite(e.snd()));
+    }
+
+    @Override
+    public Exp visit(ListExp e, Env env) {
+        return new ListExp(rewriteAll(e.elems()));
+    }
+
+    @Override
+    public Exp visit(NullExp e, Env env) {
+        return new NullExp(rewrite(e.arg()));
+    }
+
+    @Override
+    public Exp visit(RefExp e, Env env) {
+        return new RefExp(rewrite(e.value_exp()));
+    }
+
+    @Override
+    public Exp visit(AssignExp e, Env env) {
+        return new AssignExp(rewrite(e.lhs_exp()), rewrite(e.rhs_exp()));
+    }
+
+    @Override
+    public Exp visit(DerefExp e, Env env) {
+        return new DerefExp(rewrite(e.loc_exp()));
+    }
+
+    @Override
+    public Exp visit(FreeExp e, Env env) {
+        return new FreeExp(rewrite(e.value_exp()));
+    }
+
+    @Override
+    public Exp visit(RefEqExp e, Env env) {
+        return new RefEqExp(rewrite(e.exp1()), rewrite(e.exp2()));
+    }
+
+    @Override
+    public Exp visit(CasExp e, Env env) {
+        return new CasExp(rewrite(e.loc_exp()), rewrite(e.expected_exp()), rewrite(e.new_exp()));
+    }
+
+    @Override
+    public Exp visit(RegionExp e, Env env) {
+        return new RegionExp(rewrite(e.body()));
+    }
+
+    @Override
+    public Exp visit(LocalRefExp e, Env env) {
+        return new LocalRefExp(rewrite(e.value_exp()));
+    }
+
+    @Override
+    public Exp visit(LocalDerefExp e, Env env) {
+        return new LocalDerefExp((VarExp) rewrite(e.var()));
+    }
+
+    @Override
+    public Exp visit(LocalAssignExp e, Env env) {
+        return new LocalAssignExp((VarExp) rewrite(e.var()), rewrite(e.rhs_exp()));
+    }
+
+    @Override
+    public Exp visit(InlinedCallExp e, Env env) {
+        return new InlinedCallExp(e.formals(), rewrite(e.inlined()), (CallExp) rewrite(e.call()));
+    }
+
+    // Fused expressions are rewritten as the expressions they stand for, so
+    // that passes only need to recognize those.
+
+    @Override
+    public Exp visit(RefUpdateExp e, Env env) {
+        return new AssignExp(e.var(), e.rhs_exp()).accept(this, env);
+    }
+
+    @Override
+    public Exp visit(LocalUpdateExp e, Env env) {
+        return new LocalAssignExp(e.var(), e.rhs_exp()).accept(this, env);
+    }
+
+    @Override
+    public Exp visit(DerefCarExp e, Env env) {
+        return new DerefExp(new CarExp(e.arg())).accept(this, env);
+    }
+}
@@ -0,0 +1,479 @@
+package reflang;
+
+import reflang.AST.LambdaExp;
+import reflang.AST.Program;
+import reflang.Env.FrameEnv;
+import reflang.Env.GlobalEnv;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Saves the state of an Evaluator (its global bindings and heap cells) to a
+ * file, and restores it into a fresh Evaluator.
+ * <p>
+ * Restoring maps the file into memory and reads only its tables. A global
+ * binding or heap cell is turned back into Value objects the first time it
+ * is read, so restoring takes about the same time however large the saved
+ * state is. Closures are saved as the source text of their lambda plus the
+ * values they captured; the lambda is parsed again on first use.
+ * <p>
+ * The file is a sequence of big-endian ints:
+ * <pre>
+ * magic, version,
+ * string count, string offsets..., value count, value offsets...,
+ * global count, (name string, value)...,
+ * heap top, free count, free locations..., value of each cell below top or -1,
+ * generation count, generations...,
+ * strings: (byte length, UTF-8 bytes)...
+ * values: (tag byte, fields)...
+ * </pre>
+ * A value refers to the values it contains by index, and those always come
+ * first in the file.
+ */
+public final class Snapshot {
+    private static final int MAGIC = 0x524C534E; // "RLSN"
+    private static final int VERSION = 2;
+
+    private static final byte NUM = 0, BOOL = 1, UNIT = 2, NULL = 3, REF = 4, PAIR = 5, FUN = 6, ERROR = 7, INT = 8;
+
+    /**
+     * Writes the global bindings and heap cells of eval to file.
+     */
+    public static void write(Evaluator eval, Path file) throws IOException {
+        Heap.ArrayHeap heap = arrayHeap(eval);
+        Writer writer = new Writer();
+
+        List<GlobalEnv.Cell> cells_in_env = new ArrayList<>();
+        eval.globals().forEachCell(cells_in_env::add);
+        List<int[]> globals = new ArrayList<>();
+        for (GlobalEnv.Cell cell : cells_in_env)
+            globals.add(new int[]{writer.string(cell.name().name()), writer.value(cell.value())});
+
+        int top = heap._top;
+        int[] cells = new int[top];
+        for (int loc = 0; loc < top; loc++) {
+            Value value = heap.load(loc);
+            cells[loc] = value == null ? -1 : writer.value(value);
+        }
+
+        int header = 4 * (2 + 1 + writer.strings.size() + 1 + writer.values.size()
+                + 1 + 2 * globals.size() + 2 + heap._free_count + top + 1 + heap._generations.length);
+        int string_base = header;
+        int value_base = string_base + writer.string_data.size();
+
+        try (OutputStream file_out = Files.newOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file_out));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(writer.strings.size());
+            for (int offset : writer.string_offsets) out.writeInt(string_base + offset);
+            out.writeInt(writer.values.size());
+            for (int offset : writer.value_offsets) out.writeInt(value_base + offset);
+            out.writeInt(globals.size());
+            for (int[] global : globals) {
+                out.writeInt(global[0]);
+                out.writeInt(global[1]);
+            }
+            out.writeInt(top);
+            out.writeInt(heap._free_count);
+            for (int i = 0; i < heap._free_count; i++) out.writeInt(heap._free[i]);
+            for (int cell : cells) out.writeInt(cell);
+            out.writeInt(heap._generations.length);
+            for (int generation : heap._generations) out.writeInt(generation);
+            writer.string_data.writeTo(out);
+            writer.value_data.writeTo(out);
+            out.flush();
+        }
+    }
+
+    /**
+     * Restores a snapshot written by write into eval, which must not have
+     * allocated any heap cells yet. Bindings in the snapshot replace global
+     * bindings of the same name.
+     */
+    public static void restore(Evaluator eval, Path file) throws IOException {
+        Heap.ArrayHeap heap = arrayHeap(eval);
+        if (heap._top != 0) throw new IllegalArgumentException("A snapshot can only be restored into an empty heap");
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < 8 || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a snapshot file: " + file);
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported snapshot version " + buffer.getInt(4) + " in " + file);
+
+        Snapshot snapshot = new Snapshot(eval, buffer);
+        int top = buffer.getInt(snapshot._heap_table);
+        while (heap._capacity < top)
+            if (!heap.grow()) throw new IllegalArgumentException("The heap is too small for the snapshot, which needs " + top + " cells");
+
+        int pos = snapshot._global_table;
+        Symbol[] names = new Symbol[buffer.getInt(pos)];
+        for (int i = 0; i < names.length; i++)
+            names[i] = Symbol.of(snapshot.string(buffer.getInt(pos + 4 + 8 * i)));
+        eval.globals().extendLazily(names, i -> {
+            int value = buffer.getInt(pos + 8 + 8 * i);
+            return () -> snapshot.value(value);
+        });
+        snapshot._global_cells = new GlobalEnv.Cell[names.length];
+        for (int i = 0; i < names.length; i++)
+            snapshot._global_cells[i] = eval.globals().cell(names[i]);
+
+        int free_count = buffer.getInt(snapshot._heap_table + 4);
+        int[] free = new int[Math.max(16, free_count)];
+        for (int i = 0; i < free_count; i++)
+            free[i] = buffer.getInt(snapshot._heap_table + 8 + 4 * i);
+        heap._free = free;
+        heap._free_count = free_count;
+        heap._top = top;
+        heap._image = snapshot;
+        snapshot._cell_table = snapshot._heap_table + 8 + 4 * free_count;
+        snapshot._heap_top = top;
+
+        int generation_table = snapshot._cell_table + 4 * top;
+        int[] generations = new int[buffer.getInt(generation_table)];
+        for (int i = 0; i < generations.length; i++)
+            generations[i] = buffer.getInt(generation_table + 4 + 4 * i);
+        heap._generations = generations;
+    }
+
+    private static Heap.ArrayHeap arrayHeap(Evaluator eval) {
+        if (eval.heap instanceof Heap.ArrayHeap heap) return heap;
+        throw new IllegalArgumentException("Snapshots are not supported by the concurrent heap");
+    }
+
+    /**
+     * Assigns an index to every string and value in the order they are first
+     * seen, encoding each value after the values it contains.
+     */
+    private static final class Writer {
+        final Map<String, Integer> strings = new HashMap<>();
+        final List<Integer> string_offsets = new ArrayList<>();
+        final ByteArrayOutputStream string_data = new ByteArrayOutputStream();
+
+        final Map<Value, Integer> values = new IdentityHashMap<>();
+        final List<Integer> value_offsets = new ArrayList<>();
+        final ByteArrayOutputStream value_data = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(value_data);
+
+        private final Printer.Formatter formatter = new SourceFormatter();
+
+        int string(String s) {
+            Integer index = strings.get(s);
+            if (index != null) return index;
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            string_offsets.add(string_data.size());
+            string_data.writeBytes(ByteBuffer.allocate(4).putInt(bytes.length).array());
+            string_data.writeBytes(bytes);
+            strings.put(s, strings.size());
+            return strings.size() - 1;
+        }
+
+        int value(Value root) throws IOException {
+            // Long lists would overflow the Java stack if values were encoded recursively.
+            ArrayDeque<Value> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Value v = stack.peek();
+                if (values.containsKey(v)) {
+                    stack.pop();
+                    continue;
+                }
+                boolean ready = true;
+                for (Value child : children(v)) {
+                    if (!values.containsKey(child)) {
+                        stack.push(child);
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    encode(v);
+                }
+            }
+            return values.get(root);
+        }
+
+        private List<Value> children(Value v) {
+            if (v instanceof Value.PairVal pair) return List.of(pair.fst(), pair.snd());
+            if (v instanceof Value.FunVal fun) return List.of(closure(fun).values());
+            return Collections.emptyList();
+        }
+
+        private void encode(Value v) throws IOException {
+            value_offsets.add(value_data.size());
+            if (v instanceof Value.IntVal num) {
+                out.writeByte(INT);
+                out.writeLong(num.l());
+            } else if (v instanceof Value.NumVal num) {
+                out.writeByte(NUM);
+                out.writeDouble(num.v());
+            } else if (v instanceof Value.BoolVal bool) {
+                out.writeByte(BOOL);
+                out.writeBoolean(bool.v());
+            } else if (v instanceof Value.UnitVal) {
+                out.writeByte(UNIT);
+            } else if (v instanceof Value.Null) {
+                out.writeByte(NULL);
+            } else if (v instanceof Value.RefVal ref) {
+                out.writeByte(REF);
+                out.writeInt(ref.loc());
+                out.writeInt(ref.generation());
+            } else if (v instanceof Value.PairVal pair) {
+                out.writeByte(PAIR);
+                out.writeInt(values.get(pair.fst()));
+                out.writeInt(values.get(pair.snd()));
+            } else if (v instanceof Value.FunVal fun) {
+                FrameEnv env = closure(fun);
+                LambdaExp lambda = new LambdaExp(fun.formals(), fun.body());
+                out.writeByte(FUN);
+                out.writeInt(string(lambda.accept(formatter, null)));
+                out.writeInt(env.vars().length);
+                for (int i = 0; i < env.vars().length; i++) {
+                    out.writeInt(string(env.vars()[i].name()));
+                    out.writeInt(values.get(env.values()[i]));
+                }
+            } else if (v instanceof Value.DynamicError error) {
+                out.writeByte(ERROR);
+                out.writeInt(string(error.toString()));
+            } else {
+                throw new IllegalArgumentException("Cannot save value: " + v);
+            }
+            values.put(v, values.size());
+        }
+
+        private static FrameEnv closure(Value.FunVal fun) {
+            if (fun.env() instanceof FrameEnv env && env.saved_env() instanceof GlobalEnv) return env;
+            throw new IllegalArgumentException("Cannot save closure: " + fun);
+        }
+    }
+
+    /**
+     * Prints expressions so that the parser reads them back unchanged. The
+     * plain Formatter prints large numbers in exponent notation, which the
+     * grammar does not accept. Doubles always get a decimal point, so they
+     * are not read back as integers.
+     */
+    private static final class SourceFormatter extends Printer.Formatter {
+        @Override
+        public String visit(AST.NumExp e, Env env) {
+            if (e.value() instanceof Value.IntVal i) return Long.toString(i.l());
+            double v = e.v();
+            if (Double.isNaN(v)) return "(/ 0 0)";
+            if (Double.isInfinite(v)) return v > 0 ? "(/ 1 0)" : "(/ -1 0)";
+            String s = BigDecimal.valueOf(v).toPlainString();
+            return s.contains(".") ? s : s + ".0";
+        }
+    }
+
+    private final Evaluator _eval;
+    private final ByteBuffer _buffer;
+    private final int _string_table;
+    private final int _value_table;
+    private final int _global_table;
+    private final int _heap_table;
+    private int _cell_table;
+    private int _heap_top;
+
+    private final String[] _strings;
+    private final Value[] _values;
+    private final BitSet _taken = new BitSet(); // heap cells already handed to the heap
+    private GlobalEnv.Cell[] _global_cells; // the cells bound to the saved globals, in table order
+    private Reader _reader;
+
+    private Snapshot(Evaluator eval, ByteBuffer buffer) {
+        _eval = eval;
+        _buffer = buffer;
+        _string_table = 8;
+        int string_count = buffer.getInt(_string_table);
+        _value_table = _string_table + 4 + 4 * string_count;
+        int value_count = buffer.getInt(_value_table);
+        _global_table = _value_table + 4 + 4 * value_count;
+        _heap_table = _global_table + 4 + 8 * buffer.getInt(_global_table);
+        _strings = new String[string_count];
+        _values = new Value[value_count];
+    }
+
+    /**
+     * Returns the saved value of a heap cell that has not been read since the
+     * snapshot was restored, or null if there is none.
+     */
+    synchronized Value takeCell(int loc) {
+        if (!holdsCell(loc)) return null;
+        _taken.set(loc);
+        return value(_buffer.getInt(_cell_table + 4 * loc));
+    }
+
+    /**
+     * Returns true if the heap cell at loc has a saved value that has not
+     * been read yet.
+     */
+    synchronized boolean holdsCell(int loc) {
+        return loc < _heap_top && !_taken.get(loc) && _buffer.getInt(_cell_table + 4 * loc) >= 0;
+    }
+
+    /**
+     * Forgets the saved value of the heap cell at loc, which the heap has
+     * overwritten or released without reading it.
+     */
+    synchronized void dropCell(int loc) {
+        _taken.set(loc);
+    }
+
+    /**
+     * Passes to mark every heap cell that has not been read yet, and every
+     * location referred to by those cells or by global bindings that have not
+     * been read yet. The locations are read from the file without building
+     * any values, so a collection does not load the snapshot.
+     */
+    synchronized void forEachUnreadRef(IntConsumer mark) {
+        IntStack work = new IntStack();
+        for (int loc = _taken.nextClearBit(0); loc < _heap_top; loc = _taken.nextClearBit(loc + 1)) {
+            int index = _buffer.getInt(_cell_table + 4 * loc);
+            if (index < 0) continue;
+            mark.accept(loc);
+            work.push(index);
+        }
+        for (int i = 0; i < _global_cells.length; i++)
+            if (_global_cells[i].valueIfLoaded() == null)
+                work.push(_buffer.getInt(_global_table + 8 + 8 * i));
+
+        BitSet seen = new BitSet(_values.length);
+        while (work.size > 0) {
+            int index = work.pop();
+            if (seen.get(index)) continue;
+            seen.set(index);
+            int pos = _buffer.getInt(_value_table + 4 + 4 * index);
+            if (_buffer.get(pos) == REF) mark.accept(_buffer.getInt(pos + 1));
+            else for (int child : children(pos)) work.push(child);
+        }
+    }
+
+    private static final class IntStack {
+        int[] items = new int[64];
+        int size = 0;
+
+        void push(int item) {
+            if (size == items.length) items = Arrays.copyOf(items, size * 2);
+            items[size++] = item;
+        }
+
+        int pop() {
+            return items[--size];
+        }
+    }
+
+    private synchronized String string(int index) {
+        String s = _strings[index];
+        if (s == null) {
+            int pos = _buffer.getInt(_string_table + 4 + 4 * index);
+            byte[] bytes = new byte[_buffer.getInt(pos)];
+            _buffer.get(pos + 4, bytes);
+            _strings[index] = s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    synchronized Value value(int root) {
+        // Build contained values first, without recursion, as the Writer did.
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            int index = stack.peek();
+            if (_values[index] != null) {
+                stack.pop();
+                continue;
+            }
+            int pos = _buffer.getInt(_value_table + 4 + 4 * index);
+            boolean ready = true;
+            for (int child : children(pos)) {
+                if (_values[child] == null) {
+                    stack.push(child);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                _values[index] = decode(pos);
+            }
+        }
+        return _values[root];
+    }
+
+    private int[] children(int pos) {
+        return switch (_buffer.get(pos)) {
+            case PAIR -> new int[]{_buffer.getInt(pos + 1), _buffer.getInt(pos + 5)};
+            case FUN -> {
+                int[] result = new int[_buffer.getInt(pos + 5)];
+                for (int i = 0; i < result.length; i++)
+                    result[i] = _buffer.getInt(pos + 13 + 8 * i);
+                yield result;
+            }
+            default -> new int[0];
+        };
+    }
+
+    private Value decode(int pos) {
+        return switch (_buffer.get(pos)) {
+            case NUM -> Value.NumVal.of(_buffer.getDouble(pos + 1));
+            case INT -> Value.IntVal.of(_buffer.getLong(pos + 1));
+            case BOOL -> Value.BoolVal.of(_buffer.get(pos + 1) != 0);
+            case UNIT -> Value.UnitVal.UNIT;
+            case NULL -> Value.Null.NULL;
+            case REF -> new Value.RefVal(_buffer.getInt(pos + 1), _buffer.getInt(pos + 5));
+            case PAIR -> new Value.PairVal(_values[_buffer.getInt(pos + 1)], _values[_buffer.getInt(pos + 5)]);
+            case FUN -> closure(pos);
+            case ERROR -> new Value.DynamicError(string(_buffer.getInt(pos + 1)));
+            default -> throw new IllegalStateException("Corrupt snapshot: unknown value tag at offset " + pos);
+        };
+    }
+
+    /**
+     * Parses the lambda again and resolves it with its captured variables in
+     * scope, so that the Resolver computes the same closure layout the
+     * Evaluator would have built.
+     */
+    private Value closure(int pos) {
+        if (_reader == null) _reader = new Reader();
+        LambdaExp lambda = (LambdaExp) _reader.parse(string(_buffer.getInt(pos + 1))).e();
+        int count = _buffer.getInt(pos + 5);
+        Symbol[] names = new Symbol[count];
+        Map<Symbol, Value> captured = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            names[i] = Symbol.of(string(_buffer.getInt(pos + 9 + 8 * i)));
+            captured.put(names[i], _values[_buffer.getInt(pos + 13 + 8 * i)]);
+        }
+
+        lambda = (LambdaExp) _eval.optimizer.optimize(new Program(new ArrayList<>(), lambda)).e();
+        _eval.resolver.resolve(lambda, names);
+
+        Symbol[] free = lambda.free();
+        Value[] values = new Value[free.length];
+        for (int i = 0; i < free.length; i++)
+            values[i] = captured.get(free[i]);
+        return new Value.FunVal(new FrameEnv(_eval.globals(), free, values), lambda.symbols(), lambda.body());
+    }
+}
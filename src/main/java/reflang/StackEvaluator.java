@@ -0,0 +1,802 @@
+package reflang;
+
+import reflang.Env.FrameEnv;
+import reflang.Env.GlobalEnv;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static reflang.AST.*;
+
+/**
+ * An evaluator that keeps its continuations in growable arrays instead of on
+ * the Java stack, in the style of a CEK machine: the expression being
+ * evaluated and its environment are the control and environment registers,
+ * and each pending subexpression leaves a frame on the continuation stack.
+ * Recursion depth is bounded only by memory, and a call, an if branch or a
+ * let body replaces its frame, so loops run in constant space.
+ * <p>
+ * Because no evaluation state lives on the Java stack, an evaluation can
+ * stop after any number of steps and resume later, possibly on another
+ * thread: {@link #start} returns a Machine, and {@link Machine#run} runs it
+ * for a budget of steps. Machines of one evaluator share its heap, so they
+ * must not run at the same time unless the heap is a ConcurrentHeap.
+ * <p>
+ * Each expression follows the Evaluator step by step, so both produce the
+ * same values and the same errors. Arithmetic and comparisons that the
+ * TypeChecker proved, and whose operands are literals or variables, take
+ * a single step along the Evaluator's typed paths instead of a frame.
+ */
+public class StackEvaluator extends Evaluator {
+
+    private final Printer.Formatter ts = new Printer.Formatter();
+
+    public StackEvaluator(GlobalEnv globals, Heap heap, Collector gc) {
+        super(globals, heap, gc);
+    }
+
+    /**
+     * Whether e has the proven type and only literals and variables as
+     * operands, so that it is evaluated in one step without recursion.
+     */
+    private static boolean direct(Exp e, TypeChecker.Type type, List<Exp> operands) {
+        if (e._type != type) return false;
+        for (Exp operand : operands)
+            if (!leaf(operand)) return false;
+        return true;
+    }
+
+    private static boolean direct(BinaryComparator e) {
+        return e._type == TypeChecker.Type.BOOLEAN && leaf(e.first_exp()) && leaf(e.second_exp());
+    }
+
+    private static boolean leaf(Exp e) {
+        return e instanceof NumExp || e instanceof VarExp;
+    }
+
+    @Override
+    Value valueOf(Program p) {
+        Machine machine = start(p);
+        machine.run(Long.MAX_VALUE);
+        return machine.result();
+    }
+
+    /**
+     * Prepares p and returns a machine that evaluates it, without taking
+     * any steps yet.
+     */
+    public Machine start(Program p) {
+        return new Machine(prepare(p));
+    }
+
+    /**
+     * An evaluation in progress. Values computed for a frame wait on the
+     * operand stack until the frame has all of them.
+     */
+    public final class Machine implements Collector.RootSet {
+        private ASTNode _exp; // to be evaluated next, or null to return _value to the top frame
+        private Env _env;
+        private Value _value;
+        private Value _result;
+        private boolean _done = false;
+
+        private ASTNode[] _frame_exps = new ASTNode[64];
+        private Env[] _frame_envs = new Env[64];
+        private int[] _frame_states = new int[64]; // the next child to evaluate, or a region mark
+        private int _frames = 0;
+
+        private Value[] _operands = new Value[64];
+        private int _operand_count = 0;
+
+        private final Start start = new Start();
+        private final Resume resume = new Resume();
+
+        private Machine(Program p) {
+            _exp = p;
+            _env = globals();
+            if (collector() != null) collector().addRoots(this);
+        }
+
+        public boolean isDone() {
+            return _done;
+        }
+
+        /**
+         * The value of the program once the machine is done.
+         */
+        public Value result() {
+            if (!_done) throw new IllegalStateException("Evaluation is not finished");
+            return _result;
+        }
+
+        /**
+         * Takes at most steps steps, and returns whether the evaluation is
+         * finished.
+         */
+        public boolean run(long steps) {
+            if (_done) return true;
+            try {
+                for (; steps > 0; steps--) {
+                    Value value;
+                    if (_exp != null) {
+                        ASTNode exp = _exp;
+                        _exp = null;
+                        value = exp.accept(start, _env);
+                    } else {
+                        value = _frame_exps[_frames - 1].accept(resume, _frame_envs[_frames - 1]);
+                    }
+                    if (value == null) continue; // _exp is set
+                    if (_frames == 0) {
+                        finish(value);
+                        return true;
+                    }
+                    _value = value;
+                }
+                return false;
+            } catch (ClassCastException e) { // dynamic type error, as in Evaluator.visit(Program)
+                unwind();
+                finish(new Value.DynamicError(e.getMessage()));
+                return true;
+            } catch (RuntimeException | Error e) {
+                unwind();
+                finish(null);
+                throw e;
+            }
+        }
+
+        private void finish(Value result) {
+            _result = result;
+            _done = true;
+            _exp = null;
+            _env = null;
+            _value = null;
+            if (collector() != null) collector().removeRoots(this);
+        }
+
+        /**
+         * Leaves the regions entered by pending frames after an error.
+         */
+        private void unwind() {
+            for (int i = _frames - 1; i >= 0; i--)
+                if (_frame_exps[i] instanceof RegionExp) heap.exitRegion(_frame_states[i]);
+            Arrays.fill(_frame_exps, 0, _frames, null);
+            Arrays.fill(_frame_envs, 0, _frames, null);
+            Arrays.fill(_operands, 0, _operand_count, null);
+            _frames = 0;
+            _operand_count = 0;
+        }
+
+        @Override
+        public void forEachRoot(Consumer<Object> action) {
+            action.accept(_env);
+            action.accept(_value);
+            for (int i = 0; i < _frames; i++) action.accept(_frame_envs[i]);
+            for (int i = 0; i < _operand_count; i++) action.accept(_operands[i]);
+        }
+
+        private void pushFrame(ASTNode exp, Env env, int state) {
+            if (_frames == _frame_exps.length) {
+                _frame_exps = Arrays.copyOf(_frame_exps, _frames * 2);
+                _frame_envs = Arrays.copyOf(_frame_envs, _frames * 2);
+                _frame_states = Arrays.copyOf(_frame_states, _frames * 2);
+            }
+            _frame_exps[_frames] = exp;
+            _frame_envs[_frames] = env;
+            _frame_states[_frames] = state;
+            _frames++;
+        }
+
+        private int popFrame() {
+            _frames--;
+            _frame_exps[_frames] = null;
+            _frame_envs[_frames] = null;
+            return _frame_states[_frames];
+        }
+
+        private void push(Value value) {
+            if (_operand_count == _operands.length) _operands = Arrays.copyOf(_operands, _operand_count * 2);
+            _operands[_operand_count++] = value;
+        }
+
+        private Value pop() {
+            Value value = _operands[--_operand_count];
+            _operands[_operand_count] = null;
+            return value;
+        }
+
+        private Value[] pop(int count) {
+            _operand_count -= count;
+            Value[] values = Arrays.copyOfRange(_operands, _operand_count, _operand_count + count);
+            Arrays.fill(_operands, _operand_count, _operand_count + count, null);
+            return values;
+        }
+
+        /**
+         * Continues with exp in env; a visitor returns the null this gives
+         * when it has not produced a value yet.
+         */
+        private Value evaluate(ASTNode exp, Env env) {
+            _exp = exp;
+            _env = env;
+            return null;
+        }
+
+        /**
+         * Pushes a frame for e, whose first child is first.
+         */
+        private Value begin(ASTNode e, Env env, ASTNode first) {
+            pushFrame(e, env, 0);
+            return evaluate(first, env);
+        }
+
+        /**
+         * Saves value, the result of the top frame's current child, and
+         * continues with its next child, or returns false once all children
+         * are evaluated.
+         */
+        private boolean next(Value value, List<? extends ASTNode> children) {
+            push(value);
+            int index = ++_frame_states[_frames - 1];
+            if (index == children.size()) return false;
+            evaluate(children.get(index), _frame_envs[_frames - 1]);
+            return true;
+        }
+
+        /**
+         * Like next, for the two children of a binary expression.
+         */
+        private boolean next(Value value, ASTNode second) {
+            push(value);
+            if (_frame_states[_frames - 1]++ > 0) return false;
+            evaluate(second, _frame_envs[_frames - 1]);
+            return true;
+        }
+
+        private Value takeValue() {
+            Value value = _value;
+            _value = null;
+            return value;
+        }
+
+        /**
+         * Starts the evaluation of an expression: returns its value if it has
+         * no subexpressions, or pushes a frame and continues with the first.
+         */
+        private final class Start implements Visitor<Value> {
+            @Override
+            public Value visit(AddExp e, Env env) {
+                if (e.all().isEmpty()) return Value.NumVal.of(0);
+                if (direct(e, TypeChecker.Type.NUMBER, e.all())) return StackEvaluator.this.visit(e, env);
+                return begin(e, env, e.all().getFirst());
+            }
+
+            @Override
+            public Value visit(UnitExp e, Env env) {
+                return StackEvaluator.this.visit(e, env);
+            }
+
+            @Override
+            public Value visit(NumExp e, Env env) {
+                return StackEvaluator.this.visit(e, env);
+            }
+
+            @Override
+            public Value visit(BoolExp e, Env env) {
+                return StackEvaluator.this.visit(e, env);
+            }
+
+            @Override
+            public Value visit(DivExp e, Env env) {
+                if (direct(e, TypeChecker.Type.NUMBER, e.all())) return StackEvaluator.this.visit(e, env);
+                return begin(e, env, e.all().getFirst());
+            }
+
+            @Override
+            public Value visit(MultExp e, Env env) {
+                if (e.all().isEmpty()) return Value.NumVal.of(1);
+                if (direct(e, TypeChecker.Type.NUMBER, e.all())) return StackEvaluator.this.visit(e, env);
+                return begin(e, env, e.all().getFirst());
+            }
+
+            @Override
+            public Value visit(Program p, Env env) {
+                if (p.decls().isEmpty()) return evaluate(p.e(), env);
+                return begin(p, env, p.decls().getFirst());
+            }
+
+            @Override
+            public Value visit(SubExp e, Env env) {
+                if (direct(e, TypeChecker.Type.NUMBER, e.all())) return StackEvaluator.this.visit(e, env);
+                return begin(e, env, e.all().getFirst());
+            }
+
+            @Override
+            public Value visit(VarExp e, Env env) {
+                return StackEvaluator.this.visit(e, env);
+            }
+
+            @Override
+            public Value visit(LetExp e, Env env) {
+                if (e.value_exps().isEmpty()) return evaluate(e.body(), new FrameEnv(env, e.symbols(), new Value[0]));
+                return begin(e, env, e.value_exps().getFirst());
+            }
+
+            @Override
+            public Value visit(DefineDecl d, Env env) {
+                return begin(d, env, d.value_exp());
+            }
+
+            @Override
+            public Value visit(LambdaExp e, Env env) {
+                return StackEvaluator.this.visit(e, env);
+            }
+
+            @Override
+            public Value visit(CallExp e, Env env) {
+                return begin(e, env, e.operator());
+            }
+
+            @Override
+            public Value visit(IfExp e, Env env) {
+                if (e.conditional() instanceof BinaryComparator condition && direct(condition))
+                    return evaluate(test(condition, env) ? e.then_exp() : e.else_exp(), env);
+                return begin(e, env, e.conditional());
+            }
+
+            @Override
+            public Value visit(LessExp e, Env env) {
+                if (direct(e)) return StackEvaluator.this.visit(e, env);
+                return begin(e, env, e.first_exp());
+            }
+
+            @Override
+            public Value visit(EqualExp e, Env env) {
+                if (direct(e)) return StackEvaluator.this.visit(e, env);
+                return begin(e, env, e.first_exp());
+            }
+
+            @Override
+            public Value visit(GreaterExp e, Env env) {
+                if (direct(e)) return StackEvaluator.this.visit(e, env);
+                return begin(e, env, e.first_exp());
+            }
+
+            @Override
+            public Value visit(CarExp e, Env env) {
+                return begin(e, env, e.arg());
+            }
+
+            @Override
+            public Value visit(CdrExp e, Env env) {
+                return begin(e, env, e.arg());
+            }
+
+            @Override
+            public Value visit(ConsExp e, Env env) {
+                return begin(e, env, e.fst());
+            }
+
+            @Override
+            public Value visit(ListExp e, Env env) {
+                if (e.elems().isEmpty()) return Value.Null.NULL;
+                return begin(e, env, e.elems().getFirst());
+            }
+
+            @Override
+            public Value visit(NullExp e, Env env) {
+                return begin(e, env, e.arg());
+            }
+
+            @Override
+            public Value visit(RefExp e, Env env) {
+                return begin(e, env, e.value_exp());
+            }
+
+            @Override
+            public Value visit(AssignExp e, Env env) {
+                return begin(e, env, e.rhs_exp());
+            }
+
+            @Override
+            public Value visit(DerefExp e, Env env) {
+                return begin(e, env, e.loc_exp());
+            }
+
+            @Override
+            public Value visit(FreeExp e, Env env) {
+                return begin(e, env, e.value_exp());
+            }
+
+            @Override
+            public Value visit(RefEqExp e, Env env) {
+                return begin(e, env, e.exp1());
+            }
+
+            @Override
+            public Value visit(RegionExp e, Env env) {
+                int mark = heap.enterRegion();
+                if (mark < 0) return new Value.DynamicError("Regions are not supported by this heap");
+                pushFrame(e, env, mark);
+                return evaluate(e.body(), env);
+            }
+
+            @Override
+            public Value visit(CasExp e, Env env) {
+                return begin(e, env, e.loc_exp());
+            }
+
+            @Override
+            public Value visit(LocalRefExp e, Env env) {
+                return evaluate(e.value_exp(), env);
+            }
+
+            @Override
+            public Value visit(LocalDerefExp e, Env env) {
+                return StackEvaluator.this.visit(e, env);
+            }
+
+            @Override
+            public Value visit(LocalAssignExp e, Env env) {
+                return begin(e, env, e.rhs_exp());
+            }
+
+            @Override
+            public Value visit(InlinedCallExp e, Env env) {
+                return evaluate(stillInlined(e, env) ? e.inlined() : e.call(), env);
+            }
+
+            // The updates read the current value right away, and then keep the
+            // location and the running result on the operand stack while the
+            // other operands are evaluated.
+
+            @Override
+            public Value visit(RefUpdateExp e, Env env) {
+                Value.RefVal loc = (Value.RefVal) StackEvaluator.this.visit(e.var(), env);
+                Value.NumVal first = (Value.NumVal) heap.deref(loc);
+                Value.NumVal result = e.subtract() ? first : Value.NumVal.add(Value.IntVal.ZERO, first);
+                push(loc);
+                push(result);
+                pushFrame(e, env, 1);
+                return evaluate(e.rhs_exp().all().get(1), env);
+            }
+
+            @Override
+            public Value visit(LocalUpdateExp e, Env env) {
+                VarExp var = e.var();
+                Value.NumVal first = (Value.NumVal) ((FrameEnv) env).get(var.depth(), var.slot());
+                Value.NumVal result = e.subtract() ? first : Value.NumVal.add(Value.IntVal.ZERO, first);
+                push(result);
+                pushFrame(e, env, 1);
+                return evaluate(e.rhs_exp().all().get(1), env);
+            }
+
+            @Override
+            public Value visit(DerefCarExp e, Env env) {
+                return begin(e, env, e.arg());
+            }
+        }
+
+        /**
+         * Receives the value of a child in the top frame, and either
+         * continues with the next child, or pops the frame and returns the
+         * value of its expression. Operands are type checked as soon as they
+         * are evaluated, like in the Evaluator.
+         */
+        private final class Resume implements Visitor<Value> {
+            @Override
+            public Value visit(AddExp e, Env env) {
+                if (next((Value.NumVal) takeValue(), e.all())) return null;
+                popFrame();
+                Value.NumVal result = Value.IntVal.ZERO;
+                for (Value operand : pop(e.all().size()))
+                    result = Value.NumVal.add(result, (Value.NumVal) operand);
+                return result;
+            }
+
+            @Override
+            public Value visit(UnitExp e, Env env) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Value visit(NumExp e, Env env) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Value visit(BoolExp e, Env env) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Value visit(DivExp e, Env env) {
+                if (next((Value.NumVal) takeValue(), e.all())) return null;
+                popFrame();
+                Value[] operands = pop(e.all().size());
+                double result = ((Value.NumVal) operands[0]).v();
+                for (int i = 1; i < operands.length; i++)
+                    result = result / ((Value.NumVal) operands[i]).v();
+                return Value.NumVal.of(result);
+            }
+
+            @Override
+            public Value visit(MultExp e, Env env) {
+                if (next((Value.NumVal) takeValue(), e.all())) return null;
+                popFrame();
+                Value.NumVal result = Value.IntVal.ONE;
+                for (Value operand : pop(e.all().size()))
+                    result = Value.NumVal.mul(result, (Value.NumVal) operand);
+                return result;
+            }
+
+            @Override
+            public Value visit(Program p, Env env) {
+                takeValue(); // the unit value of a definition
+                int index = ++_frame_states[_frames - 1];
+                if (index < p.decls().size()) return evaluate(p.decls().get(index), env);
+                popFrame();
+                return evaluate(p.e(), env);
+            }
+
+            @Override
+            public Value visit(SubExp e, Env env) {
+                if (next((Value.NumVal) takeValue(), e.all())) return null;
+                popFrame();
+                Value[] operands = pop(e.all().size());
+                Value.NumVal result = (Value.NumVal) operands[0];
+                for (int i = 1; i < operands.length; i++)
+                    result = Value.NumVal.sub(result, (Value.NumVal) operands[i]);
+                return result;
+            }
+
+            @Override
+            public Value visit(VarExp e, Env env) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Value visit(LetExp e, Env env) {
+                if (next(takeValue(), e.value_exps())) return null;
+                popFrame();
+                Value[] values = pop(e.value_exps().size());
+                return evaluate(e.body(), new FrameEnv(env, e.symbols(), values));
+            }
+
+            @Override
+            public Value visit(DefineDecl d, Env env) {
+                popFrame();
+                globals().extend(d.symbol(), takeValue());
+                return Value.UnitVal.UNIT;
+            }
+
+            @Override
+            public Value visit(LambdaExp e, Env env) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Value visit(CallExp e, Env env) {
+                Value value = takeValue();
+                List<Exp> operands = e.operands();
+                int index = _frame_states[_frames - 1];
+                if (index == 0 && !(value instanceof Value.FunVal)) {
+                    popFrame();
+                    return new Value.DynamicError("Operator not a function in call " + e.origin().accept(ts, env));
+                }
+                push(value);
+                index = ++_frame_states[_frames - 1];
+                if (index <= operands.size()) return evaluate(operands.get(index - 1), env);
+                popFrame();
+                Value[] actuals = pop(operands.size());
+                Value.FunVal operator = (Value.FunVal) pop();
+
+                Symbol[] formals = operator.formals();
+                if (e._cache.code(operator) == null) {
+                    if (formals.length != actuals.length)
+                        return new Value.DynamicError("Argument mismatch in call " + e.origin().accept(ts, env));
+                    e._cache.add(operator, operator.body());
+                }
+                if (jit != null) {
+                    Value result = jit.call(operator, actuals);
+                    if (result != null) return result;
+                }
+                return evaluate(operator.body(), new FrameEnv(operator.env(), formals, actuals));
+            }
+
+            @Override
+            public Value visit(IfExp e, Env env) {
+                popFrame();
+                if (!(takeValue() instanceof Value.BoolVal condition))
+                    return new Value.DynamicError("Condition not a boolean in expression " + e.origin().accept(ts, env));
+                return evaluate(condition.v() ? e.then_exp() : e.else_exp(), env);
+            }
+
+            @Override
+            public Value visit(LessExp e, Env env) {
+                if (next((Value.NumVal) takeValue(), e.second_exp())) return null;
+                popFrame();
+                Value.NumVal second = (Value.NumVal) pop();
+                Value.NumVal first = (Value.NumVal) pop();
+                return Value.BoolVal.of(Value.NumVal.less(first, second));
+            }
+
+            @Override
+            public Value visit(EqualExp e, Env env) {
+                if (next((Value.NumVal) takeValue(), e.second_exp())) return null;
+                popFrame();
+                Value.NumVal second = (Value.NumVal) pop();
+                Value.NumVal first = (Value.NumVal) pop();
+                return Value.BoolVal.of(Value.NumVal.equal(first, second));
+            }
+
+            @Override
+            public Value visit(GreaterExp e, Env env) {
+                if (next((Value.NumVal) takeValue(), e.second_exp())) return null;
+                popFrame();
+                Value.NumVal second = (Value.NumVal) pop();
+                Value.NumVal first = (Value.NumVal) pop();
+                return Value.BoolVal.of(Value.NumVal.greater(first, second));
+            }
+
+            @Override
+            public Value visit(CarExp e, Env env) {
+                popFrame();
+                return ((Value.PairVal) takeValue()).fst();
+            }
+
+            @Override
+            public Value visit(CdrExp e, Env env) {
+                popFrame();
+                return ((Value.PairVal) takeValue()).snd();
+            }
+
+            @Override
+            public Value visit(ConsExp e, Env env) {
+                if (next(takeValue(), e.snd())) return null;
+                popFrame();
+                Value second = pop();
+                Value first = pop();
+                return new Value.PairVal(first, second);
+            }
+
+            @Override
+            public Value visit(ListExp e, Env env) {
+                if (next(takeValue(), e.elems())) return null;
+                popFrame();
+                Value[] elems = pop(e.elems().size());
+                Value result = Value.Null.NULL;
+                for (int i = elems.length - 1; i >= 0; i--)
+                    result = new Value.PairVal(elems[i], result);
+                return result;
+            }
+
+            @Override
+            public Value visit(NullExp e, Env env) {
+                popFrame();
+                return Value.BoolVal.of(takeValue() instanceof Value.Null);
+            }
+
+            @Override
+            public Value visit(RefExp e, Env env) {
+                popFrame();
+                return allocate(e, takeValue());
+            }
+
+            @Override
+            public Value visit(AssignExp e, Env env) {
+                if (_frame_states[_frames - 1] == 0) {
+                    push(takeValue());
+                    _frame_states[_frames - 1] = 1;
+                    return evaluate(e.lhs_exp(), env);
+                }
+                popFrame();
+                Value.RefVal loc = (Value.RefVal) takeValue();
+                return heap.setref(loc, pop());
+            }
+
+            @Override
+            public Value visit(DerefExp e, Env env) {
+                popFrame();
+                return heap.deref((Value.RefVal) takeValue());
+            }
+
+            @Override
+            public Value visit(FreeExp e, Env env) {
+                popFrame();
+                return release(e, (Value.RefVal) takeValue());
+            }
+
+            @Override
+            public Value visit(RefEqExp e, Env env) {
+                if (next((Value.RefVal) takeValue(), e.exp2())) return null;
+                popFrame();
+                Value.RefVal val2 = (Value.RefVal) pop();
+                Value.RefVal val1 = (Value.RefVal) pop();
+                return Value.BoolVal.of(val1.loc() == val2.loc() && val1.generation() == val2.generation());
+            }
+
+            @Override
+            public Value visit(RegionExp e, Env env) {
+                heap.exitRegion(popFrame());
+                return takeValue();
+            }
+
+            @Override
+            public Value visit(CasExp e, Env env) {
+                Value value = takeValue();
+                if (_frame_states[_frames - 1] == 0) value = (Value.RefVal) value;
+                if (next(value, List.of(e.loc_exp(), e.expected_exp(), e.new_exp()))) return null;
+                popFrame();
+                Value new_value = pop();
+                Value expected = pop();
+                return heap.cas((Value.RefVal) pop(), expected, new_value);
+            }
+
+            @Override
+            public Value visit(LocalRefExp e, Env env) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Value visit(LocalDerefExp e, Env env) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Value visit(LocalAssignExp e, Env env) {
+                popFrame();
+                Value rhs_val = takeValue();
+                VarExp var = e.var();
+                ((FrameEnv) env).set(var.depth(), var.slot(), rhs_val);
+                return rhs_val;
+            }
+
+            @Override
+            public Value visit(InlinedCallExp e, Env env) {
+                throw new IllegalStateException();
+            }
+
+            @Override
+            public Value visit(RefUpdateExp e, Env env) {
+                Value.NumVal result = update(e.rhs_exp(), e.subtract());
+                if (result == null) return null;
+                return heap.setref((Value.RefVal) pop(), result);
+            }
+
+            @Override
+            public Value visit(LocalUpdateExp e, Env env) {
+                Value.NumVal result = update(e.rhs_exp(), e.subtract());
+                if (result == null) return null;
+                VarExp var = e.var();
+                ((FrameEnv) env).set(var.depth(), var.slot(), result);
+                return result;
+            }
+
+            /**
+             * Combines the running result with the operand just evaluated, and
+             * either continues with the next operand and returns null, or pops
+             * the frame and returns the result.
+             */
+            private Value.NumVal update(CompoundArithExp rhs, boolean subtract) {
+                Value.NumVal operand = (Value.NumVal) takeValue();
+                Value.NumVal result = (Value.NumVal) pop();
+                result = subtract ? Value.NumVal.sub(result, operand) : Value.NumVal.add(result, operand);
+                int index = ++_frame_states[_frames - 1];
+                if (index < rhs.all().size()) {
+                    push(result);
+                    evaluate(rhs.all().get(index), _frame_envs[_frames - 1]);
+                    return null;
+                }
+                popFrame();
+                return result;
+            }
+
+            @Override
+            public Value visit(DerefCarExp e, Env env) {
+                popFrame();
+                return heap.deref((Value.RefVal) ((Value.PairVal) takeValue()).fst());
+            }
+        }
+    }
+}
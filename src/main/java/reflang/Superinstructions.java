@@ -0,0 +1,57 @@
+package reflang;
+
+import java.util.List;
+
+import static reflang.AST.*;
+
+/**
+ * Replaces common combinations of reference operations by single nodes, so
+ * the evaluators dispatch once instead of several times.
+ * <ul>
+ * <li>(set! x (+ (deref x) e ...)) and (set! x (- (deref x) e ...)) become
+ * a RefUpdateExp, which finds the location once and reads and writes it
+ * directly; when x is a non-escaping reference, the LocalAssignExp and
+ * LocalDerefExp that EscapeAnalysis made of them become a LocalUpdateExp.</li>
+ * <li>(deref (car e)) becomes a DerefCarExp.</li>
+ * </ul>
+ * (== a b) is left alone: it already parses to a single RefEqExp, which
+ * compares the locations and generations of the two references without
+ * touching the heap.
+ * <p>
+ * The fused nodes evaluate the same expressions in the same order as the
+ * ones they replace. Runs after EscapeAnalysis, which does not know them.
+ */
+public class Superinstructions extends Rewriter {
+
+    @Override
+    public Exp visit(AssignExp e, Env env) {
+        if (e.lhs_exp() instanceof VarExp var && updates(e.rhs_exp()) instanceof DerefExp deref
+                && deref.loc_exp() instanceof VarExp read && read.symbol() == var.symbol())
+            return new RefUpdateExp((VarExp) rewrite(var), (CompoundArithExp) rewrite(e.rhs_exp()));
+        return super.visit(e, env);
+    }
+
+    @Override
+    public Exp visit(LocalAssignExp e, Env env) {
+        if (updates(e.rhs_exp()) instanceof LocalDerefExp deref && deref.var().symbol() == e.var().symbol())
+            return new LocalUpdateExp((VarExp) rewrite(e.var()), (CompoundArithExp) rewrite(e.rhs_exp()));
+        return super.visit(e, env);
+    }
+
+    /**
+     * The first operand when rhs is an addition or subtraction of at least
+     * two operands, or null. With one operand the update stores the value
+     * back unchanged, which is not worth a fused node.
+     */
+    private static Exp updates(Exp rhs) {
+        if (!(rhs instanceof AddExp) && !(rhs instanceof SubExp)) return null;
+        List<Exp> operands = ((CompoundArithExp) rhs).all();
+        return operands.size() < 2 ? null : operands.getFirst();
+    }
+
+    @Override
+    public Exp visit(DerefExp e, Env env) {
+        if (e.loc_exp() instanceof CarExp car) return new DerefCarExp(rewrite(car.arg()));
+        return super.visit(e, env);
+    }
+}
@@ -0,0 +1,71 @@
+package reflang;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An interned identifier. Every distinct name read by the parser maps to
+ * exactly one symbol, so names can be compared by identity and used to
+ * index environments by their dense integer id.
+ */
+public final class Symbol {
+    private static final Map<String, Symbol> table = new ConcurrentHashMap<>();
+    private static int count = 0; // ids are handed out densely, in order of first use
+
+    private final String _name;
+    private final int _id;
+
+    private Symbol(String name, int id) {
+        _name = name;
+        _id = id;
+    }
+
+    /**
+     * Returns the symbol for the given name, adding it to the symbol table
+     * if it has not been seen before.
+     */
+    public static Symbol of(String name) {
+        Symbol sym = table.get(name);
+        if (sym != null) return sym;
+        synchronized (table) {
+            return table.computeIfAbsent(name, n -> new Symbol(n, count++));
+        }
+    }
+
+    /**
+     * Returns the symbol for the given name, or null if no such name has
+     * been interned.
+     */
+    public static Symbol find(String name) {
+        return table.get(name);
+    }
+
+    public static Symbol[] of(List<String> names) {
+        Symbol[] result = new Symbol[names.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = of(names.get(i));
+        return result;
+    }
+
+    public static List<String> names(Symbol[] syms) {
+        List<String> result = new ArrayList<>(syms.length);
+        for (Symbol sym : syms)
+            result.add(sym._name);
+        return result;
+    }
+
+    public String name() {
+        return _name;
+    }
+
+    public int id() {
+        return _id;
+    }
+
+    @Override
+    public String toString() {
+        return _name;
+    }
+}
@@ -0,0 +1,473 @@
+package reflang;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static reflang.AST.*;
+
+/**
+ * Infers the types of expressions before a program runs, and rejects the
+ * program if some expression would certainly fail a dynamic type check:
+ * arithmetic or a comparison on a non-number, car or cdr of a non-pair,
+ * deref, set!, free, == or cas of a non-reference, an if on a non-boolean,
+ * or a call of a non-function or of a lambda with the wrong number of
+ * arguments. Such an expression is rejected even where it would never be
+ * evaluated.
+ * <p>
+ * Only types that hold for every run are inferred. A call of a known lambda
+ * has the type of its body, and the parameters of a lambda bound by a let
+ * that is only ever called there have the types of the arguments of those
+ * calls, as far as they are evident from the arguments themselves. Other
+ * parameters, globals, the contents of cells and list elements may hold
+ * anything, and so may refs and the other expressions that can return a
+ * DynamicError; uses of those are left to the evaluator's checks.
+ * <p>
+ * The type of each expression is recorded in its _type, where the
+ * evaluators look for operands that need no dynamic check. The optimizer
+ * rewrites a checked program, so the evaluated program is annotated again.
+ */
+public class TypeChecker implements Visitor<TypeChecker.Type> {
+
+    /**
+     * What is known about the values of an expression. A function type
+     * knows the number of parameters, or has arity -1 if it could be
+     * several lambdas with different numbers, and the type of its calls.
+     */
+    record Type(String name, int arity, Type result) {
+        static final Type UNKNOWN = new Type("anything", -1, null);
+        static final Type NUMBER = new Type("a number", -1, null);
+        static final Type BOOLEAN = new Type("a boolean", -1, null);
+        static final Type PAIR = new Type("a pair", -1, null);
+        static final Type NULL = new Type("the empty list", -1, null);
+        static final Type UNIT = new Type("unit", -1, null);
+
+        static Type function(int arity, Type result) {
+            return new Type("a function", arity, result);
+        }
+
+        boolean isFunction() {
+            return name.equals("a function");
+        }
+
+        /**
+         * The type of a value that has this type or other.
+         */
+        Type join(Type other) {
+            if (equals(other)) return this;
+            if (isFunction() && other.isFunction())
+                return function(arity == other.arity ? arity : -1, result.join(other.result));
+            return UNKNOWN;
+        }
+    }
+
+    public static class TypeException extends RuntimeException {
+        TypeException(String message) {
+            super(message);
+        }
+    }
+
+    private final Printer.Formatter ts = new Printer.Formatter();
+    private Map<Symbol, Type> locals = new HashMap<>(); // types of the let-bound names and parameters in scope
+    private boolean rejecting; // false while annotating
+
+    /**
+     * Rejects p if it has a type error, and records the types of its
+     * expressions.
+     */
+    public void check(Program p) {
+        rejecting = true;
+        p.accept(this, null);
+    }
+
+    /**
+     * Records the types of the expressions of p, which has been checked
+     * before the optimizer rewrote it, without rejecting it again.
+     */
+    void annotate(Program p) {
+        rejecting = false;
+        p.accept(this, null);
+    }
+
+    private Type check(Exp e) {
+        Type type = e.accept(this, null);
+        e._type = type;
+        return type;
+    }
+
+    /**
+     * Checks operand of e, which must evaluate to expected.
+     */
+    private Type expect(Type expected, Exp operand, Exp e) {
+        Type type = check(operand);
+        if (type != Type.UNKNOWN && !type.name().equals(expected.name())) reject(mismatch(expected.name(), type, operand, e));
+        return type;
+    }
+
+    /**
+     * Checks operand of e, which must evaluate to a reference. No
+     * expression is known to, since allocation can fail.
+     */
+    private void expectRef(Exp operand, Exp e) {
+        Type type = check(operand);
+        if (type != Type.UNKNOWN) reject(mismatch("a reference", type, operand, e));
+    }
+
+    private void reject(TypeException error) {
+        if (rejecting) throw error;
+    }
+
+    private TypeException mismatch(String expected, Type type, Exp operand, Exp e) {
+        return new TypeException("Type error: %s is %s, expected %s in %s".formatted(
+                show(operand), type.name(), expected, show(e)));
+    }
+
+    private String show(Exp e) {
+        return e.accept(ts, null);
+    }
+
+    private Type numbers(CompoundArithExp e) {
+        for (Exp operand : e.all())
+            expect(Type.NUMBER, operand, e);
+        return Type.NUMBER;
+    }
+
+    private Type within(Symbol[] names, Type[] types, Exp body) {
+        Map<Symbol, Type> saved = locals;
+        locals = new HashMap<>(saved);
+        for (int i = 0; i < names.length; i++)
+            locals.put(names[i], types[i]); // a later binding of the same name wins, as in the Resolver
+        try {
+            return check(body);
+        } finally {
+            locals = saved;
+        }
+    }
+
+    @Override
+    public Type visit(Program p, Env env) {
+        locals = new HashMap<>();
+        for (DefineDecl d : p.decls())
+            d.accept(this, env);
+        return check(p.e());
+    }
+
+    @Override
+    public Type visit(DefineDecl d, Env env) {
+        check(d.value_exp());
+        return Type.UNIT; // globals may be redefined, so their uses are not checked
+    }
+
+    @Override
+    public Type visit(AddExp e, Env env) {
+        return numbers(e);
+    }
+
+    @Override
+    public Type visit(SubExp e, Env env) {
+        return numbers(e);
+    }
+
+    @Override
+    public Type visit(MultExp e, Env env) {
+        return numbers(e);
+    }
+
+    @Override
+    public Type visit(DivExp e, Env env) {
+        return numbers(e);
+    }
+
+    @Override
+    public Type visit(UnitExp e, Env env) {
+        return Type.UNIT;
+    }
+
+    @Override
+    public Type visit(NumExp e, Env env) {
+        return Type.NUMBER;
+    }
+
+    @Override
+    public Type visit(BoolExp e, Env env) {
+        return Type.BOOLEAN;
+    }
+
+    @Override
+    public Type visit(VarExp e, Env env) {
+        return locals.getOrDefault(e.symbol(), Type.UNKNOWN);
+    }
+
+    @Override
+    public Type visit(LetExp e, Env env) {
+        Symbol[] names = e.symbols();
+        List<Exp> value_exps = e.value_exps();
+        Type[] types = new Type[value_exps.size()];
+        for (int i = 0; i < types.length; i++) {
+            Exp value_exp = value_exps.get(i);
+            if (value_exp instanceof LambdaExp lambda && !bindsLater(names, i)) {
+                Calls calls = new Calls(names[i], lambda.symbols().length);
+                calls.rewrite(e.body());
+                value_exp._type = types[i] = lambda(lambda, calls.escapes ? null : calls.args);
+            } else {
+                types[i] = check(value_exp);
+            }
+        }
+        return within(names, types, e.body());
+    }
+
+    /**
+     * Whether a later binding of the same let shadows names[i].
+     */
+    private static boolean bindsLater(Symbol[] names, int i) {
+        for (int j = i + 1; j < names.length; j++)
+            if (names[j] == names[i]) return true;
+        return false;
+    }
+
+    @Override
+    public Type visit(LambdaExp e, Env env) {
+        return lambda(e, null);
+    }
+
+    /**
+     * Checks e with parameters of the given types, or of unknown types if
+     * args is null.
+     */
+    private Type lambda(LambdaExp e, Type[] args) {
+        Type[] types = new Type[e.symbols().length];
+        for (int i = 0; i < types.length; i++)
+            types[i] = args == null || args[i] == null ? Type.UNKNOWN : args[i];
+        return Type.function(types.length, within(e.symbols(), types, e.body()));
+    }
+
+    /**
+     * The type of a value that e evaluates to, evident from e alone.
+     */
+    private static Type evident(Exp e) {
+        if (e instanceof NumExp || e instanceof CompoundArithExp) return Type.NUMBER;
+        if (e instanceof BoolExp || e instanceof BinaryComparator || e instanceof NullExp || e instanceof RefEqExp)
+            return Type.BOOLEAN;
+        if (e instanceof ConsExp) return Type.PAIR;
+        if (e instanceof ListExp list) return list.elems().isEmpty() ? Type.NULL : Type.PAIR;
+        if (e instanceof UnitExp) return Type.UNIT;
+        return Type.UNKNOWN;
+    }
+
+    /**
+     * Finds the calls of a let-bound lambda in the body of the let, and
+     * joins the evident types of their arguments. The lambda escapes, and
+     * may be called with anything, if its name is used other than as the
+     * operator of a call with the right number of arguments, or is bound
+     * again inside the body.
+     */
+    private static final class Calls extends Rewriter {
+        private final Symbol name;
+        final Type[] args;
+        boolean escapes = false;
+
+        Calls(Symbol name, int arity) {
+            this.name = name;
+            this.args = new Type[arity];
+        }
+
+        @Override
+        public Exp visit(CallExp e, Env env) {
+            if (!(e.operator() instanceof VarExp var) || var.symbol() != name || e.operands().size() != args.length)
+                return super.visit(e, env);
+            for (int i = 0; i < args.length; i++) {
+                Type type = evident(e.operands().get(i));
+                args[i] = args[i] == null ? type : args[i].join(type);
+            }
+            rewriteAll(e.operands());
+            return e;
+        }
+
+        @Override
+        public Exp visit(VarExp e, Env env) {
+            if (e.symbol() == name) escapes = true;
+            return e;
+        }
+
+        @Override
+        public Exp visit(LetExp e, Env env) {
+            rebinds(e.symbols());
+            return super.visit(e, env);
+        }
+
+        @Override
+        public Exp visit(LambdaExp e, Env env) {
+            rebinds(e.symbols());
+            return super.visit(e, env);
+        }
+
+        private void rebinds(Symbol[] names) {
+            for (Symbol bound : names)
+                if (bound == name) escapes = true;
+        }
+    }
+
+    @Override
+    public Type visit(CallExp e, Env env) {
+        Type operator = check(e.operator());
+        for (Exp operand : e.operands())
+            check(operand);
+        if (operator == Type.UNKNOWN) return Type.UNKNOWN;
+        if (!operator.isFunction()) {
+            reject(mismatch("a function", operator, e.operator(), e));
+            return Type.UNKNOWN;
+        }
+        if (operator.arity() < 0) return Type.UNKNOWN; // some of the lambdas give an argument mismatch
+        if (operator.arity() != e.operands().size()) {
+            reject(new TypeException("Type error: %s takes %d arguments, got %d in %s".formatted(
+                    show(e.operator()), operator.arity(), e.operands().size(), show(e))));
+            return Type.UNKNOWN;
+        }
+        return operator.result();
+    }
+
+    @Override
+    public Type visit(IfExp e, Env env) {
+        Type condition = expect(Type.BOOLEAN, e.conditional(), e);
+        Type type = check(e.then_exp()).join(check(e.else_exp()));
+        return condition == Type.BOOLEAN ? type : Type.UNKNOWN; // a non-boolean gives a DynamicError
+    }
+
+    @Override
+    public Type visit(LessExp e, Env env) {
+        expect(Type.NUMBER, e.first_exp(), e);
+        expect(Type.NUMBER, e.second_exp(), e);
+        return Type.BOOLEAN;
+    }
+
+    @Override
+    public Type visit(EqualExp e, Env env) {
+        expect(Type.NUMBER, e.first_exp(), e);
+        expect(Type.NUMBER, e.second_exp(), e);
+        return Type.BOOLEAN;
+    }
+
+    @Override
+    public Type visit(GreaterExp e, Env env) {
+        expect(Type.NUMBER, e.first_exp(), e);
+        expect(Type.NUMBER, e.second_exp(), e);
+        return Type.BOOLEAN;
+    }
+
+    @Override
+    public Type visit(CarExp e, Env env) {
+        expect(Type.PAIR, e.arg(), e);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visit(CdrExp e, Env env) {
+        expect(Type.PAIR, e.arg(), e);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visit(ConsExp e, Env env) {
+        check(e.fst());
+        check(e.snd());
+        return Type.PAIR;
+    }
+
+    @Override
+    public Type visit(ListExp e, Env env) {
+        for (Exp elem : e.elems())
+            check(elem);
+        return e.elems().isEmpty() ? Type.NULL : Type.PAIR;
+    }
+
+    @Override
+    public Type visit(NullExp e, Env env) {
+        check(e.arg());
+        return Type.BOOLEAN;
+    }
+
+    @Override
+    public Type visit(RefExp e, Env env) {
+        check(e.value_exp());
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visit(AssignExp e, Env env) {
+        check(e.rhs_exp());
+        expectRef(e.lhs_exp(), e);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visit(DerefExp e, Env env) {
+        expectRef(e.loc_exp(), e);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visit(FreeExp e, Env env) {
+        expectRef(e.value_exp(), e);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visit(RefEqExp e, Env env) {
+        expectRef(e.exp1(), e);
+        expectRef(e.exp2(), e);
+        return Type.BOOLEAN;
+    }
+
+    @Override
+    public Type visit(RegionExp e, Env env) {
+        return check(e.body());
+    }
+
+    @Override
+    public Type visit(CasExp e, Env env) {
+        expectRef(e.loc_exp(), e);
+        check(e.expected_exp());
+        check(e.new_exp());
+        return Type.UNKNOWN;
+    }
+
+    // Expressions the optimizer introduces are only seen while annotating.
+
+    @Override
+    public Type visit(LocalRefExp e, Env env) {
+        check(e.value_exp());
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visit(LocalDerefExp e, Env env) {
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visit(LocalAssignExp e, Env env) {
+        check(e.rhs_exp());
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visit(InlinedCallExp e, Env env) {
+        return check(e.inlined()).join(check(e.call()));
+    }
+
+    @Override
+    public Type visit(RefUpdateExp e, Env env) {
+        return check(new AssignExp(e.var(), e.rhs_exp()));
+    }
+
+    @Override
+    public Type visit(LocalUpdateExp e, Env env) {
+        check(e.rhs_exp());
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visit(DerefCarExp e, Env env) {
+        return check(new DerefExp(new CarExp(e.arg())));
+    }
+}
@@ -1,12 +1,28 @@
 package reflang;
 
-import java.util.List;
-
 public interface Value {
 
     class NumVal implements Value {
+        private static final int SMALL_MIN = -128, SMALL_MAX = 1024;
+        private static final NumVal[] SMALL = new NumVal[SMALL_MAX - SMALL_MIN + 1];
+
+        static {
+            for (int i = 0; i < SMALL.length; i++)
+                SMALL[i] = new NumVal(i + SMALL_MIN);
+        }
+
         private final double _val;
 
+        /**
+         * Returns a NumVal for v, shared for small integers.
+         */
+        public static NumVal of(double v) {
+            int i = (int) v;
+            if (i == v && i >= SMALL_MIN && i <= SMALL_MAX && (i != 0 || Double.doubleToRawLongBits(v) == 0))
+                return SMALL[i - SMALL_MIN];
+            return new NumVal(v);
+        }
+
         public NumVal(double v) {
             _val = v;
         }
@@ -15,13 +31,103 @@ public interface Value {
             return _val;
         }
 
+        // Arithmetic on IntVals stays exact while the result fits in a long,
+        // and is done in doubles otherwise.
+
+        public static NumVal add(NumVal x, NumVal y) {
+            if (x instanceof IntVal a && y instanceof IntVal b) {
+                long r = a._long + b._long;
+                if (((a._long ^ r) & (b._long ^ r)) >= 0) return IntVal.of(r);
+            }
+            return of(x._val + y._val);
+        }
+
+        public static NumVal sub(NumVal x, NumVal y) {
+            if (x instanceof IntVal a && y instanceof IntVal b) {
+                long r = a._long - b._long;
+                if (((a._long ^ b._long) & (a._long ^ r)) >= 0) return IntVal.of(r);
+            }
+            return of(x._val - y._val);
+        }
+
+        public static NumVal mul(NumVal x, NumVal y) {
+            if (x instanceof IntVal a && y instanceof IntVal b) {
+                long r = a._long * b._long;
+                if (Math.multiplyHigh(a._long, b._long) == r >> 63) return IntVal.of(r);
+            }
+            return of(x._val * y._val);
+        }
+
+        public static boolean less(NumVal x, NumVal y) {
+            if (x instanceof IntVal a && y instanceof IntVal b) return a._long < b._long;
+            return x._val < y._val;
+        }
+
+        public static boolean equal(NumVal x, NumVal y) {
+            if (x instanceof IntVal a && y instanceof IntVal b) return a._long == b._long;
+            return x._val == y._val;
+        }
+
+        public static boolean greater(NumVal x, NumVal y) {
+            if (x instanceof IntVal a && y instanceof IntVal b) return a._long > b._long;
+            return x._val > y._val;
+        }
+
         @Override
         public String toString() {
             return Double.toString(_val);
         }
     }
 
+    /**
+     * An exact integer. Integer literals evaluate to IntVals, and their sums,
+     * differences and products are IntVals too unless they overflow a long.
+     * Division, or any double operand, gives a plain NumVal. An IntVal prints
+     * like the double of the same value, except beyond 2^53, where doubles
+     * skip integers and it prints all of its digits instead.
+     */
+    class IntVal extends NumVal {
+        private static final long EXACT_DOUBLES = 1L << 53; // every integer up to this magnitude is a double
+        private static final int SMALL_MIN = -128, SMALL_MAX = 1024;
+        private static final IntVal[] SMALL = new IntVal[SMALL_MAX - SMALL_MIN + 1];
+
+        static {
+            for (int i = 0; i < SMALL.length; i++)
+                SMALL[i] = new IntVal(i + SMALL_MIN);
+        }
+
+        public static final IntVal ZERO = of(0);
+        public static final IntVal ONE = of(1);
+
+        private final long _long;
+
+        /**
+         * Returns an IntVal for v, shared for small integers.
+         */
+        public static IntVal of(long v) {
+            if (v >= SMALL_MIN && v <= SMALL_MAX) return SMALL[(int) v - SMALL_MIN];
+            return new IntVal(v);
+        }
+
+        public IntVal(long v) {
+            super(v);
+            _long = v;
+        }
+
+        public long l() {
+            return _long;
+        }
+
+        @Override
+        public String toString() {
+            if (_long > EXACT_DOUBLES || _long < -EXACT_DOUBLES) return Long.toString(_long);
+            return super.toString();
+        }
+    }
+
     class UnitVal implements Value {
+        public static final UnitVal UNIT = new UnitVal();
+
         @Override
         public String toString() {
             return "";
@@ -43,10 +149,12 @@ public interface Value {
 
     class FunVal implements Value { //New in the reflang
         private final Env _env;
-        private final List<String> _formals;
+        private final Symbol[] _formals;
         private final AST.Exp _body;
+        int _calls = 0; // counted and compiled by the Jit
+        Jit.Code _code;
 
-        public FunVal(Env env, List<String> formals, AST.Exp body) {
+        public FunVal(Env env, Symbol[] formals, AST.Exp body) {
             _env = env;
             _formals = formals;
             _body = body;
@@ -56,7 +164,7 @@ public interface Value {
             return _env;
         }
 
-        public List<String> formals() {
+        public Symbol[] formals() {
             return _formals;
         }
 
@@ -67,17 +175,24 @@ public interface Value {
         @Override
         public String toString() {
             StringBuilder result = new StringBuilder("(lambda ( ");
-            for (String formal : _formals)
+            for (Symbol formal : _formals)
                 result.append(formal).append(" ");
             result.append(") ");
-            result.append(_body.accept(new Printer.Formatter(), _env));
+            result.append(_body.origin().accept(new Printer.Formatter(), _env));
             return result + ")";
         }
     }
 
     class BoolVal implements Value {
+        public static final BoolVal TRUE = new BoolVal(true);
+        public static final BoolVal FALSE = new BoolVal(false);
+
         private final boolean _val;
 
+        public static BoolVal of(boolean v) {
+            return v ? TRUE : FALSE;
+        }
+
         public BoolVal(boolean v) {
             _val = v;
         }
@@ -134,17 +249,30 @@ public interface Value {
     }
 
     class Null implements Value {
+        public static final Null NULL = new Null();
+
         @Override
         public String toString() {
             return "()";
         }
     }
 
+    /**
+     * A reference to a heap cell. The generation tells a reference to a cell
+     * that a region has released apart from one to whatever the heap later
+     * allocates at the same location.
+     */
     class RefVal implements Value {
         private final int _loc;
+        private final int _generation;
 
         public RefVal(int loc) {
+            this(loc, 0);
+        }
+
+        public RefVal(int loc, int generation) {
             _loc = loc;
+            _generation = generation;
         }
 
         @Override
@@ -155,5 +283,9 @@ public interface Value {
         public int loc() {
             return _loc;
         }
+
+        public int generation() {
+            return _generation;
+        }
     }
 }
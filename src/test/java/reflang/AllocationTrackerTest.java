@@ -0,0 +1,47 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AllocationTrackerTest {
+
+    private static Evaluator tracking(String... programs) {
+        Evaluator eval = Options.parse(new String[]{"--track-allocations"}).newEvaluator();
+        for (String program : programs) Programs.eval(eval, program);
+        return eval;
+    }
+
+    @Test
+    void liveCellsAreGroupedBySite() {
+        Evaluator eval = tracking("(define make (lambda (n) (ref n)))",
+                "(define a (make 1))",
+                "(define b (make 2))",
+                "(define c (make 3))",
+                "(define keep (ref 4))",
+                "(free a)");
+        AllocationTracker.Report report = eval.tracker.report();
+        assertEquals(3, report.liveCells());
+        assertEquals(0, report.doubleFrees());
+        String text = report.toString();
+        assertTrue(text.startsWith("Allocations: 3 cells never freed"), text);
+        assertTrue(text.contains("       2 cells         56 bytes        3 allocated  (ref n)"), text);
+        assertTrue(text.contains("       1 cells         28 bytes        1 allocated  (ref 4.0)"), text);
+    }
+
+    @Test
+    void doubleFreesAreReportedWithTheirSite() {
+        Evaluator eval = tracking("(define r (ref 1))", "(free r)", "(free r)");
+        AllocationTracker.Report report = eval.tracker.report();
+        assertEquals(0, report.liveCells());
+        assertEquals(1, report.doubleFrees());
+        assertTrue(report.toString().contains("loc:0 allocated by (ref 1.0), freed again by (free r)"), report.toString());
+    }
+
+    @Test
+    void cellsReleasedByARegionAreNotLive() {
+        Evaluator eval = tracking("(region (let ((r (ref 1))) (list r r)))");
+        assertEquals(0, eval.tracker.report().liveCells());
+    }
+}
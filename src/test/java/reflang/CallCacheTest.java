@@ -0,0 +1,56 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CallCacheTest {
+    private static final String[] ENGINES = {"--engine=tree", "--engine=compiled", "--engine=stack"};
+
+    private static Value.FunVal fun(Evaluator eval, String lambda) {
+        return (Value.FunVal) eval.valueOf(Programs.parse(lambda));
+    }
+
+    @Test
+    void closuresOfTheSameLambdaShareAnEntry() {
+        Evaluator eval = new Evaluator();
+        Programs.eval(eval, "(define make (lambda (k) (lambda (x) (+ x k))))");
+        Evaluator.CallCache cache = new Evaluator.CallCache();
+        Value.FunVal add1 = fun(eval, "(make 1)"), add2 = fun(eval, "(make 2)");
+        assertNull(cache.code(add1));
+        cache.add(add1, "code");
+        assertEquals("code", cache.code(add1));
+        assertEquals("code", cache.code(add2));
+        assertNull(cache.code(fun(eval, "(lambda (x) (+ x 1))")));
+    }
+
+    @Test
+    void aFifthCalleeMakesTheSiteMegamorphic() {
+        Evaluator eval = new Evaluator();
+        Evaluator.CallCache cache = new Evaluator.CallCache();
+        Value.FunVal[] funs = new Value.FunVal[Evaluator.CallCache.POLYMORPHIC + 1];
+        for (int i = 0; i < funs.length; i++) {
+            funs[i] = fun(eval, "(lambda (x) (* x " + i + "))");
+            cache.add(funs[i], i);
+        }
+        for (Value.FunVal f : funs)
+            assertNull(cache.code(f));
+        cache.add(funs[0], 0);
+        assertNull(cache.code(funs[0]));
+    }
+
+    @Test
+    void polymorphicSitesCallTheRightFunction() {
+        String program = "(define call (lambda (f x) (f x))) "
+                + "(define fs (list (lambda (x) (+ x 1)) (lambda (x) (* x 2)) (lambda (x) (- x 3)) (lambda (y) (list y)) "
+                + "(lambda (x) (= x 5)) (lambda (x y) x) (lambda (x) (call (lambda (z) (* z z)) x)))) "
+                + "(define run (lambda (l acc) (if (null? l) acc (run (cdr l) (cons (call (car l) 5) acc))))) "
+                + "(list (run fs (list)) (run fs (list)))";
+        String expected = Programs.eval(program, "--engine=tree");
+        assertEquals("((25.0 Argument mismatch in call (f x) #t (5.0) 2.0 10.0 6.0) "
+                + "(25.0 Argument mismatch in call (f x) #t (5.0) 2.0 10.0 6.0))", expected);
+        for (String engine : ENGINES)
+            assertEquals(expected, Programs.eval(program, engine), engine);
+    }
+}
@@ -0,0 +1,56 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static reflang.AST.*;
+
+class ClosureTest {
+
+    private static LambdaExp resolvedLambda(String program) {
+        Program p = Programs.parse(program);
+        new Resolver().resolve(p);
+        Exp e = p.e();
+        while (e instanceof LetExp let) e = let.body();
+        return (LambdaExp) e;
+    }
+
+    @Test
+    void onlyUsedLocalsAreCaptured() {
+        LambdaExp lambda = resolvedLambda("(let ((a 1) (b 2)) (let ((c 3)) (lambda (x) (+ x b g))))");
+        assertEquals(1, lambda.free().length);
+        assertEquals("b", lambda.free()[0].name());
+        assertEquals(1, lambda.free_depths()[0]);
+        assertEquals(1, lambda.free_slots()[0]);
+    }
+
+    @Test
+    void nestedLambdasPropagateCaptures() {
+        LambdaExp outer = resolvedLambda("(let ((a 1) (b 2)) (lambda (x) (lambda (y) (+ a y))))");
+        assertEquals("a", outer.free()[0].name());
+        assertEquals(1, outer.free().length);
+        LambdaExp inner = (LambdaExp) outer.body();
+        assertEquals("a", inner.free()[0].name());
+        assertEquals(1, inner.free().length);
+    }
+
+    @Test
+    void closuresKeepTheirCapturedValues() {
+        assertEquals("15.0", Programs.eval("(let ((a 10)) (let ((f (lambda (x) (+ a x)))) (let ((a 100)) (f 5))))"));
+        assertEquals("(1.0 2.0)", Programs.eval(
+                "(let ((make (lambda (n) (lambda () n)))) (let ((one (make 1)) (two (make 2))) (list (one) (two))))"));
+        assertEquals("6.0", Programs.eval("((((lambda (a) (lambda (b) (lambda (c) (+ a b c)))) 1) 2) 3)"));
+    }
+
+    @Test
+    void capturedReferencesShareTheirCell() {
+        assertEquals("2.0", Programs.eval(
+                "(let ((r (ref 0))) (let ((inc (lambda () (set! r (+ (deref r) 1))))) (let ((a (inc)) (b (inc))) (deref r))))"));
+    }
+
+    @Test
+    void globalsAreNotCaptured() {
+        assertEquals(0, resolvedLambda("(lambda (x) (+ x g))").free().length);
+        assertEquals("4.0", Programs.eval("(define g 1) (define f (lambda (x) (+ x g))) (define g 3) (f 1)"));
+    }
+}
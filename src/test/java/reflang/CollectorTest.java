@@ -0,0 +1,64 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CollectorTest {
+    private static final String CHURN =
+            "(define churn (lambda (n) (let ((r (ref n))) (if (= n 0) r (churn (- n 1))))))";
+
+    /**
+     * Allocates 70,000 garbage cells, more than the 16-bit heap holds.
+     */
+    private static void churn(Evaluator eval) {
+        Programs.eval(eval, CHURN);
+        for (int i = 0; i < 140; i++)
+            assertTrue(Programs.eval(eval, "(churn 500)").startsWith("loc:"));
+    }
+
+    @Test
+    void unreachableCellsAreCollected() {
+        Evaluator eval = Options.parse(new String[]{"--gc=auto", "--gc-threshold=64"}).newEvaluator();
+        churn(eval);
+        assertTrue(eval.collector().stats().collections() > 0);
+        assertTrue(eval.collector().stats().collected() >= 70_000 - 65_536);
+    }
+
+    @Test
+    void withoutACollectorTheHeapRunsOut() {
+        Evaluator eval = Options.parse(new String[]{"--gc=manual"}).newEvaluator();
+        Programs.eval(eval, CHURN);
+        String last = "";
+        for (int i = 0; i < 140; i++)
+            last = Programs.eval(eval, "(churn 500)");
+        assertEquals("Out of memory error", last);
+    }
+
+    @Test
+    void reachableCellsSurvive() {
+        Evaluator eval = Options.parse(new String[]{"--gc=auto", "--gc-threshold=64"}).newEvaluator();
+        Programs.eval(eval, "(define keep (ref (ref 42)))");
+        Programs.eval(eval, "(define getter (let ((r (ref 7))) (lambda () (deref r))))");
+        churn(eval);
+        assertEquals("42.0", Programs.eval(eval, "(deref (deref keep))"));
+        assertEquals("7.0", Programs.eval(eval, "(getter)"));
+    }
+
+    @Test
+    void intermediateValuesAreRoots() {
+        Evaluator eval = Options.parse(new String[]{"--gc=auto", "--gc-threshold=16"}).newEvaluator();
+        Programs.eval(eval, CHURN);
+        assertEquals("7.0", Programs.eval(eval, "(let ((p (cons (ref 7) (churn 500)))) (deref (car p)))"));
+        assertEquals("8.0", Programs.eval(eval, "(let ((p (list (ref 8) (churn 500)))) (deref (car p)))"));
+        assertEquals("9.0", Programs.eval(eval, "((lambda (r n) (deref r)) (ref 9) (churn 500))"));
+    }
+
+    @Test
+    void hintModeNeverFreesReachableCells() {
+        String program = "(let ((r (ref 5))) (let ((f (free r))) (deref r)))";
+        assertEquals("5.0", Programs.eval(program, "--gc=hint"));
+        assertEquals("Null pointer at loc:0", Programs.eval(program, "--gc=auto"));
+    }
+}
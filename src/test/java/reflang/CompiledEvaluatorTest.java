@@ -0,0 +1,44 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+class CompiledEvaluatorTest {
+
+    private static String compiled(String program, String... options) {
+        String[] args = new String[options.length + 1];
+        args[0] = "--engine=compiled";
+        System.arraycopy(options, 0, args, 1, options.length);
+        return Programs.eval(program, args);
+    }
+
+    @Test
+    void theEngineOptionSelectsTheCompiledEvaluator() {
+        assertInstanceOf(CompiledEvaluator.class, Options.parse(new String[]{"--engine=compiled"}).newEvaluator());
+    }
+
+    @Test
+    void evaluatesLikeTheTreeEvaluator() {
+        assertEquals("17711.0", compiled("(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))) (fib 22)"));
+        assertEquals("(3.0 #t)", compiled("(let ((r (ref 1))) (let ((s (set! r (+ (deref r) 2)))) (list (deref r) (== r r))))"));
+        assertEquals("(1.0 2.0)", compiled("(let ((x 1)) (let ((f (lambda (y) (list x y)))) (f 2)))"));
+    }
+
+    @Test
+    void errorsMatchTheTreeEvaluator() {
+        assertEquals("Null pointer at loc:0", compiled("(deref (region (ref 1)))"));
+        assertEquals("#f", compiled("(let ((a (region (ref 1)))) (== a (ref 2)))"));
+        assertEquals("Regions are not supported by this heap",
+                compiled("(region (ref 1))", "--heap=concurrent", "--heap-capacity=4"));
+    }
+
+    @Test
+    void closuresFromAnotherEvaluatorAreCompiledOnFirstCall() {
+        Env.GlobalEnv globals = new Env.GlobalEnv();
+        Heap heap = new Heap.Heap16Bit();
+        Programs.eval(new Evaluator(globals, heap, null), "(define twice (lambda (x) (* x 2)))");
+        assertEquals("42.0", Programs.eval(new CompiledEvaluator(globals, heap, null), "(twice 21)"));
+    }
+}
@@ -0,0 +1,83 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ConcurrentHeapTest {
+
+    @Test
+    void casStoresOnlyOverTheExpectedValue() {
+        String program = "(let ((r (ref 1))) (list (cas! r 1 2) (cas! r 1 3) (deref r)))";
+        assertEquals("(#t #f 2.0)", Programs.eval(program));
+        assertEquals("(#t #f 2.0)", Programs.eval(program, "--heap=concurrent"));
+    }
+
+    @Test
+    void casComparesValuesLikeThePrimitives() {
+        assertEquals("(#t #t #t #f)", Programs.eval(
+                "(let ((r (ref #t)) (s (ref (list))) (t (ref (ref 0))) (u (ref (list 1)))) "
+                        + "(list (cas! r #t #f) (cas! s (list) 1) (cas! t (deref t) 2) (cas! u (list 1) 2)))"));
+    }
+
+    @Test
+    void casOnAFreedCellIsANullPointer() {
+        assertEquals("Null pointer at loc:0", Programs.eval("(let ((r (ref 1))) (let ((f (free r))) (cas! r 1 2)))"));
+        assertEquals("Null pointer at loc:0", Programs.eval(
+                "(let ((r (ref 1))) (let ((f (free r))) (cas! r 1 2)))", "--heap=concurrent"));
+        assertEquals("Null pointer at loc:0", Programs.eval("(let ((r (region (ref 1)))) (let ((s (ref 1))) (cas! r 1 2)))"));
+    }
+
+    @Test
+    void freedCellsAreReused() {
+        Heap heap = new Heap.ConcurrentHeap(2);
+        Value.RefVal a = (Value.RefVal) heap.ref(new Value.NumVal(1));
+        heap.ref(new Value.NumVal(2));
+        assertEquals("Out of memory error", heap.ref(new Value.NumVal(3)).toString());
+        heap.free(a);
+        assertEquals("Double free at loc:0", heap.free(a).toString());
+        assertEquals("loc:0", heap.ref(new Value.NumVal(4)).toString());
+        assertEquals("4.0", heap.deref(a).toString());
+    }
+
+    @Test
+    void threadsShareTheHeap() throws Exception {
+        Env.GlobalEnv globals = new Env.GlobalEnv();
+        Heap heap = new Heap.ConcurrentHeap(1024);
+        Programs.eval(new Evaluator(globals, heap), """
+                (define counter (ref 0))
+                (define inc (lambda () (let ((old (deref counter))) (if (cas! counter old (+ old 1)) old (inc)))))
+                (define loop (lambda (n) (if (= n 0) 0 (let ((x (inc)) (garbage (free (ref n)))) (loop (- n 1))))))
+                """);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> done = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+                done.add(pool.submit(() -> {
+                    Evaluator eval = new Evaluator(globals, heap);
+                    for (int j = 0; j < 4; j++)
+                        Programs.eval(eval, "(loop 250)");
+                }));
+            for (Future<?> f : done)
+                f.get();
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals("8000.0", Programs.eval(new Evaluator(globals, heap), "(deref counter)"));
+    }
+
+    @Test
+    void regionsAndCollectionAreRejected() {
+        assertEquals("Regions are not supported by this heap", Programs.eval("(region (ref 1))", "--heap=concurrent"));
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> Options.parse(new String[]{"--heap=concurrent", "--gc=auto"}).newEvaluator());
+        assertEquals("Garbage collection is not supported by the concurrent heap", e.getMessage());
+    }
+}
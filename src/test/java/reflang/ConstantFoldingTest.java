@@ -0,0 +1,50 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConstantFoldingTest {
+
+    private static String fold(String program) {
+        return new ConstantFolding().rewrite(Programs.parse(program)).e().accept(new Printer.Formatter(), null);
+    }
+
+    @Test
+    void leadingNumbersAreCombined() {
+        assertEquals("6.0", fold("(+ 1 2 3)"));
+        assertEquals("(+ 3.0 x 4.0)", fold("(+ 1 2 x 4)"));
+        assertEquals("(* x 2.0 3.0)", fold("(* x 2 3)"));
+        assertEquals("0.5", fold("(/ 1 2)"));
+        assertEquals("9.223372036854776E18", fold("(+ 9223372036854775807 1)"));
+    }
+
+    @Test
+    void comparisonsAndIfsAreDecided() {
+        assertEquals("#t", fold("(< 1 2)"));
+        assertEquals("#f", fold("(= 9007199254740993 9007199254740992)"));
+        assertEquals("(f 1.0)", fold("(if (> 2 1) (f 1) (g 2))"));
+        assertEquals("(if x 1.0 2.0)", fold("(if x 1 2)"));
+    }
+
+    @Test
+    void letBoundConstantsAreSubstituted() {
+        assertEquals("(* 2.0 y)", fold("(let ((x 2)) (* x y))"));
+        assertEquals("(let ((r (ref 1.0))) (deref r))", fold("(let ((n 1)) (let ((r (ref n))) (deref r)))"));
+        assertEquals("(let ((r (ref n))) (deref r))", fold("(let ((n 1) (r (ref n))) (deref r))"));
+        assertEquals("(lambda (a) 5.0)", fold("(let ((x 2) (y 3)) (lambda (a) (+ x y)))"));
+    }
+
+    @Test
+    void sideEffectsStayInOrder() {
+        assertEquals("(+ 3.0 (deref r) 1.0 2.0)", fold("(+ 1 2 (deref r) 1 2)"));
+        assertEquals("(list (set! r 1.0) (free r))", fold("(list (set! r 1) (free r))"));
+    }
+
+    @Test
+    void foldedProgramsGiveTheSameResults() {
+        String program = "(define f (lambda (x) (let ((k 3) (t #t)) (if t (+ 1 2 x k) 0)))) (list (f 1) (f 2.5) (< 1 2) (/ 1 3))";
+        assertEquals(Programs.eval(program, "--optimize=off"), Programs.eval(program));
+        assertEquals("(7.0 8.5 #t 0.3333333333333333)", Programs.eval(program));
+    }
+}
@@ -0,0 +1,152 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs the same programs on every engine and checks that they give the same
+ * values and errors as the tree Evaluator: the CompiledEvaluator, the
+ * StackEvaluator and each of the three with the JIT, with and without the
+ * optimizer. The TypeChecker rejects some programs that fail when they run,
+ * with its own message, so checked runs are compared with a checked run of
+ * the tree Evaluator.
+ */
+class DifferentialTest {
+    private static final Path EXAMPLES = Path.of("src/main/java/reflang/examples");
+    private static final Reader READER = new Reader(); // never closed, since closing it closes System.in
+
+    private static final String[][] SETTINGS = {
+            {},
+            {"--optimize=off"},
+            {"--typecheck"},
+            {"--typecheck", "--optimize=off"},
+            {"--gc=auto", "--gc-threshold=10"},
+    };
+
+    private static final List<String[]> ENGINES = new ArrayList<>();
+
+    static {
+        for (String engine : new String[]{"tree", "compiled", "stack"}) {
+            ENGINES.add(new String[]{"--engine=" + engine});
+            ENGINES.add(new String[]{"--engine=" + engine, "--jit", "--jit-threshold=2"});
+        }
+    }
+
+    @Test
+    void examples() throws IOException {
+        agree(example("test1.scm"),
+                example("test2.scm"),
+                example("test3.scm"),
+                example("test4.scm"),
+                example("test5.scm"),
+                example("test1.fl"),
+                example("nulltest.scm"),
+                example("identity.scm") + "(identity 342)",
+                example("roman.scm") + "(+ i ii iii iv v)",
+                example("math.fl") + "(list (even 10) (odd 7) (even 101))",
+                example("list.scm") + "(list (length (append (list 1 2) (list 3 4 5))) "
+                        + "(cadr (map (lambda (x) (* x x)) (list 1 2 3))) (caddr (list 1 2 3)))",
+                example("tree.scm") + "(let ((atree (bintree 3 (leaf 4) (leaf 2)))) (traverse atree (lambda (x) x) combine))",
+                example("treesumref.scm") + "(treesum (root (leaf 1) (root (leaf 2) (leaf 3))))");
+    }
+
+    @Test
+    void integerOverflow() {
+        agree("(+ 9223372036854775807 1)",
+                "(- -9223372036854775807 2)",
+                "(* 4294967296 4294967296)",
+                "(list (= 9007199254740993 9007199254740992) (< 9007199254740992 9007199254740993))",
+                "(define add (lambda (x y) (+ x y))) (list (add 1 2) (add 3 4) (add 9223372036854775807 1) (add 5 6))",
+                "(define sub (lambda (x y) (- x y))) (list (sub 1 2) (sub 3 4) (sub -9223372036854775807 2) (sub 5 6))",
+                "(define mul (lambda (x y) (* x y))) (list (mul 3 4) (mul 5 6) (mul 3037000500 3037000500) (mul 7 8))",
+                "(define sum (lambda (n acc) (if (= n 0) acc (sum (- n 1) (+ acc 4611686018427387904))))) (sum 3 0)");
+    }
+
+    @Test
+    void negativeZero() {
+        agree("(list (+ -0.0 -0.0) (- -0.0) (* -0.0 1) (/ -0.0 1) (- 0 0.0) (- -0.0 0))",
+                "(list (/ 1 -0.0) (/ 1 (+ -0.0)) (/ 1 (* -0.0 -1)))",
+                "(list (= 0 -0.0) (< -0.0 0) (> 0 -0.0))",
+                "(define neg (lambda (x) (* x -1))) (list (neg 0.0) (neg 0.0) (neg 0) (/ 1 (neg 0.0)))",
+                "(define add (lambda (x y) (+ x y))) (list (add -0.0 -0.0) (add -0.0 -0.0) (add -0.0 -0.0))");
+    }
+
+    @Test
+    void nanComparisons() {
+        agree("(let ((nan (/ 0 0))) (list (< nan 1) (> nan 1) (= nan nan) (< 1 nan) (= nan 1)))",
+                "(define lt (lambda (x y) (if (< x y) 1 2))) (list (lt (/ 0 0) 1) (lt 1 (/ 0 0)) (lt 1 2) (lt (/ 0 0) 1))",
+                "(define eq (lambda (x y) (= x y))) (list (eq (/ 0.0 0.0) (/ 0.0 0.0)) (eq 1.5 1.5) (eq (/ 0.0 0.0) 1.5))",
+                "(define gt (lambda (x y) (> x y))) (list (gt 2 1) (gt 3 1) (gt (/ 0 0) 1) (gt 1 (/ 0 0)))");
+    }
+
+    @Test
+    void castErrors() {
+        agree("(+ 1 #t)",
+                "(- #f)",
+                "(car 5)",
+                "(cdr (list))",
+                "(deref 5)",
+                "(< 1 (list 1))",
+                "(if 1 2 3)",
+                "(let ((p (cons 1 2))) (+ (car p) (cdr p) (car (car p))))",
+                "(define f (lambda (x) (+ x 1))) (list (f 1) (f 2) (f 3) (f #t))",
+                "(define f (lambda (x) (if x 1 2))) (list (f #t) (f #f) (f #t) (f 0))",
+                "(let ((f (lambda (x) (+ x 1)))) (let ((g f)) (g (list))))");
+    }
+
+    @Test
+    void arityErrors() {
+        agree("((lambda (x) x) 1 2)",
+                "(5 1)",
+                "(define f (lambda (x y) x)) (f 1)",
+                "(define g (lambda (h) (h 1 2))) (list (g (lambda (a b) b)) (g (lambda (a b) a)) (g (lambda (a) a)))",
+                "(define tc (lambda (g n) (if (= n 0) (g 1 2) (tc g (- n 1))))) (list (tc (lambda (a b) (+ a b)) 3) (tc (lambda (a) a) 3))",
+                "(define fs (list (lambda (x) x) (lambda (x y) x) (lambda () 0) (lambda (x) (* x 2)) (lambda (x) (- x)))) "
+                        + "(define run (lambda (l acc) (if (null? l) acc (run (cdr l) (cons ((car l) 5) acc))))) (run fs (list))");
+    }
+
+    private static String example(String name) throws IOException {
+        return Files.readString(EXAMPLES.resolve(name)) + "\n";
+    }
+
+    /**
+     * Checks that each engine gives the same result for each program under
+     * all settings as the tree Evaluator with the default settings, or with
+     * just --typecheck if the settings include it.
+     */
+    private static void agree(String... programs) {
+        for (String program : programs) {
+            String unchecked = run(program, ENGINES.getFirst(), SETTINGS[0]);
+            String checked = run(program, ENGINES.getFirst(), new String[]{"--typecheck"});
+            for (String[] settings : SETTINGS) {
+                String expected = List.of(settings).contains("--typecheck") ? checked : unchecked;
+                for (String[] engine : ENGINES)
+                    assertEquals(expected, run(program, engine, settings),
+                            () -> String.join(" ", engine) + " " + String.join(" ", settings) + " on " + program);
+            }
+        }
+    }
+
+    /**
+     * Evaluates program with a fresh evaluator, and returns the value or the
+     * error as the interpreter would print it.
+     */
+    private static String run(String program, String[] engine, String[] settings) {
+        String[] args = new String[engine.length + settings.length];
+        System.arraycopy(engine, 0, args, 0, engine.length);
+        System.arraycopy(settings, 0, args, engine.length, settings.length);
+        Evaluator eval = Options.parse(args).newEvaluator();
+        try {
+            return String.valueOf(eval.valueOf(READER.parse(program)));
+        } catch (Env.LookupException | TypeChecker.TypeException e) {
+            return e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class EnvTest {
+
+    @Test
+    void evaluatorsShareTheirGlobals() {
+        Env.GlobalEnv globals = new Env.GlobalEnv();
+        Programs.eval(new Evaluator(globals), "(define square (lambda (x) (* x x)))");
+        assertEquals("49.0", Programs.eval(new Evaluator(globals), "(square 7)"));
+    }
+
+    @Test
+    void threadsReadSharedGlobals() throws Exception {
+        Env.GlobalEnv globals = new Env.GlobalEnv();
+        Programs.eval(new Evaluator(globals),
+                "(define sum (lambda (n) (if (= n 0) 0 (+ n (sum (- n 1))))))");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+                results.add(pool.submit(() -> Programs.eval(new Evaluator(globals), "(sum 100)")));
+            for (Future<String> result : results)
+                assertEquals("5050.0", result.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void unboundGlobalsThrowLookupException() {
+        Env.GlobalEnv globals = new Env.GlobalEnv();
+        Env.LookupException e = assertThrows(Env.LookupException.class,
+                () -> globals.get("missing"));
+        assertEquals("No binding found for name: missing", e.getMessage());
+    }
+}
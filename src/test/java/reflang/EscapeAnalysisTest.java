@@ -0,0 +1,62 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static reflang.AST.*;
+
+class EscapeAnalysisTest {
+
+    private static Exp firstBinding(String program) {
+        Program p = new EscapeAnalysis().rewrite(Programs.parse(program));
+        return ((LetExp) p.e()).value_exps().get(0);
+    }
+
+    /**
+     * Returns the number of heap cells the program allocated.
+     */
+    private static int cells(String program, String... options) {
+        Evaluator eval = Options.parse(options).newEvaluator();
+        Programs.eval(eval, program);
+        return ((Heap.ArrayHeap) eval.heap)._top;
+    }
+
+    @Test
+    void localReferencesAreRewritten() {
+        assertInstanceOf(LocalRefExp.class, firstBinding("(let ((r (ref 1))) (set! r (+ (deref r) 1)))"));
+        assertInstanceOf(LocalRefExp.class, firstBinding("(let ((r (ref 1))) (let ((s (ref 2))) (deref r)))"));
+    }
+
+    @Test
+    void escapingReferencesStayOnTheHeap() {
+        assertInstanceOf(RefExp.class, firstBinding("(let ((r (ref 1))) r)"));
+        assertInstanceOf(RefExp.class, firstBinding("(let ((r (ref 1))) (== r r))"));
+        assertInstanceOf(RefExp.class, firstBinding("(let ((r (ref 1))) (free r))"));
+        assertInstanceOf(RefExp.class, firstBinding("(let ((r (ref 1))) (f r))"));
+        assertInstanceOf(RefExp.class, firstBinding("(let ((r (ref 1))) (lambda () (deref r)))"));
+    }
+
+    @Test
+    void shadowingIsRespected() {
+        assertInstanceOf(RefExp.class, firstBinding("(let ((r (ref 1)) (r (ref 2))) r)"));
+        assertInstanceOf(LocalRefExp.class, firstBinding("(let ((r (ref 1))) (let ((r 5)) r))"));
+        assertInstanceOf(LocalRefExp.class, firstBinding("(let ((r (ref 1))) (lambda (r) r))"));
+    }
+
+    @Test
+    void localReferencesDoNotTouchTheHeap() {
+        String program = "(let ((r (ref 1))) (let ((a (set! r (+ (deref r) 41)))) (deref r)))";
+        assertEquals("42.0", Programs.eval(program));
+        assertEquals("42.0", Programs.eval(program, "--optimize=off"));
+        assertEquals(0, cells(program));
+        assertEquals(1, cells(program, "--optimize=off"));
+    }
+
+    @Test
+    void escapingReferencesBehaveAsBefore() {
+        assertEquals("#t", Programs.eval("(let ((r (ref 1))) (== r r))"));
+        assertEquals("Null pointer at loc:0", Programs.eval("(let ((r (ref 1))) (let ((f (free r))) (deref r)))"));
+        assertEquals("5.0", Programs.eval("(let ((r (ref 1))) (let ((f (lambda () (set! r 5)))) (let ((x (f))) (deref r))))"));
+    }
+}
@@ -0,0 +1,48 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class GlobalCellTest {
+
+    @Test
+    void redefiningUpdatesTheCellInPlace() {
+        Env.GlobalEnv globals = new Env.GlobalEnv();
+        globals.extend("x", new Value.NumVal(1));
+        Env.GlobalEnv.Cell cell = globals.cell(Symbol.of("x"));
+        globals.extend("x", new Value.NumVal(2));
+        assertSame(cell, globals.cell(Symbol.of("x")));
+        assertEquals("2.0", cell.value().toString());
+    }
+
+    @Test
+    void cachedReferencesSeeRedefinitions() {
+        Evaluator eval = new Evaluator();
+        Programs.eval(eval, "(define x 1)");
+        Programs.eval(eval, "(define getx (lambda () x))");
+        assertEquals("1.0", Programs.eval(eval, "(getx)"));
+        Programs.eval(eval, "(define x 2)");
+        assertEquals("2.0", Programs.eval(eval, "(getx)"));
+    }
+
+    @Test
+    void sharedProgramsUseTheCellsOfEachEvaluator() {
+        AST.Program p = Programs.parse("(+ x 1)");
+        Evaluator one = new Evaluator(), two = new Evaluator();
+        Programs.eval(one, "(define x 1)");
+        Programs.eval(two, "(define x 10)");
+        assertEquals("2.0", one.valueOf(p).toString());
+        assertEquals("11.0", two.valueOf(p).toString());
+        assertEquals("2.0", one.valueOf(p).toString());
+    }
+
+    @Test
+    void undefinedNamesAreStillReported() {
+        Evaluator eval = new Evaluator();
+        assertEquals("No binding found for name: y", Programs.eval(eval, "(define f (lambda () y)) (f)"));
+        Programs.eval(eval, "(define y 3)");
+        assertEquals("3.0", Programs.eval(eval, "(f)"));
+    }
+}
@@ -0,0 +1,49 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HeapTest {
+
+    @Test
+    void freedLocationsAreReusedMostRecentFirst() {
+        Heap heap = new Heap.Heap16Bit();
+        Value.RefVal a = (Value.RefVal) heap.ref(new Value.NumVal(1));
+        Value.RefVal b = (Value.RefVal) heap.ref(new Value.NumVal(2));
+        Value.RefVal c = (Value.RefVal) heap.ref(new Value.NumVal(3));
+        assertEquals("loc:0 loc:1 loc:2", a + " " + b + " " + c);
+        heap.free(a);
+        heap.free(b);
+        assertEquals("loc:1", heap.ref(new Value.NumVal(4)).toString());
+        assertEquals("loc:0", heap.ref(new Value.NumVal(5)).toString());
+        assertEquals("loc:3", heap.ref(new Value.NumVal(6)).toString());
+    }
+
+    @Test
+    void freedCellsCannotBeUsed() {
+        Heap heap = new Heap.Heap16Bit();
+        Value.RefVal a = (Value.RefVal) heap.ref(new Value.NumVal(1));
+        assertEquals("loc:0", heap.free(a).toString());
+        assertEquals("Double free at loc:0", heap.free(a).toString());
+        assertEquals("Null pointer at loc:0", heap.deref(a).toString());
+        assertEquals("Null pointer at loc:0", heap.setref(a, new Value.NumVal(2)).toString());
+        assertEquals("Segmentation fault at access loc:70000", heap.deref(new Value.RefVal(70000)).toString());
+    }
+
+    @Test
+    void theHeapHoldsSixtyFiveThousandCells() {
+        Heap heap = new Heap.Heap16Bit();
+        for (int i = 0; i < 65_536; i++)
+            heap.ref(new Value.NumVal(i));
+        assertEquals("Out of memory error", heap.ref(new Value.NumVal(0)).toString());
+        heap.free(new Value.RefVal(12));
+        assertEquals("loc:12", heap.ref(new Value.NumVal(0)).toString());
+    }
+
+    @Test
+    void programsSeeDoubleFrees() {
+        assertEquals("Double free at loc:0", Programs.eval("(let ((r (ref 1))) (let ((a (free r))) (free r)))"));
+        assertEquals("7.0", Programs.eval("(let ((r (ref 1))) (let ((a (set! r 7))) (deref r)))"));
+    }
+}
@@ -0,0 +1,56 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InlinerTest {
+
+    private static String inline(String program) {
+        return new Inliner().rewrite(Programs.parse(program)).e().accept(new Printer.Formatter(), null);
+    }
+
+    @Test
+    void callsOfKnownLambdasAreReplacedByTheirBodies() {
+        assertEquals("(let ((y (f 2.0))) (+ 1.0 y))", inline("((lambda (x y) (+ x y)) 1 (f 2))"));
+        assertEquals("(let ((sq (lambda (x) (* x x)))) (let ((x n)) (* x x)))",
+                inline("(let ((sq (lambda (x) (* x x)))) (sq n))"));
+        assertEquals("(lambda (n) (let ((sq (lambda (x) (* x x)))) (* n n)))",
+                inline("(lambda (n) (let ((sq (lambda (x) (* x x)))) (sq n)))"));
+    }
+
+    @Test
+    void capturedFreeVariablesAreNotInlined() {
+        assertEquals("(let ((k 2.0)) (let ((g (lambda (x) (* x k)))) (let ((k 3.0)) (g 1.0))))",
+                inline("(let ((k 2)) (let ((g (lambda (x) (* x k)))) (let ((k 3)) (g 1))))"));
+        assertEquals("4.0", Programs.eval("(let ((k 2)) (let ((g (lambda (x) (* x k)))) (let ((k 3)) (g 2))))"));
+    }
+
+    @Test
+    void redefinedGlobalsFallBackToTheCall() {
+        Evaluator eval = new Evaluator();
+        assertEquals("2.0", Programs.eval(eval, "(define f (lambda (x) (+ x 1))) (define g (lambda (x) (f x))) (g 1)"));
+        Programs.eval(eval, "(define f (lambda (x) (* x 10)))");
+        assertEquals("20.0", Programs.eval(eval, "(g 2)"));
+    }
+
+    @Test
+    void errorsShowTheExpressionAsWritten() {
+        assertEquals("Condition not a boolean in expression (if n 1.0 2.0)",
+                Programs.eval("(define f3 (lambda (n) (if n 1 2))) (f3 1)"));
+        assertEquals("Operator not a function in call (h 1.0)",
+                Programs.eval("(define app (lambda (h) (h 1))) (app 5)"));
+        for (String engine : new String[]{"--engine=compiled", "--engine=stack"})
+            assertEquals("Condition not a boolean in expression (if n 1.0 2.0)",
+                    Programs.eval("(define f3 (lambda (n) (if n 1 2))) (f3 1)", engine));
+    }
+
+    @Test
+    void inlinedProgramsGiveTheSameResults() {
+        String program = "(define square (lambda (x) (* x x))) "
+                + "(define twice (lambda (h x) (h (h x)))) "
+                + "(list (square 3) (twice square 2) ((lambda (a b) (- a b)) 5 2) (let ((inc (lambda (x) (+ x 1)))) (inc (inc 0))))";
+        assertEquals("(9.0 16.0 3.0 2.0)", Programs.eval(program));
+        assertEquals(Programs.eval(program, "--optimize=off"), Programs.eval(program));
+    }
+}
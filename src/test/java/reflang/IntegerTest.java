@@ -0,0 +1,56 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+class IntegerTest {
+    private static final String[] ENGINES = {"--engine=tree", "--engine=compiled", "--engine=stack"};
+
+    private static void check(String expected, String program) {
+        for (String engine : ENGINES)
+            assertEquals(expected, Programs.eval(program, engine), engine + " on " + program);
+    }
+
+    @Test
+    void smallIntegersPrintLikeDoubles() {
+        check("42.0", "(* 6 7)");
+        check("1.0E10", "(* 100000 100000)");
+        check("9.007199254740992E15", "9007199254740992");
+        check("-9.007199254740992E15", "-9007199254740992");
+        check("0.0", "(- 0 0)");
+    }
+
+    @Test
+    void largeIntegersPrintAllTheirDigits() {
+        check("9007199254740993", "9007199254740993");
+        check("9007199254740993", "(+ 9007199254740992 1)");
+        check("-9007199254740993", "(- -9007199254740992 1)");
+        check("9223372036854775807", "(- 9223372036854775807 0)");
+        check("(9007199254740993 9.007199254740992E15)", "(list (+ 9007199254740992 1) (+ 9007199254740992 1.0))");
+    }
+
+    @Test
+    void integerArithmeticIsExact() {
+        check("#f", "(= 9007199254740993 9007199254740992)");
+        check("#t", "(< 9007199254740992 9007199254740993)");
+        check("1.5", "(/ 3 2)");
+        assertInstanceOf(Value.IntVal.class, new Evaluator().valueOf(Programs.parse("(* 3 4)")));
+        assertInstanceOf(Value.NumVal.class, new Evaluator().valueOf(Programs.parse("(* 3 4.0)")));
+    }
+
+    @Test
+    void overflowFallsBackToDoubles() {
+        check("9.223372036854776E18", "(+ 9223372036854775807 1)");
+        check("-9.223372036854776E18", "(- -9223372036854775807 2)");
+        check("1.8446744073709552E19", "(* 4294967296 4294967296)");
+        check("9.22337203700025E18", "(* 3037000500 3037000500)");
+    }
+
+    @Test
+    void theUnboxedHeapKeepsIntegersExact() {
+        assertEquals("(9007199254740993 0.5)", Programs.eval(
+                "(let ((a (ref 9007199254740993)) (b (ref 0.5))) (list (deref a) (deref b)))", "--heap=unboxed", "--heap-capacity=4"));
+    }
+}
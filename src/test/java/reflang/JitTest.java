@@ -0,0 +1,49 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JitTest {
+
+    private static Evaluator jit(String... programs) {
+        Evaluator eval = Options.parse(new String[]{"--jit", "--jit-threshold=2"}).newEvaluator();
+        for (String program : programs) Programs.eval(eval, program);
+        return eval;
+    }
+
+    @Test
+    void hotNumericFunctionsAreCompiled() {
+        Evaluator eval = jit("(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))");
+        assertEquals("610.0", Programs.eval(eval, "(fib 15)"));
+        assertEquals("6765.0", Programs.eval(eval, "(fib 20)"));
+        assertEquals(1, eval.jit.stats().compiled());
+        assertTrue(eval.jit.stats().toString().startsWith("JIT: 1 functions compiled, 0 not compilable, 0 failed, 0 deoptimizations"));
+    }
+
+    @Test
+    void otherFunctionsStayInterpreted() {
+        Evaluator eval = jit("(define len (lambda (l) (if (null? l) 0 (+ 1 (len (cdr l))))))");
+        assertEquals("3.0", Programs.eval(eval, "(len (list 1 2 3))"));
+        assertEquals(0, eval.jit.stats().compiled());
+        assertTrue(eval.jit.stats().toString().startsWith("JIT: 0 functions compiled, 1 not compilable"));
+    }
+
+    @Test
+    void nonNumericArgumentsAreInterpreted() {
+        Evaluator eval = jit("(define inc (lambda (x) (+ x 1)))");
+        assertEquals("(2.0 3.0 4.0)", Programs.eval(eval, "(list (inc 1) (inc 2) (inc 3))"));
+        assertEquals(Programs.eval("(define inc (lambda (x) (+ x 1))) (inc #t)"), Programs.eval(eval, "(inc #t)"));
+    }
+
+    @Test
+    void redefiningTheFunctionDeoptimizes() {
+        Evaluator eval = jit("(define f (lambda (n) (if (= n 0) 0 (+ 1 (f (- n 1))))))");
+        assertEquals("(5.0 5.0)", Programs.eval(eval, "(list (f 5) (f 5))"));
+        Programs.eval(eval, "(define g f)");
+        Programs.eval(eval, "(define f (lambda (n) 100))");
+        assertEquals("101.0", Programs.eval(eval, "(g 5)"));
+        assertTrue(eval.jit.stats().toString().contains("1 deoptimizations"));
+    }
+}
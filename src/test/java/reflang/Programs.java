@@ -0,0 +1,33 @@
+package reflang;
+
+/**
+ * Evaluates programs for the tests and returns what the interpreter would
+ * print for them.
+ */
+final class Programs {
+    private static final Reader READER = new Reader(); // never closed, since closing it closes System.in
+
+    private Programs() {
+    }
+
+    static AST.Program parse(String program) {
+        return READER.parse(program);
+    }
+
+    /**
+     * Evaluates program with a fresh evaluator made from the given
+     * command-line options, and returns the value or the error as the
+     * interpreter would print it.
+     */
+    static String eval(String program, String... options) {
+        return eval(Options.parse(options).newEvaluator(), program);
+    }
+
+    static String eval(Evaluator eval, String program) {
+        try {
+            return String.valueOf(eval.valueOf(parse(program)));
+        } catch (Env.LookupException | TypeChecker.TypeException e) {
+            return e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RegionTest {
+
+    @Test
+    void regionsReleaseTheirCellsOnExit() {
+        assertEquals("5.0", Programs.eval("(region (let ((r (ref 5))) (deref r)))"));
+        assertEquals("(loc:0 loc:0)", Programs.eval("(let ((a (region (ref 1)))) (list a (ref 2)))"));
+        assertEquals("Null pointer at loc:0", Programs.eval("(deref (region (ref 1)))"));
+    }
+
+    @Test
+    void danglingReferencesDoNotSeeReusedCells() {
+        Evaluator eval = new Evaluator();
+        Programs.eval(eval, "(define keep (ref 0))");
+        Programs.eval(eval, "(region (set! keep (ref 42)))");
+        Programs.eval(eval, "(define live (ref 99))");
+        assertEquals("loc:1", Programs.eval(eval, "live"));
+        assertEquals("Null pointer at loc:1", Programs.eval(eval, "(deref (deref keep))"));
+        assertEquals("Null pointer at loc:1", Programs.eval(eval, "(set! (deref keep) 7)"));
+        assertEquals("Null pointer at loc:1", Programs.eval(eval, "(free (deref keep))"));
+        assertEquals("99.0", Programs.eval(eval, "(deref live)"));
+    }
+
+    @Test
+    void danglingReferencesAreNotEqualToNewOnes() {
+        assertEquals("#f", Programs.eval("(let ((a (region (ref 1)))) (== a (ref 2)))"));
+        assertEquals("#t", Programs.eval("(region (let ((a (ref 1))) (== a a)))"));
+    }
+
+    @Test
+    void nestedRegionsReleaseOnlyTheirOwnCells() {
+        assertEquals("(1.0 Null pointer at loc:1 #t)", Programs.eval(
+                "(region (let ((outer (ref 1))) (let ((inner (region (ref 2)))) (list (deref outer) (deref inner) (== outer outer)))))"));
+    }
+
+    @Test
+    void regionsAllocateAboveTheFreeList() {
+        assertEquals("(loc:0 loc:1)", Programs.eval(
+                "(region (let ((a (ref 1))) (let ((b (free a))) (list a (ref 2)))))"));
+        assertEquals("loc:1", Programs.eval("(let ((a (free (ref 1)))) (region (ref 2)))"));
+        assertEquals("(loc:1 loc:0)", Programs.eval("(let ((a (free (ref 1)))) (list (region (ref 2)) (ref 3)))"));
+    }
+
+    @Test
+    void collectedRegionCellsStayInTheRegion() {
+        Evaluator eval = Options.parse(new String[]{"--gc=auto", "--gc-threshold=16"}).newEvaluator();
+        Programs.eval(eval, "(define churn (lambda (n) (let ((r (ref n))) (if (= n 0) r (churn (- n 1))))))");
+        assertEquals("loc:0", Programs.eval(eval, "(let ((a (region (churn 100)))) (ref 1))"));
+        assertEquals("loc:1", Programs.eval(eval, "(ref 1)"));
+    }
+}
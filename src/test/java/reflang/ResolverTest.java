@@ -0,0 +1,50 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static reflang.AST.*;
+
+class ResolverTest {
+
+    @Test
+    void addressesCountFramesAndSlots() {
+        Program p = Programs.parse("(let ((a 1) (b 2)) (lambda (c) (+ a b c)))");
+        new Resolver().resolve(p);
+
+        AddExp add = (AddExp) ((LambdaExp) ((LetExp) p.e()).body()).body();
+        VarExp a = (VarExp) add.all().get(0), b = (VarExp) add.all().get(1), c = (VarExp) add.all().get(2);
+        assertEquals(1, a.depth());
+        assertEquals(0, a.slot());
+        assertEquals(1, b.depth());
+        assertEquals(1, b.slot());
+        assertEquals(0, c.depth());
+        assertEquals(0, c.slot());
+    }
+
+    @Test
+    void globalsAreLeftUnresolved() {
+        Program p = Programs.parse("(let ((y 1)) x)");
+        new Resolver().resolve(p);
+        assertEquals(-1, ((VarExp) ((LetExp) p.e()).body()).depth());
+    }
+
+    @Test
+    void laterBindingsShadowEarlierOnes() {
+        assertEquals("2.0", Programs.eval("(let ((x 1) (x 2)) x)"));
+        assertEquals("2.0", Programs.eval("(let ((x 1)) (let ((x 2)) x))"));
+        assertEquals("3.0", Programs.eval("(let ((x 1)) (+ x (let ((x 2)) x)))"));
+    }
+
+    @Test
+    void closuresSeeTheirDefiningFrames() {
+        assertEquals("6.0", Programs.eval("(let ((x 1)) (let ((f (lambda (y) (+ x y)))) (let ((x 10)) (f 5))))"));
+        assertEquals("7.0", Programs.eval("((((lambda (a) (lambda (b) (lambda (c) (+ a b c)))) 1) 2) 4)"));
+    }
+
+    @Test
+    void globalsAreLookedUpByName() {
+        assertEquals("120.0", Programs.eval("(define fact (lambda (n) (if (= n 0) 1 (* n (fact (- n 1)))))) (fact 5)"));
+        assertEquals("No binding found for name: y", Programs.eval("(let ((x 1)) y)"));
+    }
+}
@@ -0,0 +1,62 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SegmentedHeapTest {
+
+    private static int fill(Heap heap) {
+        int count = 0;
+        while (heap.ref(new Value.NumVal(count)) instanceof Value.RefVal) count++;
+        return count;
+    }
+
+    @Test
+    void growsOneSegmentAtATime() {
+        Heap.SegmentedHeap heap = new Heap.SegmentedHeap(0, 4, 12);
+        assertEquals(0, heap._capacity);
+        heap.ref(new Value.NumVal(0));
+        assertEquals(4, heap._capacity);
+        for (int i = 1; i < 5; i++)
+            heap.ref(new Value.NumVal(i));
+        assertEquals(8, heap._capacity);
+        assertEquals("4.0", heap.deref(new Value.RefVal(4)).toString());
+    }
+
+    @Test
+    void stopsAtTheMaximum() {
+        assertEquals(12, fill(new Heap.SegmentedHeap(0, 4, 12)));
+        assertEquals("Out of memory error", new Heap.SegmentedHeap(0, 4, 0).ref(new Value.NumVal(0)).toString());
+    }
+
+    @Test
+    void theLastSegmentIsCutShortAtTheMaximum() {
+        assertEquals(10, fill(new Heap.SegmentedHeap(0, 4, 10)));
+        assertEquals(100, fill(new Heap.SegmentedHeap(100, 65_536, 100)));
+        Heap.SegmentedHeap heap = new Heap.SegmentedHeap(100_000, 65_536, 100_000);
+        assertEquals(100_000, heap._capacity);
+        assertEquals(100_000, fill(heap));
+    }
+
+    @Test
+    void startsWithTheInitialCapacity() {
+        assertEquals(8, new Heap.SegmentedHeap(5, 4, 100)._capacity);
+        assertThrows(IllegalArgumentException.class, () -> new Heap.SegmentedHeap(10, 4, 8));
+        assertThrows(IllegalArgumentException.class, () -> new Heap.SegmentedHeap(0, 3, 8));
+    }
+
+    @Test
+    void programsCanUseMoreThanSixtyFiveThousandCells() {
+        Evaluator eval = Options.parse(new String[]{"--heap=segmented", "--heap-segment=1024"}).newEvaluator();
+        Programs.eval(eval, "(define fill (lambda (n r) (if (= n 0) r (fill (- n 1) (ref r)))))");
+        for (int i = 0; i < 69; i++)
+            Programs.eval(eval, "(fill 1000 0)");
+        assertEquals("loc:69999", Programs.eval(eval, "(fill 1000 0)"));
+        assertEquals("Out of memory error", Programs.eval("(ref (ref (ref 1)))",
+                "--heap=segmented", "--heap-capacity=2", "--heap-max=2"));
+        assertEquals("loc:1", Programs.eval("(ref (ref 1))",
+                "--heap=segmented", "--heap-capacity=100", "--heap-max=100"));
+    }
+}
@@ -0,0 +1,52 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class SharedValueTest {
+
+    @Test
+    void smallIntegersAreShared() {
+        assertSame(Value.NumVal.of(7), Value.NumVal.of(7.0));
+        assertSame(Value.NumVal.of(-128), Value.NumVal.of(-128));
+        assertSame(Value.NumVal.of(1024), Value.NumVal.of(1024));
+        assertNotSame(Value.NumVal.of(1025), Value.NumVal.of(1025));
+        assertNotSame(Value.NumVal.of(0.5), Value.NumVal.of(0.5));
+        assertEquals("-0.0", Value.NumVal.of(-0.0).toString());
+        assertEquals("0.0", Value.NumVal.of(0.0).toString());
+    }
+
+    @Test
+    void constantsAreBuiltOnce() {
+        AST.NumExp five = new AST.NumExp(5);
+        assertSame(five.value(), five.value());
+        AST.NumExp half = new AST.NumExp(0.5);
+        assertSame(half.value(), half.value());
+        assertSame(Value.BoolVal.TRUE, Value.BoolVal.of(true));
+        assertSame(Value.BoolVal.FALSE, Value.BoolVal.of(false));
+    }
+
+    @Test
+    void evaluatorsReturnCanonicalValues() {
+        for (String engine : new String[]{"--engine=tree", "--engine=compiled", "--engine=stack"}) {
+            Evaluator eval = Options.parse(new String[]{engine}).newEvaluator();
+            assertSame(Value.BoolVal.TRUE, eval.valueOf(Programs.parse("(< 1 2)")));
+            assertSame(Value.BoolVal.FALSE, eval.valueOf(Programs.parse("(null? (list 1))")));
+            assertSame(Value.Null.NULL, eval.valueOf(Programs.parse("(list)")));
+            assertSame(Value.IntVal.of(3), eval.valueOf(Programs.parse("(+ 1 2)")));
+        }
+    }
+
+    @Test
+    void specializedArithmeticMatchesTheGeneralCase() {
+        String program = "(list (- 5) (/ 4) (* 3) (+ 2) (- 6 1) (/ 6 4) (* 2 3) (+ 1 2) (/ 1 0) (- 0.0) (- -0.0 0) (* -0.0 1) (+ 1 2 3))";
+        String expected = Programs.eval(program, "--engine=tree");
+        assertEquals("(5.0 4.0 3.0 2.0 5.0 1.5 6.0 3.0 Infinity 0.0 -0.0 -0.0 6.0)", expected);
+        assertEquals(expected, Programs.eval(program, "--engine=compiled"));
+        for (String error : new String[]{"(- #t)", "(* 2 #t)", "(/ #f 1)", "(+ 1 (list))"})
+            assertEquals(Programs.eval(error, "--engine=tree"), Programs.eval(error, "--engine=compiled"));
+    }
+}
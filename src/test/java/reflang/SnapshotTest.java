@@ -0,0 +1,98 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapshotTest {
+
+    private static Path save(String... programs) throws IOException {
+        Evaluator eval = new Evaluator();
+        for (String program : programs) Programs.eval(eval, program);
+        Path file = Files.createTempFile("reflang", ".snapshot");
+        file.toFile().deleteOnExit();
+        Snapshot.write(eval, file);
+        return file;
+    }
+
+    private static Evaluator restore(Path file, String... options) throws IOException {
+        Evaluator eval = Options.parse(options).newEvaluator();
+        Snapshot.restore(eval, file);
+        return eval;
+    }
+
+    @Test
+    void globalsAndCellsRoundTrip() throws IOException {
+        Path file = save("(define n 42)",
+                "(define p (list 1 #t (list)))",
+                "(define keep (ref (ref 7)))",
+                "(define add (let ((k 10)) (lambda (x) (+ x k))))");
+        Evaluator eval = restore(file);
+        assertEquals("42.0", Programs.eval(eval, "n"));
+        assertEquals("(1.0 #t ())", Programs.eval(eval, "p"));
+        assertEquals("7.0", Programs.eval(eval, "(deref (deref keep))"));
+        assertEquals("15.0", Programs.eval(eval, "(add 5)"));
+    }
+
+    @Test
+    void closuresAreOptimizedAgainWhenRestored() throws IOException {
+        Path file = save("(define answer (lambda () (+ 40 2)))",
+                "(define scale (let ((k 3) (unused 4)) (lambda (x) (* k x))))");
+        Evaluator eval = restore(file);
+        assertEquals("42.0", Programs.eval(eval, "(answer)"));
+        assertEquals("12.0", Programs.eval(eval, "(scale 4)"));
+        assertEquals("Argument mismatch in call (answer 1.0)", Programs.eval(eval, "(answer 1)"));
+    }
+
+    @Test
+    void cellsKeepTheirLocations() throws IOException {
+        Path file = save("(define a (ref 1))", "(define b (ref 2))", "(define c (ref 3))", "(free b)");
+        Evaluator eval = restore(file, "--heap=segmented", "--heap-segment=1024");
+        assertEquals("(loc:0 loc:2)", Programs.eval(eval, "(list a c)"));
+        assertEquals("loc:1", Programs.eval(eval, "(ref 4)"));
+        assertEquals("3.0", Programs.eval(eval, "(deref c)"));
+    }
+
+    @Test
+    void collectingDoesNotLoadTheSnapshot() throws IOException {
+        Path file = save("(define keep (ref (ref 42)))",
+                "(ref 5)",
+                "(define getter (let ((r (ref 6))) (lambda () (deref r))))");
+        Evaluator eval = restore(file, "--gc=auto");
+        Heap.ArrayHeap heap = (Heap.ArrayHeap) eval.heap;
+        eval.collector().collect(null);
+        assertEquals(0, eval.collector().stats().collected());
+        for (int loc = 0; loc < 4; loc++)
+            assertTrue(heap._image.holdsCell(loc));
+        assertNull(eval.globals().cell(Symbol.of("keep")).valueIfLoaded());
+
+        assertEquals("42.0", Programs.eval(eval, "(deref (deref keep))"));
+        assertEquals("6.0", Programs.eval(eval, "(getter)"));
+    }
+
+    @Test
+    void cellsReadFromTheSnapshotAreCollected() throws IOException {
+        Path file = save("(define keep (ref (ref 42)))");
+        Evaluator eval = restore(file, "--gc=auto");
+        assertEquals("42.0", Programs.eval(eval, "(deref (deref keep))"));
+        Programs.eval(eval, "(define keep 0)");
+        eval.collector().collect(null);
+        assertEquals(2, eval.collector().stats().collected());
+    }
+
+    @Test
+    void danglingReferencesStayDangling() throws IOException {
+        Path file = save("(define keep (ref 0))", "(region (set! keep (ref 42)))");
+        Evaluator eval = restore(file);
+        Programs.eval(eval, "(define live (ref 99))");
+        assertEquals("loc:1", Programs.eval(eval, "live"));
+        assertEquals("Null pointer at loc:1", Programs.eval(eval, "(deref (deref keep))"));
+        assertEquals("99.0", Programs.eval(eval, "(deref live)"));
+    }
+}
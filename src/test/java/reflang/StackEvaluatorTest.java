@@ -0,0 +1,58 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StackEvaluatorTest {
+    private static final String BUILD = "(define build (lambda (n) (if (= n 0) (list) (cons n (build (- n 1))))))";
+    private static final String LENGTH = "(define len (lambda (l acc) (if (null? l) acc (len (cdr l) (+ acc 1)))))";
+
+    private static StackEvaluator stack(String... options) {
+        return (StackEvaluator) Options.parse(options).newEvaluator();
+    }
+
+    @Test
+    void deepRecursionOnlyNeedsMemory() {
+        StackEvaluator eval = stack("--engine=stack");
+        Programs.eval(eval, BUILD);
+        Programs.eval(eval, LENGTH);
+        assertEquals("1000000.0", Programs.eval(eval, "(len (build 1000000) 0)"));
+    }
+
+    @Test
+    void machinesRunInBoundedSteps() {
+        StackEvaluator eval = stack("--engine=stack");
+        Programs.eval(eval, BUILD);
+        Programs.eval(eval, LENGTH);
+        StackEvaluator.Machine machine = eval.start(Programs.parse("(len (build 1000) 0)"));
+        assertFalse(machine.run(100));
+        assertFalse(machine.isDone());
+        int slices = 1;
+        while (!machine.run(100)) slices++;
+        assertTrue(slices > 10);
+        assertEquals("1000.0", machine.result().toString());
+    }
+
+    @Test
+    void errorsLeaveTheRegionsOfPendingFrames() {
+        StackEvaluator eval = stack("--engine=stack");
+        assertEquals(Programs.eval("(region (let ((r (ref 1))) (+ 1 (list))))"),
+                Programs.eval(eval, "(region (let ((r (ref 1))) (+ 1 (list))))"));
+        assertEquals(0, ((Heap.ArrayHeap) eval.heap)._region_depth);
+        assertEquals("Null pointer at loc:0", Programs.eval(eval, "(deref (region (ref 1)))"));
+        assertEquals("Regions are not supported by this heap",
+                Programs.eval("(region (ref 1))", "--engine=stack", "--heap=concurrent", "--heap-capacity=4"));
+    }
+
+    @Test
+    void deepRecursionInCompiledCodeDeoptimizes() {
+        StackEvaluator eval = stack("--engine=stack", "--jit", "--jit-threshold=2");
+        Programs.eval(eval, "(define sum (lambda (n) (if (= n 0) 0 (+ n (sum (- n 1))))))");
+        assertEquals("55.0", Programs.eval(eval, "(sum 10)"));
+        assertEquals("5.00005E9", Programs.eval(eval, "(sum 100000)"));
+        assertTrue(eval.jit.stats().toString().contains("1 deoptimizations"));
+    }
+}
@@ -0,0 +1,54 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static reflang.AST.*;
+
+class SuperinstructionsTest {
+
+    private static Exp fuse(String program) {
+        return new Superinstructions().rewrite(Programs.parse(program)).e();
+    }
+
+    @Test
+    void idiomsAreFused() {
+        assertInstanceOf(RefUpdateExp.class, fuse("(set! x (+ (deref x) 1 y))"));
+        assertInstanceOf(RefUpdateExp.class, fuse("(set! x (- (deref x) 1))"));
+        assertInstanceOf(DerefCarExp.class, fuse("(deref (car p))"));
+        Program p = new Optimizer(true).optimize(Programs.parse("(let ((r (ref 1))) (set! r (+ (deref r) n)))"));
+        assertInstanceOf(LocalUpdateExp.class, ((LetExp) p.e()).body());
+    }
+
+    @Test
+    void otherUpdatesAreLeftAlone() {
+        assertInstanceOf(AssignExp.class, fuse("(set! x (+ (deref x)))"));
+        assertInstanceOf(AssignExp.class, fuse("(set! x (+ (deref y) 1))"));
+        assertInstanceOf(AssignExp.class, fuse("(set! x (+ 1 (deref x)))"));
+        assertInstanceOf(AssignExp.class, fuse("(set! x (* (deref x) 2))"));
+        assertInstanceOf(RefEqExp.class, fuse("(== a b)"));
+    }
+
+    @Test
+    void fusedNodesPrintAsWritten() {
+        assertEquals("(set! x (- (deref x) 1.0 y))", fuse("(set! x (- (deref x) 1 y))").accept(new Printer.Formatter(), null));
+        assertEquals("(deref (car p))", fuse("(deref (car p))").accept(new Printer.Formatter(), null));
+    }
+
+    @Test
+    void fusedProgramsGiveTheSameResults() {
+        String[] programs = {
+                "(define c (ref 5)) (list (set! c (- (deref c) 1 1)) (deref c))",
+                "(let ((c (ref 1))) (let ((u (set! c (+ (deref c) 2 3)))) (deref c)))",
+                "(define p (cons (ref 7) 1)) (deref (car p))",
+                "(define c (ref 1)) (set! c (+ (deref c) #t))",
+                "(define keep (ref 0)) (define r (region (set! keep (ref 42)))) (define d (deref keep)) (set! d (+ (deref d) 1))",
+        };
+        for (String program : programs)
+            for (String engine : new String[]{"--engine=tree", "--engine=compiled", "--engine=stack"})
+                assertEquals(Programs.eval(program, engine, "--optimize=off"), Programs.eval(program, engine), program);
+        assertEquals("(3.0 3.0)", Programs.eval(programs[0]));
+        assertEquals("6.0", Programs.eval(programs[1]));
+    }
+}
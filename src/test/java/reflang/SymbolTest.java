@@ -0,0 +1,41 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static reflang.AST.*;
+
+class SymbolTest {
+
+    @Test
+    void equalNamesShareOneSymbol() {
+        Symbol a = Symbol.of("symbol-test-a");
+        assertSame(a, Symbol.of(new String("symbol-test-a")));
+        assertEquals("symbol-test-a", a.name());
+        assertNotEquals(a.id(), Symbol.of("symbol-test-b").id());
+    }
+
+    @Test
+    void findDoesNotIntern() {
+        assertNull(Symbol.find("symbol-test-never-interned"));
+        assertNull(Symbol.find("symbol-test-never-interned"));
+    }
+
+    @Test
+    void theParserInternsIdentifiers() {
+        LetExp let = (LetExp) Programs.parse("(let ((x 1)) (lambda (x) x))").e();
+        LambdaExp lambda = (LambdaExp) let.body();
+        assertSame(let.symbols()[0], lambda.symbols()[0]);
+        assertSame(lambda.symbols()[0], ((VarExp) lambda.body()).symbol());
+    }
+
+    @Test
+    void unknownNamesAreReportedByName() {
+        assertEquals("No binding found for name: symbol-test-unbound", Programs.eval("symbol-test-unbound"));
+        assertEquals("1.0", Programs.eval("(let ((symbol-test-local 1)) symbol-test-local)"));
+        assertEquals("No binding found for name: symbol-test-local", Programs.eval("symbol-test-local"));
+    }
+}
@@ -0,0 +1,54 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static reflang.AST.*;
+
+class TailCallTest {
+    private static final String[] ENGINES = {"--engine=tree", "--engine=compiled"};
+
+    @Test
+    void callsInTailPositionAreMarked() {
+        Program p = Programs.parse("(lambda (x) (if x (f x) (let ((y 1)) (g (h y)))))");
+        new Resolver().resolve(p);
+        IfExp body = (IfExp) ((LambdaExp) p.e()).body();
+        CallExp g = (CallExp) ((LetExp) body.else_exp()).body();
+        assertTrue(((CallExp) body.then_exp()).tail());
+        assertTrue(g.tail());
+        assertFalse(((CallExp) g.operands().get(0)).tail());
+    }
+
+    @Test
+    void tailCallsCanBeLeftUnmarked() {
+        Program p = Programs.parse("(lambda (x) (f x))");
+        Resolver resolver = new Resolver();
+        resolver.tail_calls = false;
+        resolver.resolve(p);
+        assertFalse(((CallExp) ((LambdaExp) p.e()).body()).tail());
+    }
+
+    @Test
+    void tailLoopsRunInConstantStack() {
+        for (String engine : ENGINES) {
+            assertEquals("1000000.0", Programs.eval(
+                    "(define loop (lambda (n acc) (if (= n 0) acc (loop (- n 1) (+ acc 1))))) (loop 1000000 0)", engine));
+            assertEquals("(#t #f)", Programs.eval("(define even (lambda (n) (if (= n 0) #t (odd (- n 1))))) "
+                    + "(define odd (lambda (n) (if (= n 0) #f (even (- n 1))))) (list (even 100000) (odd 100000))", engine));
+            assertEquals("0.0", Programs.eval(
+                    "(define down (lambda (n) (let ((m (- n 1))) (if (< m 0) n (down m))))) (down 100000)", engine));
+        }
+    }
+
+    @Test
+    void tailCallErrorsMatchDirectCalls() {
+        String program = "(define f (lambda (x y) x)) (define g (lambda (h) (h 1))) (list (g (lambda (a) a)) (g f))";
+        for (String engine : ENGINES) {
+            Evaluator direct = Options.parse(new String[]{engine}).newEvaluator();
+            direct.resolver.tail_calls = false;
+            assertEquals(Programs.eval(direct, program), Programs.eval(program, engine));
+        }
+    }
+}
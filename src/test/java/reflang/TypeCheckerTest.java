@@ -0,0 +1,59 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static reflang.AST.*;
+
+class TypeCheckerTest {
+
+    private static String check(String program) {
+        return Programs.eval(program, "--typecheck");
+    }
+
+    @Test
+    void mismatchesAreRejectedBeforeTheProgramRuns() {
+        assertEquals("Type error: #t is a boolean, expected a number in (+ 1.0 #t)", check("(+ 1 #t)"));
+        assertEquals("Type error: 1.0 is a number, expected a boolean in (if 1.0 2.0 3.0)", check("(if 1 2 3)"));
+        assertEquals("Type error: 5.0 is a number, expected a pair in (car 5.0)", check("(car 5)"));
+        assertEquals("Type error: 5.0 is a number, expected a reference in (deref 5.0)", check("(deref 5)"));
+        assertEquals("Type error: (lambda (x) x) takes 1 arguments, got 2 in ((lambda (x) x) 1.0 2.0)",
+                check("((lambda (x) x) 1 2)"));
+        assertEquals("Type error: x is a boolean, expected a number in (+ x 1.0)",
+                check("(let ((f (lambda (x) (+ x 1)))) (f #t))"));
+    }
+
+    @Test
+    void unprovenOperandsAreLeftToTheEvaluator() {
+        assertEquals(Programs.eval("(define g (lambda (x) (+ x 1))) (g #t)"),
+                check("(define g (lambda (x) (+ x 1))) (g #t)"));
+        assertEquals("Condition not a boolean in expression (if n 1.0 2.0)",
+                check("(define f3 (lambda (n) (if n 1 2))) (f3 1)"));
+    }
+
+    @Test
+    void typesAreRecorded() {
+        Program p = Programs.parse("(if (< 1 2) (+ 1 2) (car (cons 1 2)))");
+        new TypeChecker().check(p);
+        IfExp e = (IfExp) p.e();
+        assertEquals(TypeChecker.Type.BOOLEAN, e.conditional()._type);
+        assertEquals(TypeChecker.Type.NUMBER, e.then_exp()._type);
+        assertEquals(TypeChecker.Type.UNKNOWN, e._type);
+    }
+
+    @Test
+    void optimizedProgramsAreAnnotatedAgain() {
+        Evaluator eval = Options.parse(new String[]{"--typecheck"}).newEvaluator();
+        Program p = eval.prepare(Programs.parse("(let ((k 2)) (let ((sq (lambda (x) (* x x)))) (sq (+ k 1))))"));
+        assertEquals(TypeChecker.Type.NUMBER, p.e()._type);
+    }
+
+    @Test
+    void checkedProgramsGiveTheSameResults() {
+        String program = "(define sum (lambda (n acc) (if (= n 0) acc (sum (- n 1) (+ acc n))))) "
+                + "(let ((r (ref 1))) (list (sum 10 0) (set! r (+ (deref r) 1)) (if (< 1 2) (* 2 3) 0) (car (cons 1 2))))";
+        for (String engine : new String[]{"--engine=tree", "--engine=compiled", "--engine=stack"})
+            assertEquals(Programs.eval(program, engine), Programs.eval(program, engine, "--typecheck"));
+        assertEquals("(55.0 2.0 6.0 1.0)", check(program));
+    }
+}
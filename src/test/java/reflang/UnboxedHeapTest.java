@@ -0,0 +1,81 @@
+package reflang;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UnboxedHeapTest {
+
+    @Test
+    void numbersAreStoredUnboxed() {
+        Heap.UnboxedHeap heap = new Heap.UnboxedHeap(4, 4);
+        Value.RefVal number = (Value.RefVal) heap.ref(new Value.NumVal(1.5));
+        Value.RefVal pair = (Value.RefVal) heap.ref(new Value.PairVal(new Value.NumVal(1), new Value.Null()));
+        assertEquals(1.5, Double.longBitsToDouble(heap._numbers[number.loc()]));
+        assertNull(heap._objects[number.loc()]);
+        assertEquals("(1.0)", heap._objects[pair.loc()].toString());
+
+        heap.setref(pair, new Value.NumVal(-2));
+        assertNull(heap._objects[pair.loc()]);
+        assertEquals("-2.0", heap.deref(pair).toString());
+        heap.setref(pair, new Value.IntVal(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, heap._numbers[pair.loc()]);
+        assertEquals("9223372036854775807", heap.deref(pair).toString());
+        heap.setref(number, new Value.BoolVal(true));
+        assertEquals("#t", heap.deref(number).toString());
+    }
+
+    @Test
+    void freedCellsAreEmpty() {
+        Heap.UnboxedHeap heap = new Heap.UnboxedHeap(4, 4);
+        Value.RefVal loc = (Value.RefVal) heap.ref(new Value.NumVal(7));
+        assertEquals(loc, heap.free(loc));
+        assertTrue(heap.isFree(loc.loc()));
+        assertEquals("Null pointer at loc:0", heap.deref(loc).toString());
+        assertEquals("Double free at loc:0", heap.free(loc).toString());
+    }
+
+    @Test
+    void growsByDoublingUpToTheMaximum() {
+        Heap.UnboxedHeap heap = new Heap.UnboxedHeap(2, 5);
+        for (int i = 0; i < 5; i++)
+            assertEquals(new Value.RefVal(i).toString(), heap.ref(new Value.NumVal(i)).toString());
+        assertEquals(5, heap._capacity);
+        assertEquals("Out of memory error", heap.ref(new Value.NumVal(5)).toString());
+        assertEquals("3.0", heap.deref(new Value.RefVal(3)).toString());
+        assertThrows(IllegalArgumentException.class, () -> new Heap.UnboxedHeap(10, 8));
+    }
+
+    @Test
+    void programsRunOnTheUnboxedHeap() {
+        Evaluator eval = Options.parse(new String[]{"--heap=unboxed", "--heap-capacity=16", "--gc=auto", "--gc-threshold=16"}).newEvaluator();
+        Programs.eval(eval, "(define counter (ref 0))");
+        Programs.eval(eval, "(define count (lambda (n) (if (= n 0) (deref counter) (let ((c (set! counter (+ (deref counter) 1)))) (count (- n 1))))))");
+        assertEquals("500.0", Programs.eval(eval, "(count 500)"));
+        Programs.eval(eval, "(define churn (lambda (n) (let ((r (ref n))) (if (= n 0) r (churn (- n 1))))))");
+        for (int i = 0; i < 4; i++)
+            assertTrue(Programs.eval(eval, "(churn 500)").startsWith("loc:"));
+        assertTrue(eval.collector().stats().collected() > 0);
+    }
+
+    @Test
+    void snapshotsRestoreIntoTheUnboxedHeap() throws Exception {
+        Evaluator saved = new Evaluator();
+        Programs.eval(saved, "(define cells (list (ref 1) (ref (list 2 3))))");
+        Path file = Files.createTempFile("reflang", ".snapshot");
+        file.toFile().deleteOnExit();
+        Snapshot.write(saved, file);
+
+        Evaluator eval = Options.parse(new String[]{"--heap=unboxed", "--heap-capacity=1"}).newEvaluator();
+        Snapshot.restore(eval, file);
+        assertEquals("(1.0 (2.0 3.0))", Programs.eval(eval, "(list (deref (car cells)) (deref (car (cdr cells))))"));
+        Programs.eval(eval, "(free (car cells))");
+        assertEquals("Null pointer at loc:0", Programs.eval(eval, "(deref (car cells))"));
+    }
+}